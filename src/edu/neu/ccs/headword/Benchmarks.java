@@ -0,0 +1,497 @@
+package edu.neu.ccs.headword;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import edu.neu.ccs.headword.LatticeParser.CompiledDMVScorer;
+import edu.neu.ccs.headword.LatticeParser.DMVVectorScorer;
+import edu.neu.ccs.headword.util.CommandLineParser;
+import edu.neu.ccs.headword.util.Util;
+
+/**
+ * Micro-benchmarks for the parser, the channel aligner, the dictionary, the language model
+ * and logSum, all on synthetic inputs shaped like our production data, so no files are needed.
+ *
+ * Each benchmark runs warm-up iterations and then timed iterations of a fixed number of
+ * operations, and reports the mean and standard deviation of the time per operation. Run with
+ * -list to see the benchmark names and -filter to select some of them, e.g.
+ *
+ *   java edu.neu.ccs.headword.Benchmarks -filter parse -iterations 10
+ */
+public class Benchmarks {
+
+	/**
+	 * One benchmark: setUp() builds the inputs once, and run(i) performs operation i, returning
+	 * a value derived from its result so the JIT can't discard the work.
+	 */
+	static abstract class Benchmark {
+		final String name;
+		final int operations; // per iteration
+
+		Benchmark(String name, int operations) {
+			this.name = name;
+			this.operations = operations;
+		}
+
+		abstract void setUp(Random random) throws IOException;
+		abstract double run(int i);
+	}
+
+	static final int SEED = 0;
+
+	static volatile double sink;
+
+	/** Run the benchmark and print its mean time per operation. */
+	static void measure(Benchmark benchmark, int warmupIterations, int iterations) {
+		double[] nanosPerOp = new double[iterations];
+		double result = 0.0;
+		for (int iteration = -warmupIterations; iteration < iterations; iteration++) {
+			long startTime = System.nanoTime();
+			for (int i = 0; i < benchmark.operations; i++)
+				result += benchmark.run(i);
+			long elapsed = System.nanoTime() - startTime;
+			if (iteration >= 0)
+				nanosPerOp[iteration] = (double) elapsed / benchmark.operations;
+		}
+		sink = result;
+
+		double mean = 0.0;
+		for (double t: nanosPerOp)
+			mean += t;
+		mean /= iterations;
+		double variance = 0.0;
+		for (double t: nanosPerOp)
+			variance += (t - mean) * (t - mean);
+		double sd = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0.0;
+
+		System.out.printf("%-56s %14.1f +- %10.1f ns/op %14.1f ops/sec\n",
+				benchmark.name, mean, sd, 1e9 / mean);
+	}
+
+	static List<Benchmark> allBenchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		// Tag lattices: single path (a tagged sentence) and dense (OCR output with several
+		// tag hypotheses per token, plus merged tokens).
+		for (String engine: new String[] {"cells", "flat", "flat-compiled"}) {
+			benchmarks.add(new ParseBenchmark(engine, false));
+			benchmarks.add(new ParseBenchmark(engine, true));
+		}
+
+		// Expected counts as collected by DMVEM (single-path lattices) and DMVCE (neighborhood
+		// lattices), in log space and in scaled real space.
+		for (String engine: new String[] {"flat-compiled", "flat-compiled-scaled"}) {
+			benchmarks.add(new SoftCountBenchmark(engine, false));
+			benchmarks.add(new SoftCountBenchmark(engine, true));
+		}
+
+		for (boolean flat: new boolean[] {false, true}) {
+			benchmarks.add(new AlignerBenchmark(flat, false));
+			benchmarks.add(new AlignerBenchmark(flat, true));
+		}
+		benchmarks.add(new DictionaryBenchmark(true));
+		benchmarks.add(new DictionaryBenchmark(false));
+		benchmarks.add(new LanguageModelBenchmark());
+		benchmarks.add(new LogSumBenchmark());
+		benchmarks.add(new LogSumExpBenchmark(false));
+		benchmarks.add(new LogSumExpBenchmark(true));
+
+		return benchmarks;
+	}
+
+	static final int NUM_TAGS = 45;
+	static final int SENTENCE_LENGTH = 20;
+
+	static class ParseBenchmark extends Benchmark {
+		final String engine;
+		final boolean dense;
+		TaggedLattice[] lattices;
+		LatticeParser parser;
+
+		ParseBenchmark(String engine, boolean dense) {
+			super("LatticeParser.parse/" + engine + (dense ? "/dense" : "/single-path"),
+					dense ? 20 : 200);
+			this.engine = engine;
+			this.dense = dense;
+		}
+
+		@Override
+		void setUp(Random random) {
+			DMVVector model = FlatLatticeParser.randomModel(random, NUM_TAGS);
+			lattices = new TaggedLattice[operations];
+			for (int i = 0; i < lattices.length; i++) {
+				lattices[i] = FlatLatticeParser.randomLattice(
+						random, SENTENCE_LENGTH, dense ? 4 : 1, dense, NUM_TAGS);
+			}
+
+			if (engine.equals("cells")) {
+				parser = new LatticeParser(new DMVVectorScorer(model));
+			}
+			else {
+				FlatLatticeParser flatParser = new FlatLatticeParser(engine.equals("flat")
+						? new DMVVectorScorer(model) : new CompiledDMVScorer(model));
+				flatParser.setReuseChart(true);
+				parser = flatParser;
+			}
+		}
+
+		@Override
+		double run(int i) {
+			parser.parse(lattices[i]);
+			return parser.sentProb();
+		}
+	}
+
+	static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz";
+
+	static String randomWord(Random random) {
+		// roughly the length distribution of English words
+		int length = 1 + (int) Math.min(14, Math.abs(random.nextGaussian() * 3.0 + 3.5));
+		StringBuilder word = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			word.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		return word.toString();
+	}
+
+	/** Copy of s with OCR-like errors: each character is substituted, dropped or doubled. */
+	static String garble(Random random, String s, double errorRate) {
+		StringBuilder garbled = new StringBuilder(s.length() + 8);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (random.nextDouble() >= errorRate) {
+				garbled.append(c);
+				continue;
+			}
+			switch (random.nextInt(3)) {
+			case 0:
+				garbled.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+				break;
+			case 1:
+				break;
+			default:
+				garbled.append(c).append(c);
+			}
+		}
+		return garbled.toString();
+	}
+
+	static class SoftCountBenchmark extends Benchmark {
+		final String engine;
+		final boolean dense;
+		TaggedLattice[] lattices;
+		FlatLatticeParser parser;
+		DMVVector counts;
+
+		SoftCountBenchmark(String engine, boolean dense) {
+			super("LatticeParser.softCounts/" + engine + (dense ? "/dense" : "/single-path"),
+					dense ? 20 : 200);
+			this.engine = engine;
+			this.dense = dense;
+		}
+
+		@Override
+		void setUp(Random random) {
+			DMVVector model = FlatLatticeParser.randomModel(random, NUM_TAGS);
+			lattices = new TaggedLattice[operations];
+			for (int i = 0; i < lattices.length; i++) {
+				lattices[i] = FlatLatticeParser.randomLattice(
+						random, SENTENCE_LENGTH, dense ? 4 : 1, dense, NUM_TAGS);
+			}
+			parser = new FlatLatticeParser(new CompiledDMVScorer(model));
+			parser.setReuseChart(true);
+			parser.setScaled(engine.endsWith("-scaled"));
+			parser.setMode(LatticeParser.Mode.INSIDE);
+			counts = new DMVVector(model.getVocabulary());
+		}
+
+		@Override
+		double run(int i) {
+			parser.softCountNextParse(counts, 1.0);
+			parser.parse(lattices[i]);
+			return parser.sentProb();
+		}
+	}
+
+	static class AlignerBenchmark extends Benchmark {
+		final boolean flat;
+		final boolean forwardBackward;
+		String[] inputs;
+		String[] outputs;
+		SegmentModel model = new SegmentModel.UniformSegmentModel(
+				0.9, 0.001, 0.001, 0.001, 0.0, 0.0);
+		FlatSegmentAligner flatAligner = new FlatSegmentAligner(model, 15);
+
+		AlignerBenchmark(boolean flat, boolean forwardBackward) {
+			super((flat ? "FlatSegmentAligner." : "SegmentAligner.")
+					+ (forwardBackward ? "forwardBackward" : "populate"), 200);
+			this.flat = flat;
+			this.forwardBackward = forwardBackward;
+		}
+
+		@Override
+		void setUp(Random random) {
+			// lines of newspaper-column width and their OCR output
+			inputs = new String[operations];
+			outputs = new String[operations];
+			for (int i = 0; i < operations; i++) {
+				StringBuilder line = new StringBuilder();
+				while (line.length() < 60)
+					line.append(randomWord(random)).append(' ');
+				inputs[i] = line.toString().trim();
+				outputs[i] = garble(random, inputs[i], 0.05);
+			}
+		}
+
+		@Override
+		double run(int i) {
+			if (flat) {
+				flatAligner.populate(inputs[i], outputs[i]);
+				return forwardBackward
+						? flatAligner.forwardBackward() : flatAligner.probOfBestAlignment();
+			}
+			SegmentAligner aligner = new SegmentAligner(model, inputs[i], outputs[i], 15);
+			aligner.populate();
+			return forwardBackward ? aligner.forwardBackward() : aligner.probOfBestAlignment();
+		}
+	}
+
+	static class DictionaryBenchmark extends Benchmark {
+		static final int NUM_WORDS = 200000;
+
+		final boolean reference;
+		InexactDictionary dictionary;
+		HashMapInexactDictionary referenceDictionary;
+		String[] queries;
+
+		DictionaryBenchmark(boolean reference) {
+			super(reference ? "HashMapInexactDictionary.topMatches" : "InexactDictionary.topMatches",
+					1000);
+			this.reference = reference;
+		}
+
+		@Override
+		void setUp(Random random) {
+			List<String> words = new ArrayList<String>();
+			dictionary = new InexactDictionary();
+			referenceDictionary = new HashMapInexactDictionary();
+			for (int i = 0; i < NUM_WORDS; i++) {
+				String word = randomWord(random);
+				words.add(word);
+				if (reference)
+					referenceDictionary.addWord(word);
+				else
+					dictionary.addWord(word);
+			}
+			dictionary.complete();
+
+			queries = new String[operations];
+			for (int i = 0; i < operations; i++) {
+				String word = garble(random, words.get(random.nextInt(words.size())), 0.15);
+				queries[i] = word.isEmpty() ? "a" : word;
+			}
+		}
+
+		@Override
+		double run(int i) {
+			if (reference)
+				return referenceDictionary.topMatches(queries[i], 10).length;
+			return dictionary.topMatches(queries[i], 10).length;
+		}
+	}
+
+	static class LanguageModelBenchmark extends Benchmark {
+		NGramLanguageModel lm;
+		String[][] sentences;
+
+		LanguageModelBenchmark() {
+			super("NGramLanguageModel.probOfSentence", 1000);
+		}
+
+		@Override
+		void setUp(Random random) throws IOException {
+			String[] vocab = new String[5000];
+			for (int i = 0; i < vocab.length; i++)
+				vocab[i] = randomWord(random) + i;
+
+			File arpaFile = File.createTempFile("benchmark", ".arpa");
+			arpaFile.deleteOnExit();
+			writeRandomTrigramModel(random, vocab, 100000, arpaFile);
+			lm = new NGramLanguageModel(arpaFile, 3);
+			arpaFile.delete();
+
+			sentences = new String[operations][SENTENCE_LENGTH];
+			for (String[] sentence: sentences) {
+				for (int j = 0; j < sentence.length; j++) {
+					sentence[j] = random.nextInt(50) == 0
+							? randomWord(random) // OOV
+							: vocab[zipf(random, vocab.length)];
+				}
+			}
+		}
+
+		@Override
+		double run(int i) {
+			return lm.probOfSentence(sentences[i]);
+		}
+	}
+
+	/** Random index in [0, n) with a roughly Zipfian distribution. */
+	static int zipf(Random random, int n) {
+		return (int) Math.min(n - 1, Math.exp(random.nextDouble() * Math.log(n + 1)) - 1);
+	}
+
+	/**
+	 * Write a backoff trigram model in ARPA format, with all unigrams and numNGrams random
+	 * bigrams and trigrams. The probabilities are random, not normalized.
+	 */
+	static void writeRandomTrigramModel(Random random, String[] vocab, int numNGrams, File file)
+			throws IOException
+	{
+		writeRandomTrigramModel(random, vocab, numNGrams, 0, file);
+	}
+	
+	/**
+	 * Like writeRandomTrigramModel(random, vocab, numNGrams, file), plus numOrphans trigrams
+	 * whose two-word prefixes are not bigrams of the model, as in a pruned model. Returns the
+	 * orphan trigrams.
+	 */
+	static List<String[]> writeRandomTrigramModel(
+			Random random, String[] vocab, int numNGrams, int numOrphans, File file)
+			throws IOException
+	{
+		List<String> unigrams = new ArrayList<String>(Arrays.asList(vocab));
+		unigrams.add(NGramLanguageModel.START_SYM);
+		unigrams.add(NGramLanguageModel.END_SYM);
+		unigrams.add(NGramLanguageModel.UNK_SYM);
+
+		List<String> bigrams = new ArrayList<String>();
+		for (int i = 0; i < numNGrams; i++)
+			bigrams.add(vocab[zipf(random, vocab.length)] + " " + vocab[zipf(random, vocab.length)]);
+		List<String> trigrams = new ArrayList<String>();
+		for (int i = 0; i < numNGrams; i++)
+			trigrams.add(bigrams.get(random.nextInt(bigrams.size())) + " "
+					+ vocab[zipf(random, vocab.length)]);
+		HashSet<String> bigramSet = new HashSet<String>(bigrams);
+		List<String[]> orphans = new ArrayList<String[]>();
+		while (orphans.size() < numOrphans) {
+			String[] trigram = new String[3];
+			for (int j = 0; j < 3; j++)
+				trigram[j] = vocab[random.nextInt(vocab.length)];
+			if (!bigramSet.contains(trigram[0] + " " + trigram[1])) {
+				orphans.add(trigram);
+				trigrams.add(Util.join(" ", trigram));
+			}
+		}
+
+		PrintWriter out = new PrintWriter(
+				new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		out.println("\\data\\");
+		out.println("ngram 1=" + unigrams.size());
+		out.println("ngram 2=" + bigrams.size());
+		out.println("ngram 3=" + trigrams.size());
+		out.println();
+		out.println("\\1-grams:");
+		for (String unigram: unigrams)
+			out.printf("%.4f\t%s\t%.4f\n", -1 - 4 * random.nextDouble(), unigram,
+					-random.nextDouble());
+		out.println();
+		out.println("\\2-grams:");
+		for (String bigram: bigrams)
+			out.printf("%.4f\t%s\t%.4f\n", -3 * random.nextDouble(), bigram, -random.nextDouble());
+		out.println();
+		out.println("\\3-grams:");
+		for (String trigram: trigrams)
+			out.printf("%.4f\t%s\n", -2 * random.nextDouble(), trigram);
+		out.println();
+		out.println("\\end\\");
+		out.close();
+		return orphans;
+	}
+
+	static class LogSumBenchmark extends Benchmark {
+		double[] xs;
+		double[] ys;
+
+		LogSumBenchmark() {
+			super("Util.logSum", 1000000);
+		}
+
+		@Override
+		void setUp(Random random) {
+			xs = new double[operations];
+			ys = new double[operations];
+			for (int i = 0; i < operations; i++) {
+				xs[i] = -50 * random.nextDouble();
+				ys[i] = random.nextInt(10) == 0
+						? Double.NEGATIVE_INFINITY : -50 * random.nextDouble();
+			}
+		}
+
+		@Override
+		double run(int i) {
+			return Util.logSum(xs[i], ys[i]);
+		}
+	}
+
+	/**
+	 * Summing runs of log probabilities the size of a typical chart cell's arcs, either with a
+	 * chain of Util.logSum() calls or with one Util.logSumExp().
+	 */
+	static class LogSumExpBenchmark extends Benchmark {
+		static final int TERMS = 8;
+		final boolean batched;
+		double[] xs;
+
+		LogSumExpBenchmark(boolean batched) {
+			super((batched ? "Util.logSumExp" : "Util.logSum chain") + "/" + TERMS + " terms",
+					200000);
+			this.batched = batched;
+		}
+
+		@Override
+		void setUp(Random random) {
+			xs = new double[TERMS * operations];
+			for (int i = 0; i < xs.length; i++) {
+				xs[i] = random.nextInt(10) == 0
+						? Double.NEGATIVE_INFINITY : -50 * random.nextDouble();
+			}
+		}
+
+		@Override
+		double run(int i) {
+			if (batched)
+				return Util.logSumExp(xs, TERMS * i, TERMS * (i + 1));
+			double sum = Double.NEGATIVE_INFINITY;
+			for (int j = TERMS * i; j < TERMS * (i + 1); j++)
+				sum = Util.logSum(sum, xs[j]);
+			return sum;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		CommandLineParser clp = new CommandLineParser(
+				"-list -filter=s -warmup=i -iterations=i", args);
+		String filter = clp.opt("-filter", "");
+		int warmupIterations = clp.opt("-warmup", 5);
+		int iterations = clp.opt("-iterations", 10);
+
+		for (Benchmark benchmark: allBenchmarks()) {
+			if (!benchmark.name.contains(filter))
+				continue;
+			if (clp.opt("-list")) {
+				System.out.println(benchmark.name);
+				continue;
+			}
+			benchmark.setUp(new Random(SEED));
+			measure(benchmark, warmupIterations, iterations);
+		}
+	}
+}
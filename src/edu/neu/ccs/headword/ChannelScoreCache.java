@@ -0,0 +1,255 @@
+package edu.neu.ccs.headword;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.neu.ccs.headword.util.Log;
+import edu.neu.ccs.headword.util.RunConfig;
+
+/**
+ * An LRU cache of the channel model's best alignment probabilities of (candidate, OCR span)
+ * pairs, which recur constantly within and across documents. The cache is bounded by an
+ * estimate of its size in bytes, and is split into independently locked shards so that
+ * LatticeBuilder's threads can share it. It can be saved to and reloaded from a file, which
+ * records the identity of the channel model the probabilities came from.
+ */
+public class ChannelScoreCache {
+
+	static final int NUM_SHARDS = 16;
+	static final int ENTRY_OVERHEAD = 120; // bytes per entry besides the key's chars
+	static final char SEPARATOR = '\u0000';
+	static final int FILE_VERSION = 1;
+
+	static class Shard extends LinkedHashMap<String, Double> {
+		private static final long serialVersionUID = 1L;
+
+		long bytes = 0;
+
+		Shard() {
+			super(16, 0.75f, true);
+		}
+	}
+
+	final String modelIdentity;
+	final long maxBytes;
+	final Shard[] shards;
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong evictions = new AtomicLong();
+
+	public ChannelScoreCache(String modelIdentity, long maxBytes) {
+		this.modelIdentity = modelIdentity;
+		this.maxBytes = maxBytes;
+		shards = new Shard[NUM_SHARDS];
+		for (int i = 0; i < NUM_SHARDS; i++)
+			shards[i] = new Shard();
+	}
+
+	/**
+	 * The cache for the channel model configured by config, shared by every LatticeBuilder using
+	 * the same model, or null if channel.cache-mb is 0. If channel.cache-file is set and exists,
+	 * the cache is loaded from it.
+	 */
+	public static ChannelScoreCache fromConfig(RunConfig config) throws IOException {
+		double megabytes = config.getDouble("channel.cache-mb", 64);
+		if (megabytes <= 0)
+			return null;
+		String fileName = config.getString("channel.cache-file", null);
+		File file = fileName == null ? null : config.getDataFile("channel.cache-file");
+		return getInstance(modelIdentity(config), (long) (megabytes * 1024 * 1024), file,
+				config.getLog());
+	}
+
+	/**
+	 * A description of everything the alignment probabilities depend on: the channel model file
+	 * and its smoothing and search settings. (Not channel.weight, which is applied afterwards.)
+	 */
+	static String modelIdentity(RunConfig config) throws IOException {
+		File modelFile = config.getDataFile("channel.model");
+		return modelFile.getAbsolutePath()
+				+ " " + modelFile.length()
+				+ " " + modelFile.lastModified()
+				+ " " + config.getDouble("channel.smoothing.repro-prob")
+				+ " " + config.getDouble("channel.smoothing.subst-prob")
+				+ " " + config.getDouble("channel.smoothing.ins-prob-factor")
+				+ " " + config.getDouble("channel.smoothing.del-prob-factor")
+				+ " " + config.getDouble("channel.smoothing.lambda")
+				+ " " + config.getInt("channel.beam-width", 3);
+	}
+
+	private static HashMap<String, ChannelScoreCache> instances =
+			new HashMap<String, ChannelScoreCache>();
+
+	public static synchronized ChannelScoreCache getInstance(
+			String modelIdentity, long maxBytes, File file, Log log) throws IOException
+	{
+		String key = modelIdentity + ":" + maxBytes + ":" + file;
+		ChannelScoreCache instance = instances.get(key);
+		if (instance == null) {
+			instance = new ChannelScoreCache(modelIdentity, maxBytes);
+			if (file != null && file.exists())
+				instance.load(file, log);
+			instances.put(key, instance);
+		}
+		return instance;
+	}
+
+	static String key(String candidate, String span) {
+		return candidate + SEPARATOR + span;
+	}
+
+	Shard shard(String key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return shards[h & (NUM_SHARDS - 1)];
+	}
+
+	static long entryBytes(String key) {
+		return 2L * key.length() + ENTRY_OVERHEAD;
+	}
+
+	/** The cached probability of the best alignment of span to candidate, or null. */
+	public Double get(String candidate, String span) {
+		String key = key(candidate, span);
+		Shard shard = shard(key);
+		Double prob;
+		synchronized (shard) {
+			prob = shard.get(key);
+		}
+		if (prob == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return prob;
+	}
+
+	public void put(String candidate, String span, double prob) {
+		put(key(candidate, span), prob);
+	}
+
+	void put(String key, double prob) {
+		Shard shard = shard(key);
+		long maxShardBytes = maxBytes / NUM_SHARDS;
+		synchronized (shard) {
+			if (shard.put(key, prob) == null)
+				shard.bytes += entryBytes(key);
+			Iterator<Map.Entry<String, Double>> iter = shard.entrySet().iterator();
+			while (shard.bytes > maxShardBytes && iter.hasNext()) {
+				String eldest = iter.next().getKey();
+				iter.remove();
+				shard.bytes -= entryBytes(eldest);
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Shard shard: shards) {
+			synchronized (shard) {
+				size += shard.size();
+			}
+		}
+		return size;
+	}
+
+	public long bytes() {
+		long bytes = 0;
+		for (Shard shard: shards) {
+			synchronized (shard) {
+				bytes += shard.bytes;
+			}
+		}
+		return bytes;
+	}
+
+	public double hitRate() {
+		long lookups = hits.get() + misses.get();
+		return lookups == 0 ? 0.0 : (double) hits.get() / lookups;
+	}
+
+	public String summary() {
+		return String.format(
+				"Channel score cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, "
+						+ "%d entries (%.1f MB)",
+				hits.get(), misses.get(), 100 * hitRate(), evictions.get(), size(),
+				bytes() / (1024.0 * 1024.0));
+	}
+
+	/**
+	 * Save the cache's entries, least recently used first. The file is written under another
+	 * name and then renamed, so a concurrent or interrupted save leaves the old file intact.
+	 */
+	public synchronized void save(File file) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(FILE_VERSION);
+			out.writeUTF(modelIdentity);
+			for (Shard shard: shards) {
+				synchronized (shard) {
+					out.writeInt(shard.size());
+					for (Map.Entry<String, Double> entry: shard.entrySet()) {
+						out.writeUTF(entry.getKey());
+						out.writeDouble(entry.getValue());
+					}
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (!tempFile.renameTo(file)) {
+			file.delete();
+			if (!tempFile.renameTo(file))
+				throw new IOException("Unable to rename " + tempFile + " to " + file);
+		}
+	}
+
+	/**
+	 * Add the entries of a file written by save(), unless it was written for a different
+	 * channel model.
+	 */
+	public void load(File file, Log log) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int version = in.readInt();
+			if (version != FILE_VERSION)
+				throw new IOException("Unknown channel score cache version in " + file);
+			String fileIdentity = in.readUTF();
+			if (!fileIdentity.equals(modelIdentity)) {
+				if (log != null)
+					log.log("Ignoring channel score cache for a different model: " + file);
+				return;
+			}
+			int entries = 0;
+			for (int s = 0; s < NUM_SHARDS; s++) {
+				int shardSize = in.readInt();
+				for (int i = 0; i < shardSize; i++) {
+					String key = in.readUTF();
+					put(key, in.readDouble());
+				}
+				entries += shardSize;
+			}
+			if (log != null)
+				log.logf("Loaded %d channel scores from %s", entries, file);
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package edu.neu.ccs.headword;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import edu.neu.ccs.headword.Alignment.AlignedLine;
+import edu.neu.ccs.headword.Alignment.Segment;
+import edu.neu.ccs.headword.SegmentModel.UniformSegmentModel;
+import edu.neu.ccs.headword.util.CommandLineParser;
+import edu.neu.ccs.headword.util.Counter;
+import edu.neu.ccs.headword.util.RunConfig;
+
+/**
+ * An InterpolatedSegmentModel of a MergeSplitSegmentModel and a UniformSegmentModel, compiled
+ * into dense tables indexed by character ids. The interpolated probabilities of every
+ * substitution, insertion and deletion are computed when the model is built, so prob() is
+ * usually just a table lookup. The only exception is a character followed by a bigram with a
+ * non-merge probability, which changes the foreground probability and so needs the
+ * interpolation at lookup time. Other segments (merges and splits) go to the original models.
+ * The results are identical to InterpolatedSegmentModel's.
+ */
+public class CompiledSegmentModel
+	implements SegmentModel, FlatSegmentAligner.CharSegmentModel
+{
+	static final int MAX_CHARS = 4096;
+
+	final InterpolatedSegmentModel original;
+	final MergeSplitSegmentModel foreground;
+	final double lambda;
+
+	// Character ids are 1 to numChars - 1; 0 is any character not in the model
+	final char[] charIds = new char[Character.MAX_VALUE + 1];
+	final int numChars;
+
+	// Raw foreground log probs (for the non-merge case), and interpolated log probs. A
+	// substitution of a with b is at [id(a) * numChars + id(b)].
+	final double[] foregroundSubst;
+	final double[] foregroundInsert;
+	final double[] foregroundDelete;
+	final double[] subst;
+	final double[] insert;
+	final double[] delete;
+
+	// Background log probs, and the interpolated probabilities of unknown segments
+	final double backgroundRepro;
+	final double backgroundSubst;
+	final double backgroundInsert;
+	final double backgroundDelete;
+	final double unknownRepro;
+	final double unknownSubst;
+	final double unknownInsert;
+	final double unknownDelete;
+
+	// Open-addressed table of the non-merge log probs of bigrams: key (a << 16 | b) + 1, 0 if empty
+	final long[] nonmergeKeys;
+	final double[] nonmergeProbs;
+	final int nonmergeMask;
+
+	public CompiledSegmentModel(InterpolatedSegmentModel model) {
+		if (!(model.foregroundModel instanceof MergeSplitSegmentModel)
+				|| !(model.backgroundModel instanceof UniformSegmentModel))
+		{
+			throw new Error("Only a MergeSplitSegmentModel interpolated with a "
+					+ "UniformSegmentModel can be compiled");
+		}
+		original = model;
+		foreground = (MergeSplitSegmentModel) model.foregroundModel;
+		lambda = model.lambda;
+		SegmentModel background = model.backgroundModel;
+
+		int n = 1;
+		for (Segment segment: foreground.segmentProbs.keySet()) {
+			for (String s: new String[] {segment.input, segment.output}) {
+				for (int k = 0; k < s.length(); k++) {
+					char c = s.charAt(k);
+					if (charIds[c] == 0) {
+						if (n == MAX_CHARS)
+							throw new Error("Too many characters in the channel model");
+						charIds[c] = (char) n++;
+					}
+				}
+			}
+		}
+		numChars = n;
+
+		backgroundRepro = background.prob(new Segment("a", "a"), "a", 0);
+		backgroundSubst = background.prob(new Segment("a", "b"), "a", 0);
+		backgroundInsert = background.prob(new Segment("", "a"), "a", 0);
+		backgroundDelete = background.prob(new Segment("a", ""), "a", 0);
+		unknownRepro = interpolate(Double.NEGATIVE_INFINITY, backgroundRepro);
+		unknownSubst = interpolate(Double.NEGATIVE_INFINITY, backgroundSubst);
+		unknownInsert = interpolate(Double.NEGATIVE_INFINITY, backgroundInsert);
+		unknownDelete = interpolate(Double.NEGATIVE_INFINITY, backgroundDelete);
+
+		foregroundSubst = new double[numChars * numChars];
+		foregroundInsert = new double[numChars];
+		foregroundDelete = new double[numChars];
+		Arrays.fill(foregroundSubst, Double.NEGATIVE_INFINITY);
+		Arrays.fill(foregroundInsert, Double.NEGATIVE_INFINITY);
+		Arrays.fill(foregroundDelete, Double.NEGATIVE_INFINITY);
+		for (Entry<Segment, Double> entry: foreground.segmentProbs.entrySet()) {
+			String in = entry.getKey().input;
+			String out = entry.getKey().output;
+			if (in.length() == 1 && out.length() == 1)
+				foregroundSubst[charIds[in.charAt(0)] * numChars + charIds[out.charAt(0)]] =
+						entry.getValue();
+			else if (in.length() == 0 && out.length() == 1)
+				foregroundInsert[charIds[out.charAt(0)]] = entry.getValue();
+			else if (in.length() == 1 && out.length() == 0)
+				foregroundDelete[charIds[in.charAt(0)]] = entry.getValue();
+		}
+
+		subst = new double[numChars * numChars];
+		insert = new double[numChars];
+		delete = new double[numChars];
+		for (int a = 0; a < numChars; a++) {
+			for (int b = 0; b < numChars; b++) {
+				subst[a * numChars + b] = interpolate(foregroundSubst[a * numChars + b],
+						a == b ? backgroundRepro : backgroundSubst);
+			}
+			insert[a] = interpolate(foregroundInsert[a], backgroundInsert);
+			delete[a] = interpolate(foregroundDelete[a], backgroundDelete);
+		}
+
+		int capacity = 2;
+		while (capacity < 2 * foreground.nonmergeProbs.size())
+			capacity *= 2;
+		nonmergeKeys = new long[capacity];
+		nonmergeProbs = new double[capacity];
+		nonmergeMask = capacity - 1;
+		for (Entry<String, Double> entry: foreground.nonmergeProbs.entrySet()) {
+			String bigram = entry.getKey();
+			if (bigram.length() != 2)
+				continue;
+			long key = bigramKey(bigram.charAt(0), bigram.charAt(1));
+			int slot = nonmergeSlot(key);
+			nonmergeKeys[slot] = key;
+			nonmergeProbs[slot] = entry.getValue();
+		}
+	}
+
+	public static SegmentModel fromConfig(RunConfig config)
+			throws IOException, ClassNotFoundException
+	{
+		InterpolatedSegmentModel model =
+				new InterpolatedSegmentModel(config, new MergeSplitSegmentModel(config));
+		if (!config.getBoolean("channel.compiled", true))
+			return model;
+		return new CompiledSegmentModel(model);
+	}
+
+	/** Exactly InterpolatedSegmentModel's arithmetic. */
+	double interpolate(double foregroundProb, double backgroundProb) {
+		return Math.log(lambda * Math.exp(foregroundProb) +
+			(1.0-lambda) * Math.exp(backgroundProb));
+	}
+
+	static long bigramKey(char a, char b) {
+		return ((long) a << 16 | b) + 1;
+	}
+
+	int nonmergeSlot(long key) {
+		int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & nonmergeMask;
+		while (nonmergeKeys[slot] != 0 && nonmergeKeys[slot] != key)
+			slot = (slot + 1) & nonmergeMask;
+		return slot;
+	}
+
+	/**
+	 * The foreground non-merge log prob of the character at i, or NaN if there is none, in
+	 * which case MergeSplitSegmentModel adds nothing.
+	 */
+	double nonmergeProb(String input, int i) {
+		if (i >= input.length() - 1)
+			return Double.NaN;
+		int slot = nonmergeSlot(bigramKey(input.charAt(i), input.charAt(i + 1)));
+		return nonmergeKeys[slot] == 0 ? Double.NaN : nonmergeProbs[slot];
+	}
+
+	@Override
+	public double prob(
+			String input, int i, int inputLength, String output, int j, int outputLength)
+	{
+		if (inputLength == 1 && outputLength == 1) {
+			char a = input.charAt(i);
+			char b = output.charAt(j);
+			int aId = charIds[a];
+			int bId = charIds[b];
+			double nonmerge = nonmergeProb(input, i);
+			if (Double.isNaN(nonmerge)) {
+				if (aId == 0 || bId == 0)
+					return a == b ? unknownRepro : unknownSubst;
+				return subst[aId * numChars + bId];
+			}
+			return interpolate(foregroundSubst[aId * numChars + bId] + nonmerge,
+					a == b ? backgroundRepro : backgroundSubst);
+		}
+		else if (inputLength == 0 && outputLength == 1) {
+			return insert[charIds[output.charAt(j)]];
+		}
+		else if (inputLength == 1 && outputLength == 0) {
+			int aId = charIds[input.charAt(i)];
+			double nonmerge = nonmergeProb(input, i);
+			if (Double.isNaN(nonmerge))
+				return aId == 0 ? unknownDelete : delete[aId];
+			return interpolate(foregroundDelete[aId] + nonmerge, backgroundDelete);
+		}
+		else {
+			Segment segment = new Segment(input.substring(i, i + inputLength),
+					output.substring(j, j + outputLength));
+			return original.prob(segment, input, i);
+		}
+	}
+
+	@Override
+	public double prob(Segment segment, String input, int i) {
+		int inputLength = segment.input.length();
+		int outputLength = segment.output.length();
+		if (inputLength + outputLength == 1 || (inputLength == 1 && outputLength == 1))
+			return prob(input, i, inputLength, segment.output, 0, outputLength);
+		return original.prob(segment, input, i);
+	}
+
+	@Override
+	public void print(PrintStream out) {
+		original.print(out);
+	}
+
+	@Override
+	public void print(String filename) throws IOException {
+		original.print(filename);
+	}
+
+	@Override
+	public void save(String filename) throws IOException {
+		foreground.save(filename);
+	}
+
+	/**
+	 * A MergeSplitSegmentModel of random lines and random segment counts, including merges (which
+	 * the trained models don't have, but which give non-merge probabilities).
+	 */
+	static MergeSplitSegmentModel randomModel(Random random) {
+		List<AlignedLine> lines = new ArrayList<AlignedLine>();
+		for (int t = 0; t < 500; t++) {
+			AlignedLine line = new AlignedLine();
+			line.input = FlatSegmentAligner.randomLine(random, 40);
+			line.output = Benchmarks.garble(random, line.input, 0.1);
+			lines.add(line);
+		}
+		String alphabet = "abcdefghijklmnopqrstuvwxyz .,";
+		Counter<Segment> counts = new Counter<Segment>();
+		for (int k = 0; k < 3000; k++) {
+			String a = String.valueOf(alphabet.charAt(random.nextInt(alphabet.length())));
+			String b = String.valueOf(alphabet.charAt(random.nextInt(alphabet.length())));
+			switch (random.nextInt(5)) {
+			case 0: counts.add(new Segment(a, a), 100 * random.nextDouble()); break;
+			case 1: counts.add(new Segment(a, b), random.nextDouble()); break;
+			case 2: counts.add(new Segment("", b), random.nextDouble()); break;
+			case 3: counts.add(new Segment(a, ""), random.nextDouble()); break;
+			default:
+				String line = lines.get(random.nextInt(lines.size())).input;
+				int i = random.nextInt(line.length() - 1);
+				counts.add(new Segment(line.substring(i, i + 2), a), random.nextDouble());
+				break;
+			}
+		}
+		return new MergeSplitSegmentModel(lines, counts);
+	}
+
+	/**
+	 * Check that prob() matches InterpolatedSegmentModel's for every segment shape on random
+	 * strings, and compare their speeds.
+	 */
+	static void compareTest(MergeSplitSegmentModel foreground, double lambda, int trials) {
+		InterpolatedSegmentModel interpolated = new InterpolatedSegmentModel(foreground,
+				new UniformSegmentModel(0.9, 0.0001, 0.0001, 0.0001, 0.0, 0.0), lambda);
+		CompiledSegmentModel compiled = new CompiledSegmentModel(interpolated);
+		System.out.printf("%d characters, %d non-merge bigrams\n",
+				compiled.numChars - 1, foreground.nonmergeProbs.size());
+
+		// Mostly characters in the model, plus a few that aren't
+		StringBuilder alphabet = new StringBuilder("\u2603\u00e0#");
+		for (char c = 0; c < Character.MAX_VALUE; c++)
+			if (compiled.charIds[c] != 0)
+				alphabet.append(c);
+
+		Random random = new Random(0);
+		String[] inputs = new String[trials];
+		String[] outputs = new String[trials];
+		for (int t = 0; t < trials; t++) {
+			StringBuilder input = new StringBuilder();
+			StringBuilder output = new StringBuilder();
+			for (int k = 0; k < 2 + random.nextInt(20); k++) {
+				input.append(alphabet.charAt(random.nextInt(alphabet.length())));
+				output.append(random.nextInt(3) == 0
+						? alphabet.charAt(random.nextInt(alphabet.length()))
+						: input.charAt(k));
+			}
+			inputs[t] = input.toString();
+			outputs[t] = output.toString();
+		}
+
+		int mismatches = 0;
+		int[][] shapes = new int[][] {{1, 1}, {0, 1}, {1, 0}, {2, 1}, {1, 2}};
+		for (int t = 0; t < trials; t++) {
+			String input = inputs[t];
+			String output = outputs[t];
+			for (int i = 0; i < input.length(); i++) {
+				for (int[] shape: shapes) {
+					if (i + shape[0] > input.length() || i + shape[1] > output.length())
+						continue;
+					Segment segment = new Segment(input.substring(i, i + shape[0]),
+							output.substring(i, i + shape[1]));
+					double expected = interpolated.prob(segment, input, i);
+					double actual = compiled.prob(segment, input, i);
+					double charActual = compiled.prob(input, i, shape[0], output, i, shape[1]);
+					if (Double.compare(expected, actual) != 0
+							|| Double.compare(expected, charActual) != 0)
+					{
+						if (mismatches < 5) {
+							System.out.printf("Mismatch for %s at %d of '%s': %f, %f, %f\n",
+									segment, i, input, expected, actual, charActual);
+						}
+						mismatches++;
+					}
+				}
+			}
+		}
+		System.out.println(mismatches + " mismatches");
+
+		for (SegmentModel model: new SegmentModel[] {interpolated, compiled}) {
+			FlatSegmentAligner aligner = new FlatSegmentAligner(model, 3);
+			for (int round = 0; round < 3; round++) {
+				double sum = 0;
+				long start = System.nanoTime();
+				for (int t = 0; t < trials; t++)
+					sum += aligner.probOfBestAlignment(inputs[t], outputs[t]);
+				System.out.printf("%s: %.2f us/alignment (sum %f)\n",
+						model.getClass().getSimpleName(),
+						(System.nanoTime() - start) / 1e3 / trials, sum);
+			}
+		}
+	}
+
+	/**
+	 * CompiledSegmentModel -compare (model-file | -random) [-lambda f] [-trials i]
+	 */
+	public static void main(String[] args) throws Exception {
+		CommandLineParser clp = new CommandLineParser(
+				"-compare -random -lambda=f -trials=i", args);
+		MergeSplitSegmentModel foreground = null;
+		if (clp.opt("-random"))
+			foreground = randomModel(new Random(0));
+		else if (clp.args().length == 1)
+			foreground = new MergeSplitSegmentModel(new File(clp.args()[0]));
+
+		if (clp.opt("-compare") && foreground != null) {
+			compareTest(foreground, clp.opt("-lambda", 0.95), clp.opt("-trials", 20000));
+		}
+		else {
+			System.err.println("Usage: CompiledSegmentModel -compare (model-file | -random)");
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package edu.neu.ccs.headword;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import edu.neu.ccs.headword.SimpleTokenizer.Token;
+
+/**
+ * Corrects a stream of OCR lines in bounded memory. Each line is tokenized, turned into a
+ * lattice, decoded and finally resolved to a corrected line (e.g. by rescoring an n-best list).
+ * The first three stages each run on their own thread, connected by queues of queueSize lines,
+ * and the last one runs on the calling thread, so at most about 3 * queueSize + 4 lines are in
+ * memory at once, and lattice building overlaps decoding. Lines are output in input order.
+ *
+ * L is the lattice type and D is the type of the decoder's result.
+ */
+public abstract class CorrectionPipeline<L, D> {
+
+	public interface Output {
+		void correctedLine(int lineNum, String ocrLine, String correctedLine) throws IOException;
+	}
+
+	static class Line<L, D> {
+		final int lineNum;
+		final String ocrLine;
+		List<Token> tokens;
+		L lattice;
+		D decoded;
+
+		Line(int lineNum, String ocrLine) {
+			this.lineNum = lineNum;
+			this.ocrLine = ocrLine;
+		}
+	}
+
+	int queueSize;
+
+	final Line<L, D> end = new Line<L, D>(-1, null);
+	volatile Throwable failure = null;
+
+	public CorrectionPipeline(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	protected abstract L buildLattice(int lineNum, List<Token> tokens) throws IOException;
+
+	protected abstract D decode(int lineNum, List<Token> tokens, L lattice) throws IOException;
+
+	protected abstract String correctedLine(
+			int lineNum, String ocrLine, List<Token> tokens, D decoded) throws IOException;
+
+	abstract class Stage extends Thread {
+		BlockingQueue<Line<L, D>> in;
+		BlockingQueue<Line<L, D>> out;
+
+		Stage(String name, BlockingQueue<Line<L, D>> in, BlockingQueue<Line<L, D>> out) {
+			super(name);
+			setDaemon(true);
+			this.in = in;
+			this.out = out;
+		}
+
+		Line<L, D> next() throws InterruptedException {
+			return in.take();
+		}
+
+		abstract void process(Line<L, D> line) throws IOException;
+
+		@Override public void run() {
+			try {
+				for (;;) {
+					Line<L, D> line = next();
+					if (line == end)
+						break;
+					process(line);
+					out.put(line);
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (Throwable e) {
+				failure = e;
+			}
+			try {
+				out.put(end);
+			}
+			catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Correct each of ocrLines, passing the results to output in order as they are finished.
+	 * ocrLines is read on a separate thread.
+	 */
+	public void run(final Iterator<String> ocrLines, Output output) throws IOException {
+		BlockingQueue<Line<L, D>> tokenized = new ArrayBlockingQueue<Line<L, D>>(queueSize);
+		BlockingQueue<Line<L, D>> built = new ArrayBlockingQueue<Line<L, D>>(queueSize);
+		BlockingQueue<Line<L, D>> decoded = new ArrayBlockingQueue<Line<L, D>>(queueSize);
+
+		List<Stage> stages = new ArrayList<Stage>(3);
+		stages.add(new Stage("tokenizer", null, tokenized) {
+			int lineNum = 0;
+			@Override Line<L, D> next() {
+				if (!ocrLines.hasNext())
+					return end;
+				return new Line<L, D>(lineNum++, ocrLines.next());
+			}
+			@Override void process(Line<L, D> line) {
+				line.tokens = SimpleTokenizer.tokenizePreservingWhitespace(line.ocrLine);
+			}
+		});
+		stages.add(new Stage("lattice-builder", tokenized, built) {
+			@Override void process(Line<L, D> line) throws IOException {
+				line.lattice = buildLattice(line.lineNum, line.tokens);
+			}
+		});
+		stages.add(new Stage("decoder", built, decoded) {
+			@Override void process(Line<L, D> line) throws IOException {
+				line.decoded = decode(line.lineNum, line.tokens, line.lattice);
+				line.lattice = null;
+			}
+		});
+
+		try {
+			for (Stage stage: stages)
+				stage.start();
+			for (;;) {
+				Line<L, D> line = decoded.take();
+				if (line == end)
+					break;
+				output.correctedLine(line.lineNum, line.ocrLine,
+						correctedLine(line.lineNum, line.ocrLine, line.tokens, line.decoded));
+			}
+		}
+		catch (InterruptedException e) {
+			throw new Error(e);
+		}
+		finally {
+			for (Stage stage: stages)
+				stage.interrupt();
+		}
+
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		else if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		else if (failure instanceof Error)
+			throw (Error) failure;
+		else if (failure != null)
+			throw new Error(failure);
+	}
+
+	/** The lines of reader, read as they are needed. IOExceptions are rethrown as Errors. */
+	public static Iterator<String> lines(final BufferedReader reader) {
+		return new Iterator<String>() {
+			String next = null;
+			boolean done = false;
+
+			@Override public boolean hasNext() {
+				if (next == null && !done) {
+					try {
+						next = reader.readLine();
+					}
+					catch (IOException e) {
+						throw new Error(e);
+					}
+					done = next == null;
+				}
+				return next != null;
+			}
+
+			@Override public String next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				String line = next;
+				next = null;
+				return line;
+			}
+
+			@Override public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
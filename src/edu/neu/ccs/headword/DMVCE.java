@@ -3,17 +3,20 @@ package edu.neu.ccs.headword;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 
 import static edu.neu.ccs.headword.util.GUtil.loadUtf8Lines;
 import static java.lang.System.arraycopy;
 
-import edu.neu.ccs.headword.LatticeParser.DMVVectorScorer;
+import edu.neu.ccs.headword.LatticeParser.CompiledDMVScorer;
 import edu.neu.ccs.headword.util.CommandLineParser;
 import edu.neu.ccs.headword.util.Counter;
 import edu.neu.ccs.headword.util.Util;
@@ -152,6 +155,9 @@ class DMVCE {
 		
 		int slices;
 		int parallel;
+		boolean flatChart = false;
+		boolean scaled = false;
+		boolean sparseGradient = false;
 		
 		StringLattice[] neighborhoods;
 
@@ -164,6 +170,14 @@ class DMVCE {
 		private DMVVector negGradient = null;
 		long startTime;
 		
+		// per-worker accumulators, reused across evaluations
+		DMVVector[] workerNegGradients = null;
+		double[] workerNegLikelihoods = null;
+		DMVVector denseNegGradient = null; // only used with sparseGradient
+		
+		long parseTime = 0;
+		long mergeTime = 0;
+		
 		LatticeParser.Scorer scorer = null;
 		
 		public DMVFunction(
@@ -247,23 +261,62 @@ class DMVCE {
 				System.err.println(e);
 			}
 
-			scorer = new DMVVectorScorer(model);
+			scorer = new CompiledDMVScorer(model);
 
 			
-			setNegLikelihood(0.0);
-			setNegGradient(new DMVVector(vocab));
+			if (workerNegGradients == null) {
+				workerNegGradients = new DMVVector[parallel];
+				for (int w = 0; w < parallel; w++)
+					workerNegGradients[w] = sparseGradient
+							? new SparseDMVVector(vocab) : new DMVVector(vocab);
+				workerNegLikelihoods = new double[parallel];
+				if (sparseGradient)
+					denseNegGradient = new DMVVector(vocab);
+			}
 
 			ExecutorService executorService = Executors.newFixedThreadPool(parallel);
-			for (int slice = 0; slice < slices; slice++)
-				executorService.execute(new ParserThread(slice));
-			executorService.shutdown();
+			
+			long parseStartTime, mergeStartTime;
 			try {
-				executorService.awaitTermination(99, TimeUnit.DAYS);
+				parseStartTime = System.currentTimeMillis();
+				List<Future<?>> workers = new ArrayList<Future<?>>();
+				for (int w = 0; w < parallel; w++)
+					workers.add(executorService.submit(new ParserThread(w)));
+				waitFor(workers);
+				
+				mergeStartTime = System.currentTimeMillis();
+				mergeWorkerGradients(executorService);
 			}
-			catch (InterruptedException e) {
-				throw new Error(e);
+			finally {
+				executorService.shutdown();
 			}
 			
+			double sum = 0.0;
+			for (int w = 0; w < parallel; w++)
+				sum += workerNegLikelihoods[w];
+			setNegLikelihood(sum);
+			if (sparseGradient) {
+				SparseDMVVector sparse = (SparseDMVVector) workerNegGradients[0];
+				if (debug)
+					System.out.printf("  gradient: %d of %d events nonzero\n",
+							sparse.size(), sparse.vectorSize());
+				Arrays.fill(denseNegGradient.vector, 0.0);
+				sparse.addTo(denseNegGradient.vector);
+				setNegGradient(denseNegGradient);
+			}
+			else {
+				setNegGradient(workerNegGradients[0]);
+			}
+			
+			long now = System.currentTimeMillis();
+			parseTime += mergeStartTime - parseStartTime;
+			mergeTime += now - mergeStartTime;
+			System.out.printf(
+					"Iteration %d: parse time %.2f sec; merge time %.2f sec " +
+					"(total %.2f / %.2f min)\n",
+					iteration, (mergeStartTime - parseStartTime) / 1000.0,
+					(now - mergeStartTime) / 1000.0,
+					parseTime / 60000.0, mergeTime / 60000.0);
 			
 			if (debug)
 				new DMVGrammar(negGradient).save(outputPrefix + iteration + ".gradient");
@@ -277,50 +330,96 @@ class DMVCE {
 		synchronized void setNegLikelihood(double val) {
 			negLikelihood = val;
 		}
-		synchronized void addToNegLikelihood(double val) {
-			negLikelihood += val;
-		}
-		
 		synchronized double[] getNegGradientVector() {
 			return Arrays.copyOf(negGradient.vector, negGradient.vector.length);
 		}
 		synchronized void setNegGradient(DMVVector val) {
 			negGradient = val;
 		}
-		synchronized void addToNegGradient(DMVVector val) {
-			negGradient.add(val);
+		
+		/**
+		 * Sum the worker gradients into workerNegGradients[0] by pairwise
+		 * tree reduction. The order of additions depends only on the number
+		 * of workers, so results are reproducible.
+		 */
+		void mergeWorkerGradients(ExecutorService executorService) {
+			for (int stride = 1; stride < parallel; stride *= 2) {
+				List<Future<?>> merges = new ArrayList<Future<?>>();
+				for (int w = 0; w + stride < parallel; w += 2*stride) {
+					final DMVVector into = workerNegGradients[w];
+					final DMVVector from = workerNegGradients[w + stride];
+					merges.add(executorService.submit(new Runnable() {
+						@Override
+						public void run() {
+							into.add(from);
+						}
+					}));
+				}
+				waitFor(merges);
+			}
+		}
+		
+		static void waitFor(List<Future<?>> futures) {
+			try {
+				for (Future<?> future: futures)
+					future.get();
+			}
+			catch (InterruptedException e) {
+				throw new Error(e);
+			}
+			catch (ExecutionException e) {
+				throw new Error(e.getCause());
+			}
 		}
 
+		/** Parses every parallel'th slice, accumulating into its worker's buffers. */
 		class ParserThread implements Runnable {
-			int slice;
+			int worker;
 			
-			public ParserThread(int slice) {
-				this.slice = slice;
+			public ParserThread(int worker) {
+				this.worker = worker;
 			}
 			
 			@Override
 			public void run() {
-				LatticeParser parser = new LatticeParser(scorer);
+				LatticeParser parser;
+				if (flatChart) {
+					FlatLatticeParser flatParser = new FlatLatticeParser(scorer);
+					flatParser.setReuseChart(true);
+					flatParser.setScaled(scaled);
+					parser = flatParser;
+				}
+				else {
+					parser = new LatticeParser(scorer);
+				}
+				// soft counts are collected during the outside pass
+				parser.setMode(LatticeParser.Mode.INSIDE);
 
 				double localNegLikelihood = 0.0;
-				DMVVector localNegGradient = new DMVVector(vocab);
+				DMVVector localNegGradient = workerNegGradients[worker];
+				if (sparseGradient)
+					((SparseDMVVector) localNegGradient).clear();
+				else
+					Arrays.fill(localNegGradient.vector, 0.0);
 				
 				Counter<Integer> lengthCounter = new Counter<Integer>();
 				
-				for (int i = slice; i < data.length; i += slices) {
-					String[] sent = data[i];
-					
-					parser.parse(sent);
-					localNegLikelihood -= parser.sentProb();
-					parser.addSoftCounts(localNegGradient, -1.0);
-
-					if (lengthOptimization) {
-						lengthCounter.increment(sent.length);
-					}
-					else {
-						parser.parse(neighborhoods[i]);
-						localNegLikelihood += parser.sentProb();
-						parser.addSoftCounts(localNegGradient, 1.0);
+				for (int slice = worker; slice < slices; slice += parallel) {
+					for (int i = slice; i < data.length; i += slices) {
+						String[] sent = data[i];
+						
+						parser.softCountNextParse(localNegGradient, -1.0);
+						parser.parse(sent);
+						localNegLikelihood -= parser.sentProb();
+
+						if (lengthOptimization) {
+							lengthCounter.increment(sent.length);
+						}
+						else {
+							parser.softCountNextParse(localNegGradient, 1.0);
+							parser.parse(neighborhoods[i]);
+							localNegLikelihood += parser.sentProb();
+						}
 					}
 				}
 
@@ -331,19 +430,18 @@ class DMVCE {
 						double count = lengthCount.getValue().value;
 						
 						StringLattice lattice = ((LengthNeighborhood) N).lattice(length);
+						parser.softCountNextParse(localNegGradient, count);
 						parser.parse(lattice);
 						localNegLikelihood += count * parser.sentProb();
-						parser.addSoftCounts(localNegGradient, count);
 					}
 				}
 
-				addToNegLikelihood(localNegLikelihood);
-				addToNegGradient(localNegGradient);
+				workerNegLikelihoods[worker] = localNegLikelihood;
 			}
 			
 			@Override
 			public String toString() {
-				return String.format("Parser Thread #%d/%d", slice, slices);
+				return String.format("Parser Thread #%d/%d", worker, parallel);
 			}
 		}
 	}
@@ -359,7 +457,7 @@ class DMVCE {
 		CommandLineParser clp = new CommandLineParser(
 			"-min-length=i -max-length=i -vocab=s -hood=s -lambda=f -weighted " +
 			"-input-model=s -default-weight=f -clustering=s " +
-			"-save-all -parallel=i -slices=i -debug",
+			"-save-all -parallel=i -slices=i -flat-chart -scaled -sparse-gradient -debug",
 			args);
 		
 		int minLength = clp.opt("-min-length", 0);
@@ -446,6 +544,10 @@ class DMVCE {
 		DMVFunction dmvFunction = new DMVFunction(neighborhood,
 				vocab, sentences, outputPrefix, startIteration, maxIterations, saveAll,
 				slices, parallel);
+		// -scaled runs inside-outside in real space, which requires (and implies) -flat-chart
+		dmvFunction.scaled = clp.opt("-scaled");
+		dmvFunction.flatChart = clp.opt("-flat-chart") || dmvFunction.scaled;
+		dmvFunction.sparseGradient = clp.opt("-sparse-gradient");
 		
 		QNMinimizer minimizer = new QNMinimizer(10, true);
 		if (!Double.isNaN(lambda))
@@ -83,6 +83,24 @@ class DMVCounter {
 		array[index] = Util.logSum(array[index], logCount)
 	}
 	
+	/** Add the counts of another counter (e.g. from a worker thread) to this one. */
+	void addAll(DMVCounter other) {
+		other.stopContinue.each { String word, double[] counts ->
+			Util.logSumInto(ensureValue(stopContinue, word, 8), counts)
+		}
+		other.stopContinueDenom.each { String word, double[] counts ->
+			Util.logSumInto(ensureValue(stopContinueDenom, word, 4), counts)
+		}
+		other.attach.each { Bigram bigram, double[] counts ->
+			Util.logSumInto(ensureValue(attach, bigram, 2), counts)
+		}
+		other.attachDenom.each { String word, double[] counts ->
+			Util.logSumInto(ensureValue(attachDenom, word, 2), counts)
+		}
+		totalDepEvents += other.totalDepEvents
+		totalStopEvents += other.totalStopEvents
+	}
+	
 	void saveCounts(String file) {
 		new File(file).withWriter("utf-8") { BufferedWriter writer ->
 			stopContinue.keySet().sort().each { String head ->
@@ -4,9 +4,11 @@ import static edu.neu.ccs.headword.util.Util.nvl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 import edu.neu.ccs.headword.util.CommandLineParser
-import edu.neu.ccs.headword.LatticeParser.DMVGrammarScorer;
+import edu.neu.ccs.headword.LatticeParser.CompiledDMVScorer
 import edu.neu.ccs.headword.LatticeParser.DMVScorer
 import edu.neu.ccs.headword.LatticeParser.DMVVectorScorer;
 
@@ -18,7 +20,7 @@ class DMVEM {
 			"-min-length=i -max-length=i -input-model=s -epsilon=f " +
 			"-clustering=s -viterbi -unk-prob=f -lex " + 
 			"-tag-smoothing=f -lex-model=s -lex-smoothing=s -lambda=f " +
-			"-debug -save-all", args)
+			"-debug -save-all -flat-chart -scaled -parallel=i", args)
 		
 		def inputModel = clp.opt('-input-model', null as String)
 		def dataFile = clp.arg(0)
@@ -38,6 +40,10 @@ class DMVEM {
 		def lambda = clp.opt("-lambda", Double.NaN); // weight of lexical model
 		debug = clp.opt("-debug")
 		def saveAll = clp.opt("-save-all")
+		// -scaled runs inside-outside in real space, which requires (and implies) -flat-chart
+		def scaled = clp.opt("-scaled")
+		def flatChart = clp.opt("-flat-chart") || scaled
+		int parallel = clp.opt("-parallel", 1)
 		
 		def clustering = null
 		if (clusteringFile != null)
@@ -56,13 +62,13 @@ class DMVEM {
 			inputModel = outputPrefix + '0.dmv'
 			writeHarmonicModel(inputModel, dataFile, clustering, minLength, maxLength)
 			
-			scorer = new DMVGrammarScorer(new DMVGrammar(inputModel))
+			scorer = new CompiledDMVScorer(new DMVGrammar(inputModel))
 		}
 		else if (inputModel == null) {
 			scorer = new LatticeParser.LetterScorer()
 		}
 		else if (inputModel.endsWith(".dmv")) {
-			scorer = new DMVGrammarScorer(new DMVGrammar(inputModel))
+			scorer = new CompiledDMVScorer(new DMVGrammar(inputModel))
 		}
 		else {
 			def tagModel = new TagDMV(inputModel + ".cnt", false, tagAlpha)
@@ -73,7 +79,7 @@ class DMVEM {
 				scorer = new DMVScorer(lexModel)
 			}
 			else {
-				scorer = new DMVScorer(tagModel)
+				scorer = new CompiledDMVScorer(tagModel)
 			}
 		}
 		
@@ -89,36 +95,36 @@ class DMVEM {
 		for (def t = startIteration; t <= iterations; t++) {
 			def iterStartTime = System.currentTimeMillis()
 			
-			def parser = new LatticeParser(scorer)
+			// E-step: each thread parses every parallel'th sentence into its own counters,
+			// which are then merged in thread order so that results are reproducible.
+			def shards = (0..<parallel).collect { int shard ->
+				def parser = newParser(scorer, flatChart, scaled)
+				// expected counts are collected during the outside pass, see below
+				parser.setMode(LatticeParser.Mode.INSIDE)
+				new EStepShard(
+					parser: parser,
+					sentences: sentences, shard: shard, shards: parallel,
+					clustering: clustering, viterbi: viterbi as boolean, lexicalized: lexicalized)
+			}
+			if (parallel == 1) {
+				shards[0].run()
+			}
+			else {
+				ExecutorService executorService = Executors.newFixedThreadPool(parallel)
+				def futures = shards.collect { executorService.submit(it as Runnable) }
+				executorService.shutdown()
+				futures*.get()
+			}
+			
 			def counter = new DMVCounter()
 			def lexCounter = new DMVCounter()
-			
 			def viterbiProb = 0.0D
 			def likelihood = 0.0D
-			
-			sentences.each { String[] sent ->
-				def parse
-				if (clustering == null)
-					parse = parser.parse(sent)
-				else
-					parse = parser.parse(sent, clustering)
-				
-				if (!viterbi)
-					parser.reestimate(counter)
-				else
-					parser.reestimateViterbi(counter, lexicalized ? lexCounter : null)
-					
-				viterbiProb += parser.viterbiProb()
-				likelihood += parser.sentProb()
-				
-				if (debug) {
-					println sent.join(' ')
-					printf "%f %f %s\n",
-						parser.viterbiProb(),
-						parser.sentProb(),
-						parse.toString()
-					println()
-				}
+			shards.each { EStepShard shard ->
+				counter.addAll(shard.counter)
+				lexCounter.addAll(shard.lexCounter)
+				viterbiProb += shard.viterbiProb
+				likelihood += shard.likelihood
 			}
 
 			if (!lexicalized) {
@@ -137,7 +143,7 @@ class DMVEM {
 					System.err.println(e);
 				}
 				
-				scorer = new DMVGrammarScorer(newGrammar)
+				scorer = new CompiledDMVScorer(newGrammar)
 			}
 			else {
 				def modelPath = outputPrefix + (saveAll ? t + '.cnt' : 'cnt')
@@ -170,6 +176,9 @@ class DMVEM {
 			printf "  iteration time: %.2f minutes; total time: %.2f minutes\n",
 				(System.currentTimeMillis() - iterStartTime) / 1000D / 60D,
 				(System.currentTimeMillis() - startTime) / 1000D / 60D
+			if (flatChart)
+				printf "  parser allocation: %.1f KB/sentence\n",
+					shards.sum { it.parser.allocatedBytesPerParse() } / parallel / 1e3
 
 			if (t > 2 && epsilon != 0.0D && improvement < epsilon)
 				break
@@ -178,6 +187,65 @@ class DMVEM {
 		}		
 	}
 	
+	static LatticeParser newParser(scorer, boolean flatChart, boolean scaled) {
+		if (flatChart) {
+			def parser = new FlatLatticeParser(scorer)
+			parser.setReuseChart(true)
+			parser.setScaled(scaled)
+			parser.setMeasureAllocation(true) // for the per-iteration report
+			parser
+		}
+		else {
+			new LatticeParser(scorer)
+		}
+	}
+	
+	static class EStepShard implements Runnable {
+		LatticeParser parser
+		List<String[]> sentences
+		int shard
+		int shards
+		Clustering clustering
+		boolean viterbi
+		boolean lexicalized
+		
+		DMVCounter counter = new DMVCounter()
+		DMVCounter lexCounter = new DMVCounter()
+		double viterbiProb = 0.0D
+		double likelihood = 0.0D
+		
+		void run() {
+			for (int i = shard; i < sentences.size(); i += shards) {
+				String[] sent = sentences[i]
+				if (!viterbi)
+					parser.countNextParse(counter, null)
+				
+				def parse
+				if (clustering == null)
+					parse = parser.parse(sent)
+				else
+					parse = parser.parse(sent, clustering)
+				
+				if (viterbi)
+					parser.reestimateViterbi(counter, lexicalized ? lexCounter : null)
+					
+				viterbiProb += parser.viterbiProb()
+				likelihood += parser.sentProb()
+				
+				if (debug) {
+					synchronized (System.out) {
+						println sent.join(' ')
+						printf "%f %f %s\n",
+							parser.viterbiProb(),
+							parser.sentProb(),
+							parse.toString()
+						println()
+					}
+				}
+			}
+		}
+	}
+	
 	static void writeHarmonicModel(
 		modelFile, corpusFile, Clustering clustering, int minLength, int maxLength)
 	{
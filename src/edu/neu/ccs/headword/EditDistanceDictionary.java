@@ -0,0 +1,401 @@
+package edu.neu.ccs.headword;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import edu.neu.ccs.headword.SegmentModel.UniformSegmentModel;
+import edu.neu.ccs.headword.util.CommandLineParser;
+import edu.neu.ccs.headword.util.TopNList;
+import edu.neu.ccs.headword.util.TopNList.ScoredItem;
+
+/**
+ * Looks up the words of an InexactDictionary within a few insertions, deletions and
+ * substitutions of an OCR string, ranked by an estimate of their channel probability. Strings
+ * of 5 or more characters may have up to maxEdits edits, and shorter ones just 1, since
+ * nearly every short word is within 2 edits of every other.
+ *
+ * Candidates come from a deletion-neighborhood index (as in SymSpell): every string made by
+ * deleting up to maxEdits characters from the first PREFIX_LENGTH characters of a word is
+ * hashed to the word, so a lookup only has to hash the same deletions of the OCR string.
+ * Each candidate is checked with a bounded edit distance, and then scored by the best
+ * alignment using only single-character substitutions, insertions and deletions, which is
+ * much cheaper than SegmentAligner's alignment but ranks candidates in nearly the same order.
+ * Lookups don't modify the dictionary, so it can be shared by threads.
+ */
+public class EditDistanceDictionary {
+
+	static final int PREFIX_LENGTH = 7;
+	static final long EMPTY = 0;
+
+	final String[] words;
+	final int maxEdits;
+	final FlatSegmentAligner.CharSegmentModel model;
+
+	// Open-addressed table from deletion hashes to ranges of postings
+	final long[] keys;
+	final int[] keyIds;
+	final int[] offsets;
+	final int[] postings;
+
+	/** Per-thread lookup state. */
+	static class Scratch {
+		int[] seen = new int[0];
+		int stamp = 0;
+		int[] row = new int[0];
+		int[] previousRow = new int[0];
+		double[] probs = new double[0];
+
+		void ensureCapacity(int numWords, int cells) {
+			if (seen.length < numWords) {
+				seen = new int[numWords];
+				stamp = 0;
+			}
+			if (row.length < cells) {
+				row = new int[cells];
+				previousRow = new int[cells];
+			}
+		}
+
+		/** A new stamp for seen, different from every one in it. */
+		int nextStamp() {
+			if (++stamp == Integer.MAX_VALUE) {
+				Arrays.fill(seen, 0);
+				stamp = 1;
+			}
+			return stamp;
+		}
+	}
+
+	static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * An index of the words dictionary has now. Words added to it later aren't included.
+	 */
+	public EditDistanceDictionary(
+			InexactDictionary dictionary, SegmentModel segmentModel, int maxEdits)
+	{
+		this.words = dictionary.words.toArray(new String[0]);
+		this.maxEdits = maxEdits;
+		this.model = FlatSegmentAligner.charModel(segmentModel);
+
+		// (deletion id << 32 | word index) for every distinct deletion of every word
+		int capacity = 1024;
+		long[] table = new long[capacity];
+		int[] tableIds = new int[capacity];
+		int numKeys = 0;
+		long[] pairs = new long[1024];
+		int numPairs = 0;
+		for (int w = 0; w < words.length; w++) {
+			for (String deletion: deletions(words[w], maxEdits)) {
+				long key = hash(deletion);
+				int slot = slot(table, key);
+				if (table[slot] != key) {
+					if (2 * (numKeys + 1) > capacity) {
+						long[] oldTable = table;
+						int[] oldIds = tableIds;
+						capacity *= 2;
+						table = new long[capacity];
+						tableIds = new int[capacity];
+						for (int i = 0; i < oldTable.length; i++) {
+							if (oldTable[i] != EMPTY) {
+								int newSlot = slot(table, oldTable[i]);
+								table[newSlot] = oldTable[i];
+								tableIds[newSlot] = oldIds[i];
+							}
+						}
+						slot = slot(table, key);
+					}
+					table[slot] = key;
+					tableIds[slot] = numKeys++;
+				}
+				if (numPairs == pairs.length)
+					pairs = Arrays.copyOf(pairs, 2 * numPairs);
+				pairs[numPairs++] = (long) tableIds[slot] << 32 | w;
+			}
+		}
+		keys = table;
+		keyIds = tableIds;
+
+		offsets = new int[numKeys + 1];
+		for (int i = 0; i < numPairs; i++)
+			offsets[(int) (pairs[i] >>> 32) + 1]++;
+		for (int k = 0; k < numKeys; k++)
+			offsets[k + 1] += offsets[k];
+		postings = new int[numPairs];
+		int[] next = Arrays.copyOf(offsets, numKeys);
+		for (int i = 0; i < numPairs; i++)
+			postings[next[(int) (pairs[i] >>> 32)]++] = (int) pairs[i];
+	}
+
+	public int size() {
+		return words.length;
+	}
+
+	/** The most edits a match for ocr may have. */
+	int maxEdits(String ocr) {
+		return Math.max(1, Math.min(maxEdits, (ocr.length() + 1) / 3));
+	}
+
+	/**
+	 * The distinct strings made by deleting up to maxEdits characters from word's prefix,
+	 * including the prefix itself.
+	 */
+	static Set<String> deletions(String word, int maxEdits) {
+		String prefix = word.length() > PREFIX_LENGTH ? word.substring(0, PREFIX_LENGTH) : word;
+		Set<String> results = new HashSet<String>();
+		results.add(prefix);
+		List<String> previous = new ArrayList<String>();
+		previous.add(prefix);
+		for (int d = 1; d <= maxEdits; d++) {
+			List<String> current = new ArrayList<String>();
+			for (String s: previous) {
+				for (int i = 0; i < s.length(); i++) {
+					String deletion = s.substring(0, i) + s.substring(i + 1);
+					if (results.add(deletion))
+						current.add(deletion);
+				}
+			}
+			previous = current;
+		}
+		return results;
+	}
+
+	/** A 64-bit hash of s, never EMPTY. (Collisions only cost a rejected candidate.) */
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 29;
+		return h == EMPTY ? 1 : h;
+	}
+
+	static int slot(long[] table, long key) {
+		int mask = table.length - 1;
+		int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+		while (table[slot] != EMPTY && table[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * The (at most n) words within maxEdits edits of ocr, by their estimated log probability
+	 * of being misrecognized as ocr, best first, with ties in dictionary order.
+	 */
+	public String[] topMatches(String ocr, int n) {
+		List<ScoredItem<String>> matches = scoredMatches(ocr, n);
+		String[] results = new String[matches.size()];
+		for (int i = 0; i < results.length; i++)
+			results[i] = matches.get(i).item;
+		return results;
+	}
+
+	List<ScoredItem<String>> scoredMatches(String ocr, int n) {
+		int edits = maxEdits(ocr);
+		Scratch s = scratch.get();
+		s.ensureCapacity(words.length, ocr.length() + 1);
+		int stamp = s.nextStamp();
+		int[] seen = s.seen;
+
+		// Best n so far, sorted by prob descending and then index ascending
+		int[] best = new int[Math.max(n, 0)];
+		double[] bestProbs = new double[best.length];
+		int numBest = 0;
+
+		for (String deletion: deletions(ocr, edits)) {
+			int slot = slot(keys, hash(deletion));
+			if (keys[slot] == EMPTY)
+				continue;
+			int id = keyIds[slot];
+			for (int p = offsets[id]; p < offsets[id + 1]; p++) {
+				int w = postings[p];
+				if (seen[w] == stamp)
+					continue;
+				seen[w] = stamp;
+				String word = words[w];
+				if (Math.abs(word.length() - ocr.length()) > edits
+						|| editDistance(word, ocr, edits, s) > edits)
+				{
+					continue;
+				}
+				double prob = estimateProb(word, ocr, edits, s);
+				if (prob == Double.NEGATIVE_INFINITY)
+					continue;
+
+				int i = numBest < best.length ? numBest++ : best.length;
+				for (; i > 0 && (bestProbs[i-1] < prob
+						|| (bestProbs[i-1] == prob && best[i-1] > w)); i--)
+				{
+					if (i < best.length) {
+						best[i] = best[i-1];
+						bestProbs[i] = bestProbs[i-1];
+					}
+				}
+				if (i < best.length) {
+					best[i] = w;
+					bestProbs[i] = prob;
+				}
+			}
+		}
+
+		List<ScoredItem<String>> results = new ArrayList<ScoredItem<String>>(numBest);
+		for (int i = 0; i < numBest; i++)
+			results.add(new ScoredItem<String>(words[best[i]], bestProbs[i]));
+		return results;
+	}
+
+	/**
+	 * The Levenshtein distance of a and b, or some larger number once it must be more than
+	 * maxEdits.
+	 */
+	static int editDistance(String a, String b, int maxEdits, Scratch s) {
+		int[] previous = s.previousRow;
+		int[] row = s.row;
+		for (int j = 0; j <= b.length(); j++)
+			previous[j] = j;
+		for (int i = 1; i <= a.length(); i++) {
+			row[0] = i;
+			int rowMin = i;
+			char c = a.charAt(i - 1);
+			for (int j = 1; j <= b.length(); j++) {
+				int d = previous[j-1] + (c == b.charAt(j - 1) ? 0 : 1);
+				d = Math.min(d, previous[j] + 1);
+				d = Math.min(d, row[j-1] + 1);
+				row[j] = d;
+				rowMin = Math.min(rowMin, d);
+			}
+			if (rowMin > maxEdits)
+				return rowMin;
+			int[] swap = previous;
+			previous = row;
+			row = swap;
+		}
+		return previous[b.length()];
+	}
+
+	/**
+	 * The log probability of the best alignment of word to ocr with single-character segments,
+	 * within maxEdits of the diagonal.
+	 */
+	double estimateProb(String word, String ocr, int maxEdits, Scratch s) {
+		int width = ocr.length() + 1;
+		int cells = (word.length() + 1) * width;
+		if (s.probs.length < cells)
+			s.probs = new double[cells];
+		double[] probs = s.probs;
+
+		Arrays.fill(probs, 0, cells, Double.NEGATIVE_INFINITY);
+		probs[0] = 0.0;
+		for (int i = 0; i <= word.length(); i++) {
+			int jEnd = Math.min(ocr.length(), i + maxEdits);
+			for (int j = Math.max(0, i - maxEdits); j <= jEnd; j++) {
+				double best = probs[i * width + j];
+				if (i > 0 && j > 0)
+					best = Math.max(best, probs[(i-1) * width + j-1]
+							+ model.prob(word, i - 1, 1, ocr, j - 1, 1));
+				if (j > 0)
+					best = Math.max(best, probs[i * width + j-1]
+							+ model.prob(word, i, 0, ocr, j - 1, 1));
+				if (i > 0)
+					best = Math.max(best, probs[(i-1) * width + j]
+							+ model.prob(word, i - 1, 1, ocr, j, 0));
+				probs[i * width + j] = best;
+			}
+		}
+		return probs[cells - 1];
+	}
+
+	/**
+	 * Compare candidate generation for LatticeBuilder on garbled random words: the best
+	 * wordCandidates by full alignment of InexactDictionary's maxMatches matches, against the
+	 * best by full alignment of this dictionary's editMatches matches. For each, we report the
+	 * time per span, the alignments per span, and how often the original word is among them.
+	 */
+	static void compareTest(int numWords, int numQueries, int maxMatches, int editMatches,
+			int wordCandidates, int maxEdits)
+	{
+		Random random = new Random(0);
+		MergeSplitSegmentModel foreground = CompiledSegmentModel.randomModel(random);
+		SegmentModel model = new CompiledSegmentModel(new InterpolatedSegmentModel(foreground,
+				new UniformSegmentModel(0.9, 0.0001, 0.0001, 0.0001, 0.0, 0.0), 0.95));
+
+		List<String> wordList = new ArrayList<String>();
+		InexactDictionary dictionary = new InexactDictionary();
+		for (int i = 0; i < numWords; i++) {
+			String word = Benchmarks.randomWord(random);
+			wordList.add(word);
+			dictionary.addWord(word);
+		}
+		dictionary.complete();
+		long start = System.nanoTime();
+		EditDistanceDictionary editDictionary =
+				new EditDistanceDictionary(dictionary, model, maxEdits);
+		System.out.printf("Indexed %d words in %.2fs\n",
+				editDictionary.size(), (System.nanoTime() - start) / 1e9);
+
+		String[] originals = new String[numQueries];
+		String[] queries = new String[numQueries];
+		for (int i = 0; i < numQueries; i++) {
+			do {
+				originals[i] = wordList.get(random.nextInt(wordList.size()));
+				queries[i] = Benchmarks.garble(random, originals[i], 0.1);
+			} while (queries[i].length() < 2);
+		}
+
+		FlatSegmentAligner aligner = new FlatSegmentAligner(model, 3);
+		for (int round = 0; round < 3; round++) {
+			int[] alignments = new int[2];
+			int[] found = new int[2];
+			long[] times = new long[2];
+			for (int q = 0; q < numQueries; q++) {
+				for (int method = 0; method < 2; method++) {
+					start = System.nanoTime();
+					String[] candidates = method == 0
+							? dictionary.topMatches(queries[q], maxMatches)
+							: editDictionary.topMatches(queries[q], editMatches);
+					TopNList<String> top = new TopNList<String>(wordCandidates);
+					for (String candidate: candidates)
+						top.add(candidate, aligner.probOfBestAlignment(candidate, queries[q]));
+					times[method] += System.nanoTime() - start;
+					alignments[method] += candidates.length;
+					for (ScoredItem<String> item: top.scoredItemSet())
+						if (item.item.equals(originals[q]))
+							found[method]++;
+				}
+			}
+			for (int method = 0; method < 2; method++) {
+				System.out.printf("%-14s %8.1f us/span %6.1f alignments/span "
+						+ "%5.1f%% with the original word\n",
+						method == 0 ? "n-gram:" : "edit distance:",
+						times[method] / 1e3 / numQueries, (double) alignments[method] / numQueries,
+						100.0 * found[method] / numQueries);
+			}
+		}
+	}
+
+	/**
+	 * EditDistanceDictionary -compare [-words i] [-queries i] [-max-matches i]
+	 *   [-edit-matches i] [-candidates i] [-max-edits i]
+	 */
+	public static void main(String[] args) {
+		CommandLineParser clp = new CommandLineParser("-compare -words=i -queries=i "
+				+ "-max-matches=i -edit-matches=i -candidates=i -max-edits=i", args);
+		if (clp.opt("-compare")) {
+			compareTest(clp.opt("-words", 100000), clp.opt("-queries", 5000),
+					clp.opt("-max-matches", 100), clp.opt("-edit-matches", 20),
+					clp.opt("-candidates", 10), clp.opt("-max-edits", 2));
+		}
+		else {
+			System.err.println("Usage: EditDistanceDictionary -compare [-words i] ...");
+		}
+	}
+}
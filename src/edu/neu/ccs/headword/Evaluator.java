@@ -81,8 +81,7 @@ public class Evaluator {
 		addTestVocabulary(dict, testAlignment.ocrSentences, tokenizer, 1);
 		config.getTimer().completePhase("Read in test set vocab.");
 		
-		SegmentModel segmentModel = new InterpolatedSegmentModel(
-				config, new MergeSplitSegmentModel(config));
+		SegmentModel segmentModel = CompiledSegmentModel.fromConfig(config);
 		
 		Corrector corrector;
 		
@@ -116,21 +115,44 @@ public class Evaluator {
 //			corrector = new SRILM2StepCorrector(config, segmentModel, dict);
 		}
 		
-		ArrayList<String> correctedLines = corrector.correctLines(
-				testAlignment.ocrSentences, testAlignment.transcriptionSentences);
-		
 		File outputFile = config.getOutputFile("output-file");
-		PrintWriter outputWriter = new PrintWriter(outputFile, "UTF-8");
+		final PrintWriter outputWriter = new PrintWriter(outputFile, "UTF-8");
 		
-		for (int i = 0; i < testAlignment.ocrSentences.size(); i++) {
-			String transcriptionLine = testAlignment.transcriptionSentences.get(i);
-			String ocrLine = testAlignment.ocrSentences.get(i);
-			String correctedLine = correctedLines.get(i);
+		final List<String> transLines = testAlignment.transcriptionSentences;
+		final ArrayList<String> correctedLines;
+		if (config.getBoolean("corrector.streaming", false)) {
+			if (!(corrector instanceof StreamingCorrector))
+				throw new IOException("corrector.streaming isn't supported by this corrector");
+			
+			// Write each line as soon as it is corrected
+			correctedLines = new ArrayList<String>(transLines.size());
+			((StreamingCorrector) corrector).correctLines(
+					testAlignment.ocrSentences.iterator(),
+					new CorrectionPipeline.Output() {
+						@Override public void correctedLine(
+								int lineNum, String ocrLine, String correctedLine)
+						{
+							correctedLines.add(correctedLine);
+							outputWriter.println(transLines.get(lineNum));
+							outputWriter.println(ocrLine);
+							outputWriter.println(correctedLine);
+							outputWriter.println();
+						}
+					});
+		}
+		else {
+			correctedLines = corrector.correctLines(testAlignment.ocrSentences, transLines);
+			
+			for (int i = 0; i < testAlignment.ocrSentences.size(); i++) {
+				String transcriptionLine = transLines.get(i);
+				String ocrLine = testAlignment.ocrSentences.get(i);
+				String correctedLine = correctedLines.get(i);
 
-			outputWriter.println(transcriptionLine);
-			outputWriter.println(ocrLine);
-			outputWriter.println(correctedLine);
-			outputWriter.println();
+				outputWriter.println(transcriptionLine);
+				outputWriter.println(ocrLine);
+				outputWriter.println(correctedLine);
+				outputWriter.println();
+			}
 		}
 		outputWriter.close();
 		
@@ -0,0 +1,1431 @@
+package edu.neu.ccs.headword;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.apache.commons.math.util.FastMath;
+
+import edu.neu.ccs.headword.TaggedLattice.Edge;
+import edu.neu.ccs.headword.TaggedLattice.StringToken;
+import edu.neu.ccs.headword.TaggedLattice.TaggedToken;
+import edu.neu.ccs.headword.util.CommandLineParser;
+import edu.neu.ccs.headword.util.Util;
+
+/**
+ * Drop-in replacement for {@link LatticeParser} whose chart lives in flat primitive arrays
+ * instead of Cell/Arc objects.
+ *
+ * Every chart cell (triangle or trapezoid) is an int index; its viterbi, inside and outside
+ * scores are entries in parallel double arrays. Triangles (top edge, bottom state, dir) come
+ * first, followed by trapezoids (top edge, bottom edge, dir). Arcs are appended to packed
+ * parallel arrays (split, lhs cell, rhs cell, score), and since all arcs into a given cell are
+ * added by a single loop, each cell owns the contiguous arc range [arcBegin, arcEnd).
+ *
+ * Parses and viterbi scores are identical to LatticeParser's (including random tie-breaking).
+ * Sentence, inside and outside probabilities and expected counts agree up to floating-point
+ * rounding, because each cell's inside probability is summed over its arcs at once with
+ * Util.logSumExp(), and because LatticeParser visits arcs in HashMap order.
+ *
+ * With {@link #setReuseChart}, the chart arrays are kept between parses as a grow-only arena
+ * sized to the largest lattice seen so far, and only the cells the previous lattice touched
+ * are reset. In that mode the only per-sentence allocations are the shifted copies of the
+ * lattice edges and the returned parse.
+ *
+ * With {@link #setScaled}, inside-outside runs mostly in real space, as in scaled
+ * forward-backward. Each cell's arcs are summed as real numbers relative to a per-cell scale,
+ * and each arc keeps its share of its cell's inside probability. The outside pass then
+ * propagates cell posteriors (which are between 0 and 1) by multiplication, and the expected
+ * count of an arc is just its cell's posterior times its share. The log inside probabilities,
+ * sentence probabilities and (in FULL mode) outside probabilities are still available,
+ * computed with one log per cell, but there is no logSum per arc.
+ */
+public class FlatLatticeParser extends LatticeParser {
+
+	int numEdges; // including the imaginary root edge
+	int[] edgeStart;
+	int[] edgeEnd;
+
+	// Edges grouped by start (and end) state: edges starting at s are
+	// startEdges[startOffsets[s]] ... startEdges[startOffsets[s+1]-1]
+	int[] startOffsets;
+	int[] startEdges;
+	int[] endOffsets;
+	int[] endEdges;
+
+	int trapBase; // index of first trapezoid cell
+	int chartSize;
+	int chartCapacity = 0;
+	double[] viterbi;
+	double[] inside;
+	double[] outside;
+	int[] arcBegin; // -1 if cell is not in the chart
+	int[] arcEnd;
+	int[] viterbiArc; // best arc; after tie-breaking, the chosen one
+	int[] viterbiTies; // number of arcs tied for the viterbi score
+	boolean[] pruned; // kept for the cells built on it, but not used to build more
+
+	// Non-leaf cells in the order they were built (so every cell comes after its children)
+	int[] cellOrder;
+	int numBuiltCells;
+	int[] leafCells = new int[0];
+	int numLeaves;
+
+	int numArcs;
+	int[] arcSplit = new int[1024];
+	int[] arcLhs = new int[1024];
+	int[] arcRhs = new int[1024];
+	double[] arcScore = new double[1024];
+	double[] arcInside = new double[1024]; // log inside probability of each arc
+
+	boolean reuseChart = false;
+	int[] scratch = new int[0];
+	int[] stack = new int[64]; // for backtraces
+	boolean measureAllocation = false;
+	long measuredParses = 0;
+	long parseAllocatedBytes = 0;
+
+	// Pruning, off by default (see setBeam(), setThreshold() and setCoarseThreshold())
+	double beam = Double.POSITIVE_INFINITY;
+	double threshold = Double.POSITIVE_INFINITY;
+	double coarseThreshold = Double.POSITIVE_INFINITY;
+	FlatLatticeParser coarseParser = null;
+	boolean[] edgePruned = null; // set while the coarse pass's pruning is in effect
+	long prunedCells = 0;
+	long prunedEdges = 0;
+	long pruningFallbacks = 0;
+
+	// Scaled inside-outside, off by default (see setScaled())
+	static final double RESCALE_MARGIN = 64.0;
+	boolean scaled = false;
+	double[] insideSum; // sum of the arc shares of a cell being built, before normalization
+	double[] posterior; // posterior probability of each cell
+	double[] arcShare = new double[1024]; // share of the arc in its cell's inside probability
+
+	public FlatLatticeParser(Scorer scorer) {
+		this(scorer, false, false);
+	}
+	public FlatLatticeParser(Scorer scorer, boolean zeroBased) {
+		this(scorer, zeroBased, false);
+	}
+	public FlatLatticeParser(Scorer scorer, boolean zeroBased, boolean rightBranching) {
+		super(scorer, zeroBased, rightBranching);
+	}
+
+	final int tri(int top, int bottom, int dir) {
+		return (top * states + bottom) * 2 + dir;
+	}
+	final int trap(int top, int bottom, int dir) {
+		return trapBase + (top * numEdges + bottom) * 2 + dir;
+	}
+	final boolean isTrapezoid(int cell) {
+		return cell >= trapBase;
+	}
+	final int cellType(int cell) {
+		return cell >= trapBase ? TRAP : TRI;
+	}
+	final int cellTop(int cell) {
+		return cell < trapBase
+				? (cell >> 1) / states
+				: ((cell - trapBase) >> 1) / numEdges;
+	}
+	final int cellBottom(int cell) {
+		return cell < trapBase
+				? (cell >> 1) % states
+				: ((cell - trapBase) >> 1) % numEdges;
+	}
+	static final int cellDir(int cell) {
+		return cell & 1;
+	}
+	final boolean inChart(int cell) {
+		return arcBegin[cell] >= 0 && !pruned[cell];
+	}
+
+	/**
+	 * If reuse is true, keep the chart between parses and reset only the cells each parse
+	 * touched; otherwise allocate a fresh chart for every lattice.
+	 */
+	public void setReuseChart(boolean reuse) {
+		reuseChart = reuse;
+	}
+
+	/**
+	 * After each span (s, t) is filled, remove its triangles (and its trapezoids) whose
+	 * viterbi score is more than beam below the best triangle (trapezoid) of the span.
+	 */
+	public void setBeam(double beam) {
+		this.beam = beam;
+	}
+
+	/**
+	 * After all spans of a given width are filled, remove the triangles (and trapezoids) of
+	 * that width whose inside score (viterbi score in VITERBI mode) is more than threshold
+	 * below the best triangle (trapezoid) of that width anywhere in the lattice.
+	 */
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Before parsing, run a cheap right-branching pass over the lattice and drop the edges
+	 * whose posterior log probability under it is below -threshold.
+	 */
+	public void setCoarseThreshold(double threshold) {
+		coarseThreshold = threshold;
+	}
+
+	/**
+	 * Compute inside and outside probabilities in real space, with a scale factor per cell,
+	 * rather than adding log probabilities with logSum(). The results agree with the log-space
+	 * computation up to floating-point rounding.
+	 */
+	public void setScaled(boolean scaled) {
+		this.scaled = scaled;
+	}
+
+	boolean pruningEnabled() {
+		return beam != Double.POSITIVE_INFINITY
+				|| threshold != Double.POSITIVE_INFINITY
+				|| coarseThreshold != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * If measure is true, measure the bytes each call to parse() allocates, for
+	 * allocatedBytesPerParse(). This asks the JVM for the thread's allocation count before
+	 * and after every parse, so it is off by default.
+	 */
+	public void setMeasureAllocation(boolean measure) {
+		measureAllocation = measure;
+	}
+
+	/**
+	 * Mean number of bytes allocated by this thread per call to parse(), over the parses
+	 * measured since setMeasureAllocation(true); 0 if none were (e.g. because the JVM doesn't
+	 * count allocations).
+	 */
+	public double allocatedBytesPerParse() {
+		return measuredParses == 0 ? 0.0 : (double) parseAllocatedBytes / measuredParses;
+	}
+
+	@Override
+	protected void initialize(TaggedLattice lattice) {
+		if (reuseChart)
+			clearTouchedCells();
+		else
+			chartCapacity = 0;
+
+		states = lattice.numPositions + 1;
+		numEdges = lattice.edges.size() + 1;
+		edges = new Edge[numEdges];
+		if (edgeStart == null || edgeStart.length < numEdges || !reuseChart) {
+			edgeStart = new int[numEdges];
+			edgeEnd = new int[numEdges];
+			startEdges = new int[numEdges];
+			endEdges = new int[numEdges];
+			leafCells = new int[2 * numEdges];
+		}
+		if (startOffsets == null || startOffsets.length < states + 1 || !reuseChart) {
+			startOffsets = new int[states + 1];
+			endOffsets = new int[states + 1];
+			scratch = new int[states + 1];
+		}
+		edges[0] = new Edge(0, 1, ROOT_TOKEN, 0.0);
+		for (int i = 0; i < lattice.edges.size(); i++) {
+			Edge edge = lattice.edges.get(i);
+			edges[i+1] = new Edge(edge.start + 1, edge.end + 1, edge.token,
+					edge.logProb, edge.viterbiLogProb);
+		}
+		for (int e = 0; e < numEdges; e++) {
+			edgeStart[e] = edges[e].start;
+			edgeEnd[e] = edges[e].end;
+		}
+		latticeScorer = scorer instanceof LatticeScorer
+				? ((LatticeScorer) scorer).forLattice(edges)
+				: scorer;
+
+		groupEdges(edgeStart, startOffsets, startEdges);
+		groupEdges(edgeEnd, endOffsets, endEdges);
+
+		trapBase = numEdges * states * 2;
+		chartSize = trapBase + numEdges * numEdges * 2;
+		if (chartSize > chartCapacity) {
+			chartCapacity = chartSize;
+			viterbi = new double[chartSize];
+			inside = new double[chartSize];
+			outside = new double[chartSize];
+			arcBegin = new int[chartSize];
+			arcEnd = new int[chartSize];
+			viterbiArc = new int[chartSize];
+			viterbiTies = new int[chartSize];
+			pruned = new boolean[chartSize];
+			cellOrder = new int[chartSize];
+			Arrays.fill(viterbi, Double.NEGATIVE_INFINITY);
+			Arrays.fill(inside, Double.NEGATIVE_INFINITY);
+			Arrays.fill(outside, Double.NEGATIVE_INFINITY);
+			Arrays.fill(arcBegin, -1);
+			Arrays.fill(viterbiArc, -1);
+			insideSum = null;
+			posterior = null;
+		}
+		if (scaled && posterior == null) {
+			insideSum = new double[chartCapacity];
+			posterior = new double[chartCapacity];
+		}
+		numBuiltCells = 0;
+		numLeaves = 0;
+		numArcs = 0;
+
+		addLeaf(tri(0, 1, RIGHT), 0.0, 0.0);
+		for (int e = 1; e < numEdges; e++) {
+			if (edgePruned != null && edgePruned[e])
+				continue;
+			addLeaf(tri(e, edgeStart[e], LEFT), edges[e].viterbiLogProb, edges[e].logProb);
+			addLeaf(tri(e, edgeEnd[e], RIGHT), 0.0, 0.0);
+		}
+	}
+
+	/** Counting sort of edge indices by state, preserving edge order within each state. */
+	private void groupEdges(int[] stateOfEdge, int[] offsets, int[] grouped) {
+		Arrays.fill(offsets, 0, states + 1, 0);
+		for (int e = 0; e < numEdges; e++)
+			if (edgePruned == null || !edgePruned[e])
+				offsets[stateOfEdge[e] + 1]++;
+		for (int s = 0; s < states; s++)
+			offsets[s + 1] += offsets[s];
+		System.arraycopy(offsets, 0, scratch, 0, states);
+		for (int e = 0; e < numEdges; e++)
+			if (edgePruned == null || !edgePruned[e])
+				grouped[scratch[stateOfEdge[e]]++] = e;
+	}
+
+	private void addLeaf(int cell, double viterbiProb, double insideProb) {
+		viterbi[cell] = viterbiProb;
+		inside[cell] = insideProb;
+		arcBegin[cell] = 0;
+		arcEnd[cell] = 0;
+		leafCells[numLeaves++] = cell;
+	}
+
+	/** Restore the cells written by the previous parse to their empty state. */
+	private void clearTouchedCells() {
+		for (int i = 0; i < numBuiltCells; i++)
+			clearCell(cellOrder[i]);
+		for (int i = 0; i < numLeaves; i++)
+			clearCell(leafCells[i]);
+		numBuiltCells = 0;
+		numLeaves = 0;
+	}
+	private void clearCell(int cell) {
+		viterbi[cell] = Double.NEGATIVE_INFINITY;
+		inside[cell] = Double.NEGATIVE_INFINITY;
+		outside[cell] = Double.NEGATIVE_INFINITY;
+		arcBegin[cell] = -1;
+		viterbiArc[cell] = -1;
+		viterbiTies[cell] = 0;
+		pruned[cell] = false;
+		if (posterior != null)
+			posterior[cell] = 0.0;
+	}
+
+	@Override
+	public void populateWithParse(TaggedLattice lattice, int[] parse) {
+		throw new Error("populateWithParse() is only supported by LatticeParser");
+	}
+
+	@Override
+	public int[] parse(TaggedLattice lattice) {
+		checkPendingCounts();
+		long startBytes = measureAllocation ? allocatedBytes() : -1;
+		int[] parse;
+		try {
+			if (pruningEnabled()) {
+				try {
+					if (coarseThreshold != Double.POSITIVE_INFINITY)
+						coarsePrune(lattice);
+					parse = fillChart(lattice, true);
+				}
+				finally {
+					edgePruned = null;
+				}
+				if (parse == null) {
+					// Pruning made the lattice unparseable; fall back to the full chart.
+					pruningFallbacks++;
+					parse = fillChart(lattice, false);
+				}
+			}
+			else {
+				parse = fillChart(lattice, false);
+			}
+		}
+		finally {
+			clearPendingCounts();
+		}
+		if (startBytes >= 0) {
+			long endBytes = allocatedBytes();
+			if (endBytes >= 0) {
+				parseAllocatedBytes += endBytes - startBytes;
+				measuredParses++;
+			}
+		}
+		return parse;
+	}
+
+	/**
+	 * Fill the chart and return the viterbi parse. If prune is set, apply the beam and
+	 * threshold, and return null (instead of failing) if the lattice became unparseable.
+	 */
+	private int[] fillChart(TaggedLattice lattice, boolean prune) {
+		initialize(lattice);
+
+		// Populate arcs, calculate viterbi and inside probabilities
+		for (int m = 1; m < states; m++) {
+			int widthBegin = numBuiltCells;
+			for (int s = 0; s < states; s++) {
+				int t = s + m;
+				if (t >= states)
+					break;
+				int spanBegin = numBuiltCells;
+
+				// Add arcs to trapezoids. Right- and left-directed trapezoids are filled in
+				// separate passes over q so that each cell's arcs stay contiguous.
+				for (int i = startOffsets[s]; i < startOffsets[s+1]; i++) {
+					int e = startEdges[i];
+					for (int j = endOffsets[t]; j < endOffsets[t+1]; j++) {
+						int f = endEdges[j];
+						if (rightBranching && edgeEnd[e] != edgeStart[f])
+							continue;
+						for (int q = edgeEnd[e]; q <= edgeStart[f]; q++) {
+							int lhs = tri(e, q, RIGHT);
+							int rhs = tri(f, q, LEFT);
+							if (inChart(lhs) && inChart(rhs)) {
+								addArc(trap(e, f, RIGHT), q, lhs, rhs,
+									latticeScorer.scoreTrapezoid(edges, e, f, q, RIGHT));
+							}
+						}
+						if (!rightBranching && e != 0) { // Don't attach the root to anything
+							for (int q = edgeEnd[e]; q <= edgeStart[f]; q++) {
+								int lhs = tri(e, q, RIGHT);
+								int rhs = tri(f, q, LEFT);
+								if (inChart(lhs) && inChart(rhs)) {
+									addArc(trap(f, e, LEFT), q, lhs, rhs,
+										latticeScorer.scoreTrapezoid(edges, f, e, q, LEFT));
+								}
+							}
+						}
+					}
+				}
+
+				// Triangles of this span may be built on its trapezoids
+				int trianglesBegin = numBuiltCells;
+				if (mode != Mode.VITERBI)
+					finishInside(spanBegin);
+
+				if (s > 0) {
+					// Add arcs to right-directed triangles
+					for (int i = startOffsets[s]; i < startOffsets[s+1]; i++) {
+						int e = startEdges[i];
+						for (int q = edgeEnd[e]; q < t; q++) {
+							for (int j = startOffsets[q]; j < startOffsets[q+1]; j++) {
+								int g = startEdges[j];
+								if (edgeEnd[g] <= t) {
+									int lhs = trap(e, g, RIGHT);
+									int rhs = tri(g, t, RIGHT);
+									if (inChart(lhs) && inChart(rhs)) {
+										addArc(tri(e, t, RIGHT), g, lhs, rhs,
+											latticeScorer.scoreTriangle(edges, e, t, g, RIGHT));
+									}
+								}
+							}
+						}
+					}
+
+					// Add arcs to left-directed triangles
+					for (int i = endOffsets[t]; i < endOffsets[t+1]; i++) {
+						int e = endEdges[i];
+						if (edgeStart[e] < s)
+							continue;
+						for (int q = s + 1; q <= edgeStart[e]; q++) {
+							for (int j = endOffsets[q]; j < endOffsets[q+1]; j++) {
+								int g = endEdges[j];
+								int lhs = tri(g, s, LEFT);
+								int rhs = trap(e, g, LEFT);
+								if (inChart(lhs) && inChart(rhs)) {
+									addArc(tri(e, s, LEFT), g, lhs, rhs,
+										latticeScorer.scoreTriangle(edges, e, s, g, LEFT));
+								}
+							}
+						}
+					}
+				}
+
+				if (mode != Mode.VITERBI)
+					finishInside(trianglesBegin);
+				if (prune && beam != Double.POSITIVE_INFINITY)
+					pruneCells(spanBegin, beam, viterbi);
+			}
+
+			if (prune && threshold != Double.POSITIVE_INFINITY)
+				pruneCells(widthBegin, threshold, mode == Mode.VITERBI ? viterbi : inside);
+		}
+
+		// Add final right-directed triangle covering entire lattice
+		int rootBegin = numBuiltCells;
+		for (int q = 1; q < states; q++) {
+			for (int j = startOffsets[q]; j < startOffsets[q+1]; j++) {
+				int g = startEdges[j];
+				int lhs = trap(0, g, RIGHT);
+				int rhs = tri(g, states-1, RIGHT);
+				if (inChart(lhs) && inChart(rhs)) {
+					addArc(tri(0, states-1, RIGHT), g, lhs, rhs,
+						latticeScorer.scoreTriangle(edges, 0, states-1, g, RIGHT));
+				}
+			}
+		}
+
+		if (mode != Mode.VITERBI)
+			finishInside(rootBegin);
+
+		int root = tri(0, states-1, RIGHT);
+		if (!inChart(root)) {
+			if (prune)
+				return null;
+			throw new Error("Can't handle unparseable lattices yet");
+		}
+
+		breakViterbiTiesRandomly(root);
+
+		// populate outside probabilities (and any requested expected counts),
+		// visiting parents before children
+		if (scaled && (mode == Mode.FULL || countsPending())) {
+			scaledOutsidePass(root);
+		}
+		else if (mode == Mode.FULL || countsPending()) {
+			double Z = sentProb();
+			boolean counting = countsPending();
+			outside[root] = 0.0;
+			for (int i = numBuiltCells - 1; i >= 0; i--) {
+				int cell = cellOrder[i];
+				double out = outside[cell];
+				for (int a = arcBegin[cell]; a < arcEnd[cell]; a++) {
+					int lhs = arcLhs[a];
+					int rhs = arcRhs[a];
+					outside[lhs] = Util.logSum(outside[lhs], out + inside[rhs] + arcScore[a]);
+					outside[rhs] = Util.logSum(outside[rhs], out + inside[lhs] + arcScore[a]);
+					if (counting) {
+						countPendingEvents(cellType(cell), cellDir(cell), cellTop(cell),
+								cellBottom(cell), arcSplit[a],
+								out + inside[lhs] + inside[rhs] + arcScore[a] - Z);
+					}
+				}
+			}
+		}
+
+		// parse[e-1] is the head of edge e (the imaginary root edge is left out)
+		int[] parse = new int[numEdges - 1];
+		for (int i = 0; i < parse.length; i++)
+			parse[i] = -1; // These -1's show up for edges that are not in the parsed path
+		populateParse(parse, root);
+
+		return parse;
+	}
+
+	/**
+	 * The real-space counterpart of the outside pass: propagate the posterior probability of
+	 * each cell to its children in proportion to its arcs' shares, visiting parents before
+	 * children, and count each arc's posterior if counts are pending. In FULL mode, the log
+	 * outside probabilities are then filled in from the posteriors.
+	 */
+	private void scaledOutsidePass(int root) {
+		boolean counting = countsPending();
+		posterior[root] = 1.0;
+		for (int i = numBuiltCells - 1; i >= 0; i--) {
+			int cell = cellOrder[i];
+			double cellPosterior = posterior[cell];
+			for (int a = arcBegin[cell]; a < arcEnd[cell]; a++) {
+				double arcPosterior = cellPosterior * arcShare[a];
+				posterior[arcLhs[a]] += arcPosterior;
+				posterior[arcRhs[a]] += arcPosterior;
+				if (counting) {
+					countPendingEventsLinear(cellType(cell), cellDir(cell), cellTop(cell),
+							cellBottom(cell), arcSplit[a], arcPosterior);
+				}
+			}
+		}
+
+		if (mode == Mode.FULL) {
+			double Z = sentProb();
+			for (int i = 0; i < numBuiltCells; i++)
+				setOutsideFromPosterior(cellOrder[i], Z);
+			for (int i = 0; i < numLeaves; i++)
+				setOutsideFromPosterior(leafCells[i], Z);
+		}
+	}
+	private void setOutsideFromPosterior(int cell, double Z) {
+		if (posterior[cell] > 0.0)
+			outside[cell] = Math.log(posterior[cell]) - inside[cell] + Z;
+	}
+
+	/**
+	 * Mark the cells built since cellOrder[begin] whose score is more than margin below the
+	 * best score of a cell of the same type among them as pruned. Pruned cells stay in the
+	 * chart for the cells already built on them, but are not used to build wider cells.
+	 */
+	private void pruneCells(int begin, double margin, double[] score) {
+		double bestTri = Double.NEGATIVE_INFINITY;
+		double bestTrap = Double.NEGATIVE_INFINITY;
+		for (int i = begin; i < numBuiltCells; i++) {
+			int cell = cellOrder[i];
+			if (isTrapezoid(cell))
+				bestTrap = Math.max(bestTrap, score[cell]);
+			else
+				bestTri = Math.max(bestTri, score[cell]);
+		}
+
+		for (int i = begin; i < numBuiltCells; i++) {
+			int cell = cellOrder[i];
+			double best = isTrapezoid(cell) ? bestTrap : bestTri;
+			if (!pruned[cell] && score[cell] < best - margin) {
+				pruned[cell] = true;
+				prunedCells++;
+			}
+		}
+	}
+
+	/** Mark the edges with low posterior probability under a right-branching parse. */
+	private void coarsePrune(TaggedLattice lattice) {
+		edgePruned = null;
+		if (coarseParser == null) {
+			coarseParser = new FlatLatticeParser(scorer, zeroBased, true);
+			coarseParser.setReuseChart(reuseChart);
+			coarseParser.setScaled(scaled);
+			coarseParser.setMode(Mode.FULL);
+		}
+		try {
+			coarseParser.parse(lattice);
+		}
+		catch (Error e) {
+			return; // no right-branching parse; leave all edges in
+		}
+		double Z = coarseParser.sentProb();
+
+		int n = lattice.edges.size() + 1;
+		edgePruned = new boolean[n];
+		for (int e = 1; e < n; e++) {
+			int leaf = coarseParser.tri(e, coarseParser.edgeStart[e], LEFT);
+			double posterior = coarseParser.inside[leaf] + coarseParser.outside[leaf] - Z;
+			if (posterior < -coarseThreshold) {
+				edgePruned[e] = true;
+				prunedEdges++;
+			}
+		}
+	}
+
+	private void addArc(int cell, int split, int lhs, int rhs, double prob) {
+		if (arcBegin[cell] < 0) {
+			arcBegin[cell] = numArcs;
+			cellOrder[numBuiltCells++] = cell;
+		}
+		assert arcEnd[cell] == numArcs || arcBegin[cell] == numArcs;
+
+		if (numArcs == arcSplit.length) {
+			int capacity = 2 * numArcs;
+			arcSplit = Arrays.copyOf(arcSplit, capacity);
+			arcLhs = Arrays.copyOf(arcLhs, capacity);
+			arcRhs = Arrays.copyOf(arcRhs, capacity);
+			arcScore = Arrays.copyOf(arcScore, capacity);
+			arcInside = Arrays.copyOf(arcInside, capacity);
+			arcShare = Arrays.copyOf(arcShare, capacity);
+		}
+		int a = numArcs++;
+		arcSplit[a] = split;
+		arcLhs[a] = lhs;
+		arcRhs[a] = rhs;
+		arcScore[a] = prob;
+		arcEnd[cell] = numArcs;
+
+		double viterbiProb = viterbi[lhs] + viterbi[rhs] + prob;
+		if (viterbiProb > viterbi[cell]) {
+			viterbi[cell] = viterbiProb;
+			viterbiArc[cell] = a;
+			viterbiTies[cell] = 1;
+		}
+		else if (viterbiProb == viterbi[cell]) {
+			// Tied for first place; the tie is broken randomly later.
+			if (viterbiTies[cell]++ == 0)
+				viterbiArc[cell] = a;
+		}
+
+		if (mode != Mode.VITERBI) {
+			double insideProb = inside[lhs] + inside[rhs] + prob;
+			if (scaled)
+				addScaledInside(cell, a, insideProb);
+			else
+				arcInside[a] = insideProb;
+		}
+	}
+
+	/**
+	 * Add the arc's inside probability to its cell's real-space sum, which is relative to the
+	 * cell's provisional scale, inside[cell]. The scale is raised (and the arcs so far scaled
+	 * down) when an arc is far more probable than it, so that the sum can't overflow.
+	 */
+	private void addScaledInside(int cell, int a, double insideProb) {
+		double scale = inside[cell];
+		if (insideProb > scale + RESCALE_MARGIN) {
+			if (scale != Double.NEGATIVE_INFINITY) {
+				double factor = Math.exp(scale - insideProb);
+				insideSum[cell] *= factor;
+				for (int b = arcBegin[cell]; b < a; b++)
+					arcShare[b] *= factor;
+			}
+			inside[cell] = scale = insideProb;
+		}
+		double share = scale == Double.NEGATIVE_INFINITY ? 0.0 : Math.exp(insideProb - scale);
+		arcShare[a] = share;
+		insideSum[cell] += share;
+	}
+
+	/**
+	 * Once all the arcs of the cells built since cellOrder[begin] are in, compute their inside
+	 * probabilities: in log space, by summing each cell's contiguous run of arc inside
+	 * probabilities with one Util.logSumExp() (rather than a logSum() per arc as it was added),
+	 * or, if scaled, with normalizeScaledCells().
+	 */
+	private void finishInside(int begin) {
+		if (scaled) {
+			normalizeScaledCells(begin);
+			return;
+		}
+		for (int i = begin; i < numBuiltCells; i++) {
+			int cell = cellOrder[i];
+			inside[cell] = Util.logSumExp(arcInside, arcBegin[cell], arcEnd[cell]);
+		}
+	}
+
+	/**
+	 * Fold the real-space sum of each cell built since cellOrder[begin] into its (log) inside
+	 * probability and make its arcs' shares sum to 1.
+	 */
+	private void normalizeScaledCells(int begin) {
+		for (int i = begin; i < numBuiltCells; i++) {
+			int cell = cellOrder[i];
+			double sum = insideSum[cell];
+			insideSum[cell] = 0.0;
+			if (sum == 0.0)
+				continue;
+			inside[cell] += Math.log(sum);
+			double norm = 1.0 / sum;
+			for (int a = arcBegin[cell]; a < arcEnd[cell]; a++)
+				arcShare[a] *= norm;
+		}
+	}
+
+	private int push(int size, int value) {
+		if (size == stack.length)
+			stack = Arrays.copyOf(stack, 2 * size);
+		stack[size] = value;
+		return size + 1;
+	}
+
+	/**
+	 * Same traversal order and same use of tieBreaker as
+	 * {@link LatticeParser#breakViterbiTiesRandomly}, so both parsers choose the same parse.
+	 */
+	private void breakViterbiTiesRandomly(int root) {
+		int size = push(0, root);
+		while (size > 0) {
+			int cell = stack[--size];
+			int ties = viterbiTies[cell];
+			if (ties == 0)
+				continue;
+
+			if (ties > 1) {
+				// The tied arcs are the best arc and any later arcs with an equal score.
+				int k = tieBreaker.nextInt(ties);
+				double best = viterbi[cell];
+				for (int a = viterbiArc[cell]; a < arcEnd[cell]; a++) {
+					if (viterbi[arcLhs[a]] + viterbi[arcRhs[a]] + arcScore[a] == best
+							&& k-- == 0) {
+						viterbiArc[cell] = a;
+						break;
+					}
+				}
+			}
+
+			int a = viterbiArc[cell];
+			size = push(size, arcRhs[a]);
+			size = push(size, arcLhs[a]);
+		}
+	}
+
+	private void populateParse(int[] parse, int root) {
+		int size = push(0, root);
+		while (size > 0) {
+			int cell = stack[--size];
+			if (isTrapezoid(cell))
+				parse[cellBottom(cell) - 1] = cellTop(cell);
+			else if (arcBegin[cell] == arcEnd[cell])
+				continue;
+
+			int a = viterbiArc[cell];
+			if (a < 0) {
+				System.err.println("Warning! No viterbi parse found.");
+				System.err.println(Arrays.toString(edges));
+				continue;
+			}
+			size = push(size, arcRhs[a]);
+			size = push(size, arcLhs[a]);
+		}
+	}
+
+	@Override
+	protected void reestimateViterbi(DMVCounter tagCounter, DMVCounter lexCounter) {
+		int size = push(0, tri(0, states-1, RIGHT));
+		while (size > 0) {
+			int cell = stack[--size];
+			if (arcBegin[cell] == arcEnd[cell])
+				continue;
+
+			int a = viterbiArc[cell];
+			if (a < 0) {
+				System.err.println("Warning! No viterbi parse found.");
+				System.err.println(Arrays.toString(edges));
+				continue;
+			}
+
+			countEvents(cellType(cell), cellDir(cell), cellTop(cell), cellBottom(cell),
+					arcSplit[a], 0.0, tagCounter, lexCounter);
+			size = push(size, arcRhs[a]);
+			size = push(size, arcLhs[a]);
+		}
+	}
+
+	/** An arc of a cell combined with the derivations of given ranks of its lhs and rhs. */
+	private static class Derivation implements Comparable<Derivation> {
+		final int arc;
+		final int lhsRank;
+		final int rhsRank;
+		final double score;
+
+		Derivation(int arc, int lhsRank, int rhsRank, double score) {
+			this.arc = arc;
+			this.lhsRank = lhsRank;
+			this.rhsRank = rhsRank;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Derivation o) {
+			// best first; remaining ties are broken by position so the order is deterministic
+			if (score != o.score)
+				return score > o.score ? -1 : 1;
+			if (arc != o.arc)
+				return arc < o.arc ? -1 : 1;
+			if (lhsRank != o.lhsRank)
+				return lhsRank < o.lhsRank ? -1 : 1;
+			return rhsRank < o.rhsRank ? -1 : (rhsRank == o.rhsRank ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Computes the k best derivations of every cell bottom-up (children before parents), in
+	 * the manner of Huang & Chiang (2005), "Better k-best parsing", Algorithm 2. Each cell's
+	 * candidates are explored lazily from a heap; a candidate (arc, i, j) is only enqueued
+	 * from (arc, i-1, j), or from (arc, 0, j-1) if i is 0, so no candidate is enqueued twice.
+	 * The best derivation of each cell is its (tie-broken) viterbi arc, so the first parse
+	 * is the one returned by parse().
+	 */
+	@Override
+	public List<ScoredParse> kBestParses(int k) {
+		// Derivation r of cell c is derivations[derivationsBegin[c] + r], r < numDerivations[c]
+		int[] derivationsBegin = new int[chartSize];
+		int[] numDerivations = new int[chartSize];
+		List<Derivation> derivations = new ArrayList<Derivation>();
+
+		for (int i = 0; i < numLeaves; i++) {
+			int leaf = leafCells[i];
+			derivationsBegin[leaf] = derivations.size();
+			numDerivations[leaf] = 1;
+			derivations.add(new Derivation(-1, 0, 0, viterbi[leaf]));
+		}
+
+		PriorityQueue<Derivation> candidates = new PriorityQueue<Derivation>();
+		for (int i = 0; i < numBuiltCells; i++) {
+			int cell = cellOrder[i];
+			derivationsBegin[cell] = derivations.size();
+
+			candidates.clear();
+			for (int a = arcBegin[cell]; a < arcEnd[cell]; a++) {
+				if (a != viterbiArc[cell])
+					candidates.add(derivation(a, 0, 0, derivations, derivationsBegin));
+			}
+
+			Derivation next = derivation(viterbiArc[cell], 0, 0, derivations, derivationsBegin);
+			while (next != null && numDerivations[cell] < k) {
+				derivations.add(next);
+				numDerivations[cell]++;
+
+				int lhs = arcLhs[next.arc];
+				int rhs = arcRhs[next.arc];
+				if (next.lhsRank + 1 < numDerivations[lhs]) {
+					candidates.add(derivation(next.arc, next.lhsRank + 1, next.rhsRank,
+							derivations, derivationsBegin));
+				}
+				if (next.lhsRank == 0 && next.rhsRank + 1 < numDerivations[rhs]) {
+					candidates.add(derivation(next.arc, 0, next.rhsRank + 1,
+							derivations, derivationsBegin));
+				}
+				next = candidates.poll();
+			}
+		}
+
+		int root = tri(0, states-1, RIGHT);
+		List<ScoredParse> parses = new ArrayList<ScoredParse>();
+		for (int r = 0; r < numDerivations[root]; r++) {
+			int[] parse = new int[numEdges - 1];
+			for (int i = 0; i < parse.length; i++)
+				parse[i] = -1;
+
+			// stack of (cell, rank) pairs
+			int size = push(push(0, root), r);
+			while (size > 0) {
+				int rank = stack[--size];
+				int cell = stack[--size];
+				if (isTrapezoid(cell))
+					parse[cellBottom(cell) - 1] = cellTop(cell);
+				Derivation d = derivations.get(derivationsBegin[cell] + rank);
+				if (d.arc < 0)
+					continue;
+				size = push(push(size, arcRhs[d.arc]), d.rhsRank);
+				size = push(push(size, arcLhs[d.arc]), d.lhsRank);
+			}
+
+			parses.add(new ScoredParse(
+					parse, derivations.get(derivationsBegin[root] + r).score));
+		}
+		return parses;
+	}
+
+	private Derivation derivation(
+			int a, int lhsRank, int rhsRank, List<Derivation> derivations, int[] begin)
+	{
+		// summed in the same order as in addArc(), so the best score equals viterbiProb()
+		double score = derivations.get(begin[arcLhs[a]] + lhsRank).score
+				+ derivations.get(begin[arcRhs[a]] + rhsRank).score
+				+ arcScore[a];
+		return new Derivation(a, lhsRank, rhsRank, score);
+	}
+
+	@Override
+	void reestimate(DMVCounter dmvCounter, DMVCounter lexCounter) {
+		double Z = sentProb();
+		for (int i = numBuiltCells - 1; i >= 0; i--) {
+			int cell = cellOrder[i];
+			for (int a = arcBegin[cell]; a < arcEnd[cell]; a++) {
+				double count = scaled
+						? Math.log(posterior[cell] * arcShare[a])
+						: outside[cell] + inside[arcLhs[a]] + inside[arcRhs[a]] + arcScore[a] - Z;
+				countEvents(cellType(cell), cellDir(cell), cellTop(cell), cellBottom(cell),
+						arcSplit[a], count, dmvCounter, lexCounter);
+			}
+		}
+	}
+
+	@Override
+	void addSoftCounts(DMVVector v, double weight) {
+		double Z = sentProb();
+		for (int i = numBuiltCells - 1; i >= 0; i--) {
+			int cell = cellOrder[i];
+			for (int a = arcBegin[cell]; a < arcEnd[cell]; a++) {
+				double count = scaled
+						? weight * posterior[cell] * arcShare[a]
+						: weight * FastMath.exp(outside[cell]
+								+ inside[arcLhs[a]] + inside[arcRhs[a]] + arcScore[a] - Z);
+				softCountEvents(cellType(cell), cellDir(cell), cellTop(cell), cellBottom(cell),
+						arcSplit[a], count, v);
+			}
+		}
+	}
+
+	@Override
+	public double sentProb() {
+		if (mode == Mode.VITERBI)
+			throw new Error("sentProb() is not computed in VITERBI mode");
+		return inside[tri(0, states-1, RIGHT)];
+	}
+
+	@Override
+	public double viterbiProb() {
+		return viterbi[tri(0, states-1, RIGHT)];
+	}
+
+	@Override
+	public void traverseBranches(CellFunction func) {
+		throw new Error("FlatLatticeParser has no Cell objects to traverse");
+	}
+
+	@Override
+	public double lexicalProbMarginalizedOverParses(DMV lexModel) {
+		double pSent = 0.0;
+		for (int i = numBuiltCells - 1; i >= 0; i--) {
+			int cell = cellOrder[i];
+			if (isTrapezoid(cell)) {
+				// Not done yet! (See LatticeParser.)
+				pSent += lexModel.logProb(
+						edges[cellTop(cell)].token, edges[cellBottom(cell)].token,
+						cellDir(cell) == 0);
+			}
+		}
+		return pSent;
+	}
+
+	@Override
+	public void printChart(PrintStream out, int type) {
+		int colWidth = 37;
+		int cols = type == TRI ? states : numEdges;
+
+		printPadded(out, "", 8);
+		for (int j = 1; j < cols; j++)
+			printPadded(out, j + "", colWidth);
+		out.println();
+
+		for (int i = 0; i < numEdges; i++) {
+			out.println();
+
+			String w = edges[i].token.getTag();
+			printPadded(out, i + " " + w.substring(0, Math.min(w.length(), 6)), 8);
+
+			for (int d: new int[] {RIGHT, LEFT}) {
+				if (d == LEFT)
+					printPadded(out, "", 8);
+				for (int j = 1; j < cols; j++) {
+					int cell = type == TRI ? tri(i, j, d) : trap(i, j, d);
+					printPadded(out, cellString(cell), colWidth);
+				}
+				out.println();
+			}
+		}
+	}
+	private String cellString(int cell) {
+		int d = cellDir(cell);
+		if (!inChart(cell))
+			return dirStr(d) + ":";
+
+		String children = "           ";
+		int a = viterbiArc[cell];
+		if (a >= 0) {
+			children = String.format("%s%d%d%s %s%d%d%s",
+				typeStr(isTrapezoid(arcLhs[a]) ? TRAP : TRI),
+				cellTop(arcLhs[a]), cellBottom(arcLhs[a]), dirStr(cellDir(arcLhs[a])),
+				typeStr(isTrapezoid(arcRhs[a]) ? TRAP : TRI),
+				cellTop(arcRhs[a]), cellBottom(arcRhs[a]), dirStr(cellDir(arcRhs[a])));
+		}
+		return String.format("%s: %s  %9.3f %9.3f",
+				dirStr(d), children, viterbi[cell], Math.exp(viterbi[cell]));
+	}
+
+	/**
+	 * Random "sausage" lattice over tags t0 ... t(numTags-1), with width parallel edges per
+	 * position and, if skips is set, an extra two-position edge from every position.
+	 */
+	static TaggedLattice randomLattice(
+			Random random, int length, int width, boolean skips, int numTags)
+	{
+		TaggedLattice lattice = new TaggedLattice(length + 1);
+		for (int i = 0; i < length; i++) {
+			for (int k = 0; k < width; k++) {
+				lattice.addEdge(i, i+1, new StringToken("t" + random.nextInt(numTags)),
+						Math.log(random.nextDouble()));
+			}
+			if (skips && i + 2 <= length) {
+				lattice.addEdge(i, i+2, new StringToken("t" + random.nextInt(numTags)),
+						Math.log(random.nextDouble()));
+			}
+		}
+		return lattice;
+	}
+
+	/** Random (unnormalized) DMV over the tags generated by randomLattice(). */
+	static DMVVector randomModel(Random random, int numTags) {
+		Vocabulary vocab = new Vocabulary();
+		vocab.add(DMVGrammar.ROOT);
+		for (int i = 0; i < numTags; i++)
+			vocab.add("t" + i);
+		vocab.complete();
+
+		DMVVector model = new DMVVector(vocab);
+		for (int i = 0; i < model.vector.length; i++)
+			model.vector[i] = Math.log(random.nextDouble());
+		return model;
+	}
+
+	/** Bytes allocated by this thread so far, or -1 if the JVM doesn't count them. */
+	static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+		if (!allocationBean.isThreadAllocatedMemorySupported()
+				|| !allocationBean.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Parse the same random lattices with both parsers and report the largest differences
+	 * between their outputs.
+	 */
+	static void compareTest(int trials, int length, int width, int numTags) {
+		Random random = new Random(0);
+		DMVVector model = randomModel(random, numTags);
+		Scorer scorer = new DMVVectorScorer(model);
+		LatticeParser reference = new LatticeParser(scorer);
+		FlatLatticeParser flat = new FlatLatticeParser(scorer);
+		flat.setReuseChart(true);
+		flat.setMeasureAllocation(true);
+		LatticeParser compiled = new FlatLatticeParser(new CompiledDMVScorer(model));
+		LatticeParser viterbiOnly = new FlatLatticeParser(scorer);
+		viterbiOnly.setMode(Mode.VITERBI);
+		FlatLatticeParser scaledParser = new FlatLatticeParser(scorer);
+		scaledParser.setReuseChart(true);
+		scaledParser.setScaled(true);
+		FlatLatticeParser scaledFused = new FlatLatticeParser(new CompiledDMVScorer(model));
+		scaledFused.setReuseChart(true);
+		scaledFused.setScaled(true);
+		scaledFused.setMode(Mode.INSIDE);
+
+		int parseMismatches = 0;
+		int compiledMismatches = 0;
+		int viterbiModeMismatches = 0;
+		int fusedCountMismatches = 0;
+		int kBestMismatches = 0;
+		double maxProbDiff = 0.0;
+		double maxCountDiff = 0.0;
+		int scaledParseMismatches = 0;
+		double maxScaledProbDiff = 0.0;
+		double maxScaledOutsideDiff = 0.0;
+		double maxScaledCountDiff = 0.0;
+		for (int trial = 0; trial < trials; trial++) {
+			TaggedLattice lattice = randomLattice(
+					random, 1 + random.nextInt(length), width, trial % 2 == 1, numTags);
+
+			int[] refParse = reference.parse(lattice);
+			int[] flatParse = flat.parse(lattice);
+			if (!Arrays.equals(refParse, flatParse))
+				parseMismatches++;
+
+			List<ScoredParse> kBest = flat.kBestParses(5);
+			boolean sorted = true;
+			for (int i = 1; i < kBest.size(); i++)
+				sorted &= kBest.get(i).score <= kBest.get(i-1).score;
+			if (!sorted || !Arrays.equals(flatParse, kBest.get(0).parse)
+					|| kBest.get(0).score != flat.viterbiProb())
+				kBestMismatches++;
+			maxProbDiff = Math.max(maxProbDiff,
+					Math.abs(reference.viterbiProb() - flat.viterbiProb()));
+			maxProbDiff = Math.max(maxProbDiff,
+					Math.abs(reference.sentProb() - flat.sentProb()));
+
+			if (!Arrays.equals(flatParse, viterbiOnly.parse(lattice))
+					|| flat.viterbiProb() != viterbiOnly.viterbiProb())
+				viterbiModeMismatches++;
+
+			// the compiled parser's counts are collected during its outside pass
+			DMVVector fusedCounts = new DMVVector(model.getVocabulary());
+			compiled.softCountNextParse(fusedCounts, 1.0);
+			if (!Arrays.equals(flatParse, compiled.parse(lattice))
+					|| flat.sentProb() != compiled.sentProb())
+				compiledMismatches++;
+
+			DMVVector refCounts = new DMVVector(model.getVocabulary());
+			DMVVector flatCounts = new DMVVector(model.getVocabulary());
+			reference.addSoftCounts(refCounts, 1.0);
+			flat.addSoftCounts(flatCounts, 1.0);
+			for (int i = 0; i < refCounts.vector.length; i++) {
+				maxCountDiff = Math.max(maxCountDiff,
+						Math.abs(refCounts.vector[i] - flatCounts.vector[i]));
+			}
+			if (!Arrays.equals(flatCounts.vector, fusedCounts.vector))
+				fusedCountMismatches++;
+
+			DMVVector scaledCounts = new DMVVector(model.getVocabulary());
+			DMVVector scaledFusedCounts = new DMVVector(model.getVocabulary());
+			if (!Arrays.equals(flatParse, scaledParser.parse(lattice))
+					|| flat.viterbiProb() != scaledParser.viterbiProb())
+				scaledParseMismatches++;
+			scaledParser.addSoftCounts(scaledCounts, 1.0);
+			scaledFused.softCountNextParse(scaledFusedCounts, 1.0);
+			scaledFused.parse(lattice);
+			maxScaledProbDiff = Math.max(maxScaledProbDiff,
+					Math.abs(flat.sentProb() - scaledParser.sentProb()));
+			maxScaledProbDiff = Math.max(maxScaledProbDiff,
+					Math.abs(flat.sentProb() - scaledFused.sentProb()));
+			for (int i = 0; i < flat.numLeaves; i++) {
+				int leaf = flat.leafCells[i];
+				if (flat.outside[leaf] != Double.NEGATIVE_INFINITY) {
+					maxScaledOutsideDiff = Math.max(maxScaledOutsideDiff,
+							Math.abs(flat.outside[leaf] - scaledParser.outside[leaf]));
+				}
+			}
+			for (int i = 0; i < flatCounts.vector.length; i++) {
+				maxScaledCountDiff = Math.max(maxScaledCountDiff,
+						Math.abs(flatCounts.vector[i] - scaledCounts.vector[i]));
+				maxScaledCountDiff = Math.max(maxScaledCountDiff,
+						Math.abs(flatCounts.vector[i] - scaledFusedCounts.vector[i]));
+			}
+		}
+
+		System.out.printf("%d lattices: %d parse mismatches; " +
+				"max score difference %g; max expected count difference %g\n",
+				trials, parseMismatches, maxProbDiff, maxCountDiff);
+		System.out.printf("%.1f KB allocated per parse with reused chart\n",
+				flat.allocatedBytesPerParse() / 1e3);
+		System.out.printf("%d lattices scored differently by CompiledDMVScorer\n",
+				compiledMismatches);
+		System.out.printf("%d lattices parsed differently in VITERBI mode\n",
+				viterbiModeMismatches);
+		System.out.printf("%d lattices with different counts from the fused outside pass\n",
+				fusedCountMismatches);
+		System.out.printf("%d lattices whose k-best list disagrees with the viterbi parse\n",
+				kBestMismatches);
+		System.out.printf("Scaled: %d parse mismatches; max sentence probability difference %g; "
+				+ "max leaf outside difference %g; max expected count difference %g\n",
+				scaledParseMismatches, maxScaledProbDiff, maxScaledOutsideDiff,
+				maxScaledCountDiff);
+	}
+
+	/** Throughput and allocation of parse() + addSoftCounts() for both parsers. */
+	static void speedTest(int trials, int length, int width, int numTags, boolean compiled) {
+		Random random = new Random(0);
+		DMVVector model = randomModel(random, numTags);
+		Scorer scorer = compiled ? new CompiledDMVScorer(model) : new DMVVectorScorer(model);
+		TaggedLattice[] lattices = new TaggedLattice[trials];
+		for (int i = 0; i < trials; i++)
+			lattices[i] = randomLattice(random, length, width, true, numTags);
+		DMVVector counts = new DMVVector(model.getVocabulary());
+
+		FlatLatticeParser reusingParser = new FlatLatticeParser(scorer);
+		reusingParser.setReuseChart(true);
+		FlatLatticeParser scaledParser = new FlatLatticeParser(scorer);
+		scaledParser.setReuseChart(true);
+		scaledParser.setScaled(true);
+
+		for (LatticeParser parser: new LatticeParser[] {
+				new LatticeParser(scorer), new FlatLatticeParser(scorer), reusingParser,
+				scaledParser})
+		{
+			// warm up
+			for (int i = 0; i < Math.min(trials, 20); i++) {
+				parser.parse(lattices[i]);
+				parser.addSoftCounts(counts, 1.0);
+			}
+
+			long startBytes = allocatedBytes();
+			long startTime = System.nanoTime();
+			for (TaggedLattice lattice: lattices) {
+				parser.parse(lattice);
+				parser.addSoftCounts(counts, 1.0);
+			}
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+			long bytes = allocatedBytes() - startBytes;
+
+			System.out.printf("%s%s: %.1f lattices/sec; %.1f KB allocated per lattice\n",
+					parser.getClass().getSimpleName(),
+					parser == reusingParser ? " (reused chart)"
+							: parser == scaledParser ? " (reused chart, scaled)" : "",
+					trials / seconds,
+					bytes / 1e3 / trials);
+		}
+	}
+
+	/**
+	 * Parse the same random lattices without pruning and at several pruning settings, and
+	 * report the speed and accuracy (relative to the unpruned parses) of each setting.
+	 */
+	static void pruneTest(int trials, int length, int width, int numTags) {
+		Random random = new Random(0);
+		DMVVector model = randomModel(random, numTags);
+		Scorer scorer = new CompiledDMVScorer(model);
+		TaggedLattice[] lattices = new TaggedLattice[trials];
+		for (int i = 0; i < trials; i++)
+			lattices[i] = randomLattice(random, length, width, true, numTags);
+
+		FlatLatticeParser exact = new FlatLatticeParser(scorer);
+		exact.setReuseChart(true);
+		exact.setMode(Mode.VITERBI);
+		int[][] exactParses = new int[trials][];
+		double[] exactScores = new double[trials];
+		for (int i = 0; i < trials; i++) {
+			exactParses[i] = exact.parse(lattices[i]);
+			exactScores[i] = exact.viterbiProb();
+		}
+
+		double inf = Double.POSITIVE_INFINITY;
+		double[][] settings = {
+				// beam, threshold, coarse threshold
+				{inf, inf, inf},
+				{20, inf, inf}, {10, inf, inf}, {5, inf, inf}, {2, inf, inf},
+				{inf, 20, inf}, {inf, 10, inf}, {inf, 5, inf},
+				{inf, inf, 10}, {inf, inf, 5}, {inf, inf, 2},
+				{10, 10, 5}, {5, 5, 2},
+		};
+		System.out.println(
+				"beam\tthresh\tcoarse\tlat/sec\texact\tattach\tloss\tcells\tedges\tfallbacks");
+		for (double[] setting: settings) {
+			// warm up on a separate parser, so ties are broken as they were for exactParses
+			FlatLatticeParser parser = null;
+			for (int pass = 0; pass < 2; pass++) {
+				parser = new FlatLatticeParser(scorer);
+				parser.setReuseChart(true);
+				parser.setMode(Mode.VITERBI);
+				parser.setBeam(setting[0]);
+				parser.setThreshold(setting[1]);
+				parser.setCoarseThreshold(setting[2]);
+				if (pass == 0) {
+					for (TaggedLattice lattice: lattices)
+						parser.parse(lattice);
+				}
+			}
+
+			int exactMatches = 0;
+			int attachments = 0;
+			int correctAttachments = 0;
+			double loss = 0.0;
+			long startTime = System.nanoTime();
+			for (int i = 0; i < trials; i++) {
+				int[] parse = parser.parse(lattices[i]);
+				loss += exactScores[i] - parser.viterbiProb();
+				if (Arrays.equals(parse, exactParses[i]))
+					exactMatches++;
+				for (int e = 0; e < parse.length; e++) {
+					if (exactParses[i][e] != -1) {
+						attachments++;
+						if (parse[e] == exactParses[i][e])
+							correctAttachments++;
+					}
+				}
+			}
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+
+			System.out.printf("%s\t%s\t%s\t%.1f\t%.3f\t%.3f\t%.3f\t%.1f\t%.2f\t%d\n",
+					setting[0], setting[1], setting[2],
+					trials / seconds,
+					(double) exactMatches / trials,
+					(double) correctAttachments / attachments,
+					loss / trials,
+					(double) parser.prunedCells / trials,
+					(double) parser.prunedEdges / trials,
+					parser.pruningFallbacks);
+		}
+	}
+
+	/**
+	 * Parse random word lattices, with width candidate words per position whose tags are drawn
+	 * from numTags tags, both as they are and collapsed with TaggedLattice.collapseToTags(), and
+	 * report the differences between the results and the speed of each.
+	 */
+	static void collapseTest(int trials, int length, int width, int numTags) {
+		Random random = new Random(0);
+		DMVVector model = randomModel(random, numTags);
+		Scorer scorer = new CompiledDMVScorer(model);
+		TaggedLattice[] lattices = new TaggedLattice[trials];
+		for (int i = 0; i < trials; i++) {
+			TaggedLattice lattice = new TaggedLattice(length + 1);
+			for (int j = 0; j < length; j++) {
+				for (int k = 0; k < width; k++) {
+					lattice.addEdge(j, j+1,
+							new TaggedToken("w" + k, "t" + random.nextInt(numTags), 1.0),
+							Math.log(random.nextDouble()));
+				}
+			}
+			lattices[i] = lattice;
+		}
+
+		FlatLatticeParser parser = new FlatLatticeParser(scorer);
+		parser.setReuseChart(true);
+		int parseMismatches = 0;
+		int wordMismatches = 0;
+		int viterbiMismatches = 0;
+		double maxProbDiff = 0.0;
+		double maxCountDiff = 0.0;
+		long edges = 0;
+		long collapsedEdges = 0;
+		for (TaggedLattice lattice: lattices) {
+			DMVVector counts = new DMVVector(model.getVocabulary());
+			parser.softCountNextParse(counts, 1.0);
+			int[] parse = parser.parse(lattice);
+			double viterbiProb = parser.viterbiProb();
+			double sentProb = parser.sentProb();
+
+			TaggedLattice.CollapsedLattice collapsed = lattice.collapseToTags();
+			DMVVector collapsedCounts = new DMVVector(model.getVocabulary());
+			parser.softCountNextParse(collapsedCounts, 1.0);
+			int[] expandedParse = collapsed.expandParse(parser.parse(collapsed));
+
+			if (!Arrays.equals(parse, expandedParse))
+				parseMismatches++;
+			for (int i = 0; i < parse.length; i++) {
+				if ((parse[i] == -1) != (expandedParse[i] == -1)) {
+					wordMismatches++;
+					break;
+				}
+			}
+			if (viterbiProb != parser.viterbiProb())
+				viterbiMismatches++;
+			maxProbDiff = Math.max(maxProbDiff, Math.abs(sentProb - parser.sentProb()));
+			for (int i = 0; i < counts.vector.length; i++) {
+				maxCountDiff = Math.max(maxCountDiff,
+						Math.abs(counts.vector[i] - collapsedCounts.vector[i]));
+			}
+			edges += lattice.edges.size();
+			collapsedEdges += collapsed.edges.size();
+		}
+		System.out.printf("%d lattices: %d parse mismatches (%d with different words); "
+				+ "%d viterbi score mismatches; max sentence probability difference %g; "
+				+ "max expected count difference %g\n",
+				trials, parseMismatches, wordMismatches, viterbiMismatches, maxProbDiff,
+				maxCountDiff);
+		System.out.printf("%.1f edges per lattice, %.1f after collapsing\n",
+				(double) edges / trials, (double) collapsedEdges / trials);
+
+		parser.setMode(Mode.VITERBI);
+		for (boolean collapse: new boolean[] {false, true, false, true}) {
+			long startTime = System.nanoTime();
+			for (TaggedLattice lattice: lattices) {
+				if (collapse) {
+					TaggedLattice.CollapsedLattice collapsed = lattice.collapseToTags();
+					collapsed.expandParse(parser.parse(collapsed));
+				}
+				else
+					parser.parse(lattice);
+			}
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+			System.out.printf("%s: %.1f lattices/sec\n",
+					collapse ? "Collapsed" : "Uncollapsed", trials / seconds);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		CommandLineParser clp = new CommandLineParser(
+				"-compare -prune -collapse -compiled -trials=i -length=i -width=i -tags=i", args);
+		int trials = clp.opt("-trials", 200);
+		int length = clp.opt("-length", 15);
+		int width = clp.opt("-width", 5);
+		int numTags = clp.opt("-tags", 100);
+
+		if (clp.opt("-compare"))
+			compareTest(trials, length, width, numTags);
+		else if (clp.opt("-prune"))
+			pruneTest(trials, length, width, numTags);
+		else if (clp.opt("-collapse"))
+			collapseTest(trials, length, width, numTags);
+		else
+			speedTest(trials, length, width, numTags, clp.opt("-compiled"));
+	}
+}
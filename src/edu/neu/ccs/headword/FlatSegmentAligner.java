@@ -0,0 +1,376 @@
+package edu.neu.ccs.headword;
+
+import static edu.neu.ccs.headword.util.Util.logSum;
+import static edu.neu.ccs.headword.util.Util.logSumExp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import edu.neu.ccs.headword.Alignment.AlignedLine;
+import edu.neu.ccs.headword.Alignment.Segment;
+import edu.neu.ccs.headword.util.CommandLineParser;
+import edu.neu.ccs.headword.util.Counter;
+import edu.neu.ccs.headword.util.Counter.Count;
+
+/**
+ * SegmentAligner's banded alignment (substitutions, insertions and deletions) with the table
+ * in flat primitive arrays instead of Cell and Candidate objects. The arrays are reused from
+ * one alignment to the next, so an aligner used for many alignments allocates nothing once
+ * its arrays are big enough (provided its model is a CharSegmentModel). Transitions are
+ * considered in the same order as SegmentAligner's, so the results are identical.
+ *
+ * An instance isn't thread-safe; use one per thread.
+ */
+public class FlatSegmentAligner {
+
+	/**
+	 * Segment probabilities without Segment objects: the log probability of the input
+	 * characters [i, i + inputLength) coming out as the output characters [j, j + outputLength).
+	 * It must equal SegmentModel.prob() of that segment at position i.
+	 */
+	public interface CharSegmentModel {
+		double prob(String input, int i, int inputLength, String output, int j, int outputLength);
+	}
+
+	static class SegmentModelAdapter implements CharSegmentModel {
+		final SegmentModel model;
+
+		SegmentModelAdapter(SegmentModel model) {
+			this.model = model;
+		}
+
+		@Override
+		public double prob(
+				String input, int i, int inputLength, String output, int j, int outputLength)
+		{
+			Segment segment = new Segment(
+					input.substring(i, i + inputLength), output.substring(j, j + outputLength));
+			return model.prob(segment, input, i);
+		}
+	}
+
+	public static CharSegmentModel charModel(SegmentModel model) {
+		if (model instanceof CharSegmentModel)
+			return (CharSegmentModel) model;
+		return new SegmentModelAdapter(model);
+	}
+
+	// Transitions into a cell, in SegmentAligner's order: substitute, insert, delete
+	static final int NUM_MOVES = 3;
+	static final int[] INPUT_LENGTH = new int[] {1, 0, 1};
+	static final int[] OUTPUT_LENGTH = new int[] {1, 1, 0};
+
+	final CharSegmentModel model;
+	final int searchBeamWidth;
+
+	String input;
+	String output;
+
+	// The band of row i is [rowStart[i], rowEnd[i]), starting at cell index rowOffset[i]
+	int[] rowStart = new int[0];
+	int[] rowEnd = new int[0];
+	int[] rowOffset = new int[0];
+	int numCells;
+
+	double[] segmentProb = new double[0]; // NUM_MOVES per cell; NaN if a move isn't possible
+	double[] bestPartialPathProb = new double[0];
+	byte[] bestMove = new byte[0]; // -1 for none
+	double[] forwardProb = new double[0];
+	double[] backwardProb = new double[0];
+	double totalProb = Double.NaN;
+	final double[] forwardTerms = new double[NUM_MOVES];
+
+	public FlatSegmentAligner(SegmentModel model, int searchBeamWidth) {
+		this.model = charModel(model);
+		this.searchBeamWidth = searchBeamWidth;
+	}
+
+	int cell(int i, int j) {
+		return rowOffset[i] + j - rowStart[i];
+	}
+
+	boolean inBand(int i, int j) {
+		return j >= rowStart[i] && j < rowEnd[i];
+	}
+
+	void setUp(String input, String output) {
+		this.input = input;
+		this.output = output;
+		totalProb = Double.NaN;
+
+		int rows = input.length() + 1;
+		if (rowStart.length < rows) {
+			int capacity = Math.max(rows, 2 * rowStart.length);
+			rowStart = new int[capacity];
+			rowEnd = new int[capacity];
+			rowOffset = new int[capacity];
+		}
+
+		numCells = 0;
+		for (int i = 0; i < rows; i++) {
+			// Exactly as in SegmentAligner's constructor
+			int beamStart = (int) (i * (float) output.length() / input.length()
+					- (float) searchBeamWidth/2 + 0.5);
+			int beamEnd = beamStart + searchBeamWidth;
+			rowStart[i] = Math.max(0, beamStart);
+			rowEnd[i] = Math.min(output.length() + 1, beamEnd);
+			rowOffset[i] = numCells;
+			numCells += Math.max(0, rowEnd[i] - rowStart[i]);
+		}
+
+		if (bestPartialPathProb.length < numCells) {
+			int capacity = Math.max(numCells, 2 * bestPartialPathProb.length);
+			segmentProb = new double[NUM_MOVES * capacity];
+			bestPartialPathProb = new double[capacity];
+			bestMove = new byte[capacity];
+			forwardProb = new double[capacity];
+			backwardProb = new double[capacity];
+		}
+	}
+
+	/** Fill in the Viterbi table for aligning output to input. */
+	public void populate(String input, String output) {
+		setUp(input, output);
+
+		for (int i = 0; i < input.length() + 1; i++) {
+			for (int j = rowStart[i]; j < rowEnd[i]; j++) {
+				int c = cell(i, j);
+				double best = Double.NEGATIVE_INFINITY;
+				int move = -1;
+				for (int k = 0; k < NUM_MOVES; k++) {
+					int di = INPUT_LENGTH[k];
+					int dj = OUTPUT_LENGTH[k];
+					segmentProb[NUM_MOVES*c + k] = Double.NaN;
+					if (i - di < 0 || j - dj < 0 || !inBand(i - di, j - dj))
+						continue;
+
+					double p = model.prob(input, i - di, di, output, j - dj, dj);
+					segmentProb[NUM_MOVES*c + k] = p;
+					double pathProb = p + bestPartialPathProb[cell(i - di, j - dj)];
+					if (pathProb > best || move == -1) {
+						best = pathProb;
+						move = k;
+					}
+				}
+				if (i == 0 && j == 0)
+					best = 0.0;
+				bestPartialPathProb[c] = best;
+				bestMove[c] = (byte) move;
+			}
+		}
+	}
+
+	/** Populate the table and return the probability of the best alignment. */
+	public double probOfBestAlignment(String input, String output) {
+		populate(input, output);
+		return probOfBestAlignment();
+	}
+
+	public double probOfBestAlignment() {
+		return bestPartialPathProb[cell(input.length(), output.length())];
+	}
+
+	/** The best alignment, which (unlike the rest of this class) does allocate objects. */
+	public AlignedLine align() {
+		LinkedList<Segment> optimalPath = new LinkedList<Segment>();
+		int i = input.length();
+		int j = output.length();
+		while (i > 0 || j > 0) {
+			int move = bestMove[cell(i, j)];
+			if (move < 0)
+				throw new Error("No alignment of '" + input + "' and '" + output + "'");
+			int di = INPUT_LENGTH[move];
+			int dj = OUTPUT_LENGTH[move];
+			optimalPath.addFirst(
+					new Segment(input.substring(i - di, i), output.substring(j - dj, j)));
+			i -= di;
+			j -= dj;
+		}
+		return new AlignedLine(input, output, optimalPath);
+	}
+
+	/**
+	 * Compute forward and backward probabilities over the populated table, for
+	 * addSoftCounts(), and return the total probability of all alignments.
+	 */
+	public double forwardBackward() {
+		int n = input.length();
+		int m = output.length();
+
+		forwardProb[cell(0, 0)] = 0;
+		for (int i = 0; i < n + 1; i++) {
+			for (int j = rowStart[i]; j < rowEnd[i]; j++) {
+				if (i == 0 && j == 0)
+					continue;
+				int c = cell(i, j);
+				int numTerms = 0;
+				for (int k = 0; k < NUM_MOVES; k++) {
+					double segmentP = segmentProb[NUM_MOVES*c + k];
+					if (Double.isNaN(segmentP))
+						continue;
+					forwardTerms[numTerms++] = segmentP
+							+ forwardProb[cell(i - INPUT_LENGTH[k], j - OUTPUT_LENGTH[k])];
+				}
+				forwardProb[c] = logSumExp(forwardTerms, 0, numTerms);
+			}
+		}
+
+		for (int c = 0; c < numCells; c++)
+			backwardProb[c] = Double.NEGATIVE_INFINITY;
+		backwardProb[cell(n, m)] = 0;
+		for (int i = n; i >= 0; i--) {
+			for (int j = rowEnd[i] - 1; j >= rowStart[i]; j--) {
+				int c = cell(i, j);
+				double cellBackProb = backwardProb[c];
+				for (int k = 0; k < NUM_MOVES; k++) {
+					double segmentP = segmentProb[NUM_MOVES*c + k];
+					if (Double.isNaN(segmentP))
+						continue;
+					int from = cell(i - INPUT_LENGTH[k], j - OUTPUT_LENGTH[k]);
+					backwardProb[from] = logSum(backwardProb[from], cellBackProb + segmentP);
+				}
+			}
+		}
+
+		totalProb = backwardProb[cell(0, 0)];
+		return totalProb;
+	}
+
+	/** Add each segment's posterior probability to softCounts. Call after forwardBackward(). */
+	public void addSoftCounts(Counter<Segment> softCounts) {
+		if (Double.isNaN(totalProb))
+			throw new Error("addSoftCounts() called before forwardBackward()");
+
+		for (int i = 0; i < input.length() + 1; i++) {
+			for (int j = rowStart[i]; j < rowEnd[i]; j++) {
+				int c = cell(i, j);
+				for (int k = 0; k < NUM_MOVES; k++) {
+					double segmentP = segmentProb[NUM_MOVES*c + k];
+					if (Double.isNaN(segmentP))
+						continue;
+					int iStart = i - INPUT_LENGTH[k];
+					int jStart = j - OUTPUT_LENGTH[k];
+					double prob = forwardProb[cell(iStart, jStart)] + segmentP
+							+ backwardProb[c] - totalProb;
+					softCounts.add(new Segment(input.substring(iStart, i),
+							output.substring(jStart, j)), Math.exp(prob));
+				}
+			}
+		}
+	}
+
+	static String randomLine(Random random, int length) {
+		StringBuilder line = new StringBuilder();
+		while (line.length() < length)
+			line.append(Benchmarks.randomWord(random)).append(' ');
+		return line.toString().trim();
+	}
+
+	/**
+	 * Compare Viterbi probabilities, best alignments, total probabilities and soft counts with
+	 * SegmentAligner's, for a uniform model and for a merge/split model reestimated from it.
+	 */
+	static void compareTest(int trials, int beamWidth) {
+		Random random = new Random(0);
+		List<AlignedLine> lines = new ArrayList<AlignedLine>();
+		for (int t = 0; t < 200; t++) {
+			AlignedLine line = new AlignedLine();
+			line.input = randomLine(random, 40);
+			line.output = Benchmarks.garble(random, line.input, 0.1);
+			lines.add(line);
+		}
+		SegmentModel uniform = new SegmentModel.UniformSegmentModel(
+				Math.log(0.9), 0.01, 0.01, 0.01, 0.0, 0.0);
+		SegmentModel trained = new SmoothSegmentModel(SegmentAligner.reestimate(
+				lines, uniform, null, beamWidth, new double[1]));
+
+		for (SegmentModel model: new SegmentModel[] {uniform, trained}) {
+			FlatSegmentAligner flat = new FlatSegmentAligner(model, beamWidth);
+			int mismatches = 0;
+			for (int t = 0; t < trials; t++) {
+				String input = randomLine(random, 1 + random.nextInt(50));
+				String output = Benchmarks.garble(random, input, 0.15);
+				if (random.nextInt(10) == 0)
+					output = input.substring(0, random.nextInt(input.length()));
+
+				SegmentAligner aligner = new SegmentAligner(model, input, output, beamWidth);
+				aligner.populate();
+				flat.populate(input, output);
+
+				boolean same = aligner.probOfBestAlignment() == flat.probOfBestAlignment();
+				if (aligner.probOfBestAlignment() != Double.NEGATIVE_INFINITY)
+					same &= aligner.align().segments.equals(flat.align().segments);
+				same &= aligner.forwardBackward() == flat.forwardBackward()
+						|| Double.isNaN(flat.totalProb);
+
+				Counter<Segment> counts = new Counter<Segment>();
+				Counter<Segment> flatCounts = new Counter<Segment>();
+				aligner.addSoftCounts(counts);
+				flat.addSoftCounts(flatCounts);
+				same &= counts.size() == flatCounts.size();
+				for (Entry<Segment, Count> entry: counts.entries()) {
+					double a = entry.getValue().value;
+					double b = flatCounts.get(entry.getKey(), Double.NaN);
+					same &= a == b || (Double.isNaN(a) && Double.isNaN(b));
+				}
+
+				if (!same) {
+					if (mismatches < 5) {
+						System.out.printf("Mismatch: '%s' / '%s': %f vs. %f\n", input, output,
+								aligner.probOfBestAlignment(), flat.probOfBestAlignment());
+					}
+					mismatches++;
+				}
+			}
+			System.out.printf("%s: %d mismatches in %d trials\n",
+					model.getClass().getSimpleName(), mismatches, trials);
+		}
+	}
+
+	static void speedTest(int trials, int beamWidth) {
+		Random random = new Random(0);
+		String[] inputs = new String[trials];
+		String[] outputs = new String[trials];
+		for (int t = 0; t < trials; t++) {
+			inputs[t] = randomLine(random, 60);
+			outputs[t] = Benchmarks.garble(random, inputs[t], 0.05);
+		}
+		SegmentModel model = new SegmentModel.UniformSegmentModel(
+				Math.log(0.9), 0.01, 0.01, 0.01, 0.0, 0.0);
+		FlatSegmentAligner flat = new FlatSegmentAligner(model, beamWidth);
+
+		for (int round = 0; round < 3; round++) {
+			double sum = 0, flatSum = 0;
+			long start = System.nanoTime();
+			for (int t = 0; t < trials; t++) {
+				SegmentAligner aligner =
+						new SegmentAligner(model, inputs[t], outputs[t], beamWidth);
+				aligner.populate();
+				sum += aligner.forwardBackward();
+			}
+			long middle = System.nanoTime();
+			for (int t = 0; t < trials; t++) {
+				flat.populate(inputs[t], outputs[t]);
+				flatSum += flat.forwardBackward();
+			}
+			long end = System.nanoTime();
+			System.out.printf("SegmentAligner: %.1f us/line; FlatSegmentAligner: %.1f us/line"
+					+ " (total log probs %g, %g)\n",
+					(middle - start) / 1e3 / trials, (end - middle) / 1e3 / trials, sum, flatSum);
+		}
+	}
+
+	public static void main(String[] args) {
+		CommandLineParser clp = new CommandLineParser(
+				"-compare -speed -trials=i -beam=i", args);
+		int trials = clp.opt("-trials", 2000);
+		int beamWidth = clp.opt("-beam", 3);
+		if (clp.opt("-compare"))
+			compareTest(trials, beamWidth);
+		if (clp.opt("-speed"))
+			speedTest(trials, beamWidth);
+	}
+}
@@ -0,0 +1,78 @@
+package edu.neu.ccs.headword;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map.Entry;
+
+import edu.neu.ccs.headword.util.Counter;
+import edu.neu.ccs.headword.util.TopNList;
+import edu.neu.ccs.headword.util.Counter.Count;
+
+/**
+ * The original implementation of InexactDictionary, with a HashMap from each n-gram to a list
+ * of word indexes and a Counter of matches per lookup.
+ * Kept only as a reference for InexactDictionary.compareTest().
+ */
+class HashMapInexactDictionary {
+	
+	ArrayList<String> words = new ArrayList<String>();
+	LinkedList<String> length1Words = new LinkedList<String>();
+	HashMap<String, Integer> wordIndexes = new HashMap<String, Integer>();
+	
+	HashMap<String, ArrayList<Integer>> invertedIndex =
+		new HashMap<String, ArrayList<Integer>>();
+	
+	public void addWord(String word) {
+		word = word.intern();
+		
+		if (wordIndexes.containsKey(word))
+			return;
+		
+		int index = words.size();
+		words.add(word);
+		wordIndexes.put(word, index);
+		
+		if (word.length() == 1)
+			length1Words.add(word);
+		if (word.length() == 2)
+			length1Words.add(word);
+		
+		for (String substring: InexactDictionary.substrings(word, word.length() <= 5)) {
+			ArrayList<Integer> entries = invertedIndex.get(substring);
+			if (entries == null) {
+				entries = new ArrayList<Integer>();
+				invertedIndex.put(substring, entries);
+			}
+			entries.add(index);
+		}
+	}
+	
+	public String[] topMatches(String word, int n) {
+		if (word.equals(" "))
+			return new String[] { " " };
+		if (word.length() == 1)
+			return length1Words.toArray(new String[0]);
+		
+		Counter<Integer> wordMatches = new Counter<Integer>();
+		for (String substring: InexactDictionary.substrings(word, word.length() <= 4)) {
+			ArrayList<Integer> substringMatches = invertedIndex.get(substring);
+			if (substringMatches == null)
+				continue;
+			
+			for (Integer match: substringMatches)
+				wordMatches.add(match, substring.length());
+		}
+		
+		TopNList<Integer> topMatches = new TopNList<Integer>(n);
+		for (Entry<Integer, Count> entry: wordMatches.entries())
+			topMatches.add(entry.getKey(), entry.getValue().value);
+		
+		Iterator<Integer> topMatchesIterator = topMatches.iterator();
+		String[] results = new String[Math.min(n, wordMatches.size())];
+		for (int i = 0; i < results.length; i++)
+			results[i] = words.get(topMatchesIterator.next());
+		return results;
+	}
+}
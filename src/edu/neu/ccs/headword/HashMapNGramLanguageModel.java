@@ -0,0 +1,114 @@
+package edu.neu.ccs.headword;
+
+import static edu.neu.ccs.headword.NGramLanguageModel.END_SYM;
+import static edu.neu.ccs.headword.NGramLanguageModel.LN_10;
+import static edu.neu.ccs.headword.NGramLanguageModel.START_SYM;
+import static edu.neu.ccs.headword.NGramLanguageModel.UNK_SYM;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+import edu.neu.ccs.headword.NGramLanguageModel.NGram;
+
+/**
+ * The original implementation of NGramLanguageModel, with every n-gram a key in a HashMap.
+ * Kept only as a reference for NGramLanguageModel.compareTest().
+ */
+class HashMapNGramLanguageModel {
+
+	static class NGramStats {
+		public final double prob;
+		public final Double backoff;
+
+		public NGramStats(double prob, Double backoff) {
+			this.prob = prob;
+			this.backoff = backoff;
+		}
+	}
+
+	int maxOrder;
+	HashMap<NGram, NGramStats> nGrams;
+
+	public HashMapNGramLanguageModel(File file, int order) throws IOException {
+		this.maxOrder = order;
+		nGrams = new HashMap<NGram, NGramStats>();
+
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			int state = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("\\")) {
+					if (line.contains("gram")) {
+						state = Integer.parseInt(line.substring(1, line.indexOf('-')));
+						if (state > order)
+							break;
+					}
+				}
+				else if (state > 0 && !line.isEmpty()) {
+					String[] terms = line.split("\t");
+
+					NGram nGram = new NGram(terms[1].split(" "));
+
+					double probLog10 = Double.parseDouble(terms[0]);
+					if (probLog10 == -99) probLog10 = Double.NEGATIVE_INFINITY;
+					double probLn = probLog10 * LN_10;
+					Double backoffLn = null;
+					if (terms.length == 3)
+						backoffLn = Double.parseDouble(terms[2]) * LN_10;
+
+					nGrams.put(nGram, new NGramStats(probLn, backoffLn));
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	public double probOfSentence(String[] sequence) {
+		String[] delimitedSequence = new String[sequence.length+2];
+		delimitedSequence[0] = START_SYM;
+		for (int i = 1; i < delimitedSequence.length - 1; i++) {
+			if (!nGrams.containsKey(new NGram(sequence, i-1, i)))
+				delimitedSequence[i] = UNK_SYM;
+			else
+				delimitedSequence[i] = sequence[i-1];
+		}
+		delimitedSequence[delimitedSequence.length-1] = END_SYM;
+
+		double p = 0.0;
+		for (int i = 1; i < delimitedSequence.length; i++)
+			p += probOfWord(delimitedSequence, i, maxOrder);
+		return p;
+	}
+
+	double probOfWord(String[] sequence, int pos, int order) {
+		int end = pos + 1;
+		if (order > end)
+			order = end;
+		int start = end - order;
+
+		NGramStats stats = nGrams.get(new NGram(sequence, start, end));
+		if (stats != null)
+			return stats.prob;
+		if (order == 1)
+			return Double.NEGATIVE_INFINITY;
+
+		return getBackoffWeight(new NGram(sequence, start, pos))
+				+ probOfWord(sequence, pos, order - 1);
+	}
+
+	double getBackoffWeight(NGram nGram) {
+		NGramStats stats = nGrams.get(nGram);
+		if (stats == null || stats.backoff == null)
+			return 0.0;
+		else
+			return stats.backoff;
+	}
+}
@@ -2,141 +2,485 @@ package edu.neu.ccs.headword;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.Random;
 
-import edu.neu.ccs.headword.util.Counter;
-import edu.neu.ccs.headword.util.TopNList;
-import edu.neu.ccs.headword.util.Counter.Count;
+import edu.neu.ccs.headword.util.CommandLineParser;
 
 import java.util.Set;
 
+/**
+ * A dictionary that looks up words by shared character trigrams (and bigrams for short words).
+ * Once all words have been added, lookups don't modify it, so it can be shared by threads.
+ *
+ * Each n-gram is packed into a long and given an int id, and the index is a single array of
+ * word indexes, sorted within each n-gram's range. A lookup adds each matching n-gram's length
+ * to its words' scores in a reusable int array, taking the n-grams' posting lists shortest
+ * first, and stops adding new words once no word outside the top n so far could catch up.
+ * The top n words are ranked by score, and then by the order they were added.
+ */
 public class InexactDictionary {
-	
+
 	public static final char BOUNDARY_CHAR = ' ';
 
-	// TODO: Will using the following class for looking up char n-grams improve performance?
-	public static class Substring {
-		char[] superstring;
-		int start;
-		int length;
-		
-		public boolean equals(Object other) {
-			Substring otherSubstring = (Substring) other;
-			if (length != otherSubstring.length)
-				return false;
-			for (int i = 0; i < length; i++)
-				if (superstring[start+i] != otherSubstring.superstring[otherSubstring.start+i])
-					return false;
-			return true;
-		}
-		
-//		public int hashCode() {
-//		}
-		// ...
-	}
-	
-	
+	static final long BIGRAM_FLAG = 1L << 48;
+	static final long EMPTY = -1;
+
 	ArrayList<String> words = new ArrayList<String>();
 	LinkedList<String> length1Words = new LinkedList<String>();
-	LinkedList<String> length2Words = new LinkedList<String>();
 	HashMap<String, Integer> wordIndexes = new HashMap<String, Integer>();
-	
-	HashMap<String, ArrayList<Integer>> invertedIndex =
-		new HashMap<String, ArrayList<Integer>>();
-	
+
+	// Open-addressed table from n-gram keys to n-gram ids
+	long[] gramKeys = newTable(1024);
+	int[] gramIds = new int[1024];
+	int numGrams = 0;
+
+	// (n-gram id << 32 | word index) of each word added since the index was built
+	long[] newPostings = new long[1024];
+	int numNewPostings = 0;
+
+	volatile Index index = new Index(0, new int[1], new int[0]);
+
+	static class Index {
+		final int numWords;
+		// The words containing n-gram g are postings[offsets[g]] to postings[offsets[g+1] - 1]
+		final int[] offsets;
+		final int[] postings;
+
+		Index(int numWords, int[] offsets, int[] postings) {
+			this.numWords = numWords;
+			this.offsets = offsets;
+			this.postings = postings;
+		}
+
+		int numGrams() {
+			return offsets.length - 1;
+		}
+	}
+
+	/** Per-thread lookup state, all zero between lookups. */
+	static class Scratch {
+		int[] scores = new int[0];
+		int[] touched = new int[0];
+		int[] histogram = new int[0];
+
+		void ensureCapacity(int numWords, int maxScore) {
+			if (scores.length < numWords) {
+				scores = new int[numWords];
+				touched = new int[numWords];
+			}
+			if (histogram.length <= maxScore)
+				histogram = new int[maxScore + 1];
+		}
+	}
+
+	static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
 	public InexactDictionary() {
-		
+
+	}
+
+	static long[] newTable(int size) {
+		long[] table = new long[size];
+		Arrays.fill(table, EMPTY);
+		return table;
 	}
-	
+
 	public void addWord(String word) {
 		word = word.intern();
-		
+
 		if (wordIndexes.containsKey(word))
 			return;
-		
+
 		int index = words.size();
 		words.add(word);
 		wordIndexes.put(word, index);
-		
+
 		if (word.length() == 1)
 			length1Words.add(word);
 		if (word.length() == 2)
 			length1Words.add(word);
-		
-		for (String substring: substrings(word, word.length() <= 5)) {
-			ArrayList<Integer> entries = invertedIndex.get(substring);
-			if (entries == null) {
-				entries = new ArrayList<Integer>();
-				invertedIndex.put(substring, entries);
+
+		for (long key: gramKeys(word, word.length() <= 5)) {
+			if (numNewPostings == newPostings.length)
+				newPostings = Arrays.copyOf(newPostings, 2 * numNewPostings);
+			newPostings[numNewPostings++] = (long) addGram(key) << 32 | index;
+		}
+	}
+
+	int addGram(long key) {
+		int slot = slot(gramKeys, key);
+		if (gramKeys[slot] == key)
+			return gramIds[slot];
+
+		if (2 * (numGrams + 1) > gramKeys.length) {
+			long[] oldKeys = gramKeys;
+			int[] oldIds = gramIds;
+			gramKeys = newTable(2 * oldKeys.length);
+			gramIds = new int[gramKeys.length];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					int newSlot = slot(gramKeys, oldKeys[i]);
+					gramKeys[newSlot] = oldKeys[i];
+					gramIds[newSlot] = oldIds[i];
+				}
 			}
-			entries.add(index);
+			slot = slot(gramKeys, key);
 		}
+		gramKeys[slot] = key;
+		gramIds[slot] = numGrams;
+		return numGrams++;
+	}
+
+	/** The id of the n-gram key, or -1. */
+	int gramId(long key) {
+		int slot = slot(gramKeys, key);
+		return gramKeys[slot] == key ? gramIds[slot] : -1;
+	}
+
+	/** The slot holding key, or the empty slot where it belongs. */
+	static int slot(long[] table, long key) {
+		int mask = table.length - 1;
+		long h = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h >>> 32) & mask;
+		while (table[slot] != EMPTY && table[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
 	}
 
 	/**
-	 * Call this after adding corpus, and before looking up words.
+	 * Call this after adding corpus, and before looking up words. (If it isn't called, the first
+	 * lookup after words are added does it.)
 	 */
-	public void complete() {
-		for (ArrayList<Integer> wordList: invertedIndex.values()) {
-			wordList.trimToSize();
-			Collections.sort(wordList);
+	public synchronized void complete() {
+		if (index.numWords != words.size())
+			index = buildIndex();
+	}
+
+	Index index() {
+		Index current = index;
+		if (current.numWords != words.size()) {
+			complete();
+			current = index;
 		}
+		return current;
 	}
-	
+
+	/** Merge the postings added since the last index into a new one. */
+	Index buildIndex() {
+		Index old = index;
+		int oldGrams = old.numGrams();
+
+		int[] offsets = new int[numGrams + 1];
+		for (int g = 0; g < oldGrams; g++)
+			offsets[g + 1] = old.offsets[g + 1] - old.offsets[g];
+		for (int i = 0; i < numNewPostings; i++)
+			offsets[(int) (newPostings[i] >>> 32) + 1]++;
+		for (int g = 0; g < numGrams; g++)
+			offsets[g + 1] += offsets[g];
+
+		// Old words precede new ones, and new postings are in word order, so each range is sorted
+		int[] postings = new int[offsets[numGrams]];
+		int[] next = Arrays.copyOf(offsets, numGrams);
+		for (int g = 0; g < oldGrams; g++) {
+			int length = old.offsets[g + 1] - old.offsets[g];
+			System.arraycopy(old.postings, old.offsets[g], postings, next[g], length);
+			next[g] += length;
+		}
+		for (int i = 0; i < numNewPostings; i++)
+			postings[next[(int) (newPostings[i] >>> 32)]++] = (int) newPostings[i];
+
+		newPostings = new long[1024];
+		numNewPostings = 0;
+		return new Index(words.size(), offsets, postings);
+	}
+
 	public String[] topMatches(String word, int n) {
 		// XXX: These hacks may not be ideal
 		if (word.equals(" "))
 			return new String[] { " " };
 		if (word.length() == 1)
 			return length1Words.toArray(new String[0]);
-		
-		// XXX: Optimization opportunity? (join shortest substring match lists first)
-		Counter<Integer> wordMatches = new Counter<Integer>();
-		for (String substring: substrings(word, word.length() <= 4)) {
-			ArrayList<Integer> substringMatches = invertedIndex.get(substring);
-			if (substringMatches == null)
+
+		Index index = index();
+		int[] offsets = index.offsets;
+		int[] postings = index.postings;
+
+		// The posting lists of the word's n-grams, shortest first, weighted by n-gram length
+		long[] keys = gramKeys(word, word.length() <= 4);
+		int[] lists = new int[keys.length];
+		int[] weights = new int[keys.length];
+		int numLists = 0;
+		int remaining = 0;
+		for (long key: keys) {
+			int g = gramId(key);
+			if (g < 0 || g >= index.numGrams())
 				continue;
-			
-			for (Integer match: substringMatches)
-				wordMatches.add(match, substring.length());
-		}
-		
-		TopNList<Integer> topMatches = new TopNList<Integer>(n);
-		for (Entry<Integer, Count> entry: wordMatches.entries())
-			topMatches.add(entry.getKey(), entry.getValue().value);
-		
-		Iterator<Integer> topMatchesIterator = topMatches.iterator();
-		String[] results = new String[Math.min(n, wordMatches.size())];
-		for (int i = 0; i < results.length; i++)
-			results[i] = words.get(topMatchesIterator.next());
+			int weight = key >= BIGRAM_FLAG ? 2 : 3;
+			int length = offsets[g + 1] - offsets[g];
+			int l = numLists++;
+			for (; l > 0 && offsets[lists[l-1] + 1] - offsets[lists[l-1]] > length; l--) {
+				lists[l] = lists[l-1];
+				weights[l] = weights[l-1];
+			}
+			lists[l] = g;
+			weights[l] = weight;
+			remaining += weight;
+		}
+		int maxScore = remaining;
+
+		Scratch s = scratch.get();
+		s.ensureCapacity(index.numWords, maxScore);
+		int[] scores = s.scores;
+		int[] touched = s.touched;
+		int[] histogram = s.histogram; // number of touched words with each score
+		int numTouched = 0;
+
+		// Once set, the only words that can still make the top n
+		int[] candidates = null;
+		int numCandidates = 0;
+
+		for (int l = 0; l < numLists; l++) {
+			int start = offsets[lists[l]];
+			int end = offsets[lists[l] + 1];
+			int weight = weights[l];
+			remaining -= weight;
+
+			if (candidates == null) {
+				for (int p = start; p < end; p++) {
+					int w = postings[p];
+					int score = scores[w];
+					if (score == 0)
+						touched[numTouched++] = w;
+					else
+						histogram[score]--;
+					score += weight;
+					scores[w] = score;
+					histogram[score]++;
+				}
+
+				// A word not seen yet scores at most remaining. If that's less than the n-th
+				// best score so far, it can't make the top n (even on a tie), and neither can
+				// any word that scores less than the n-th best even with every remaining n-gram.
+				if (n > 0 && numTouched >= n && l < numLists - 1) {
+					int nthBest = nthBestScore(histogram, maxScore, n);
+					if (remaining < nthBest) {
+						candidates = new int[numTouched];
+						for (int i = 0; i < numTouched; i++) {
+							int w = touched[i];
+							if (scores[w] + remaining >= nthBest)
+								candidates[numCandidates++] = w;
+						}
+						Arrays.sort(candidates, 0, numCandidates);
+					}
+				}
+			}
+			else if (numCandidates * 16 < end - start) {
+				int from = start;
+				for (int i = 0; i < numCandidates && from < end; i++) {
+					int w = candidates[i];
+					int p = Arrays.binarySearch(postings, from, end, w);
+					if (p < 0) {
+						from = -p - 1;
+						continue;
+					}
+					histogram[scores[w]]--;
+					scores[w] += weight;
+					histogram[scores[w]]++;
+					from = p + 1;
+				}
+			}
+			else {
+				// Words touched but not candidates may be updated too, but still can't make it
+				for (int p = start; p < end; p++) {
+					int w = postings[p];
+					if (scores[w] != 0) {
+						histogram[scores[w]]--;
+						scores[w] += weight;
+						histogram[scores[w]]++;
+					}
+				}
+			}
+		}
+
+		String[] results = new String[Math.max(0, Math.min(n, numTouched))];
+		if (results.length > 0) {
+			// Every word scoring at least the n-th best, by score and then index
+			int nthBest = nthBestScore(histogram, maxScore, results.length);
+			int numSelected = 0;
+			for (int score = nthBest; score <= maxScore; score++)
+				numSelected += histogram[score];
+			long[] selected = new long[numSelected];
+			numSelected = 0;
+			for (int i = 0; i < numTouched; i++) {
+				int w = touched[i];
+				if (scores[w] >= nthBest)
+					selected[numSelected++] = (long) (maxScore - scores[w]) << 32 | w;
+			}
+			Arrays.sort(selected, 0, numSelected);
+			for (int i = 0; i < results.length; i++)
+				results[i] = words.get((int) selected[i]);
+		}
+
+		for (int i = 0; i < numTouched; i++)
+			scores[touched[i]] = 0;
+		Arrays.fill(histogram, 0, maxScore + 1, 0);
 		return results;
 	}
-	
+
+	/** The highest score that at least n words have. */
+	static int nthBestScore(int[] histogram, int maxScore, int n) {
+		int count = 0;
+		for (int score = maxScore; score > 0; score--) {
+			count += histogram[score];
+			if (count >= n)
+				return score;
+		}
+		return 0;
+	}
+
+	/**
+	 * The distinct length-3 (and if includeBigrams, length-2) substrings of the word with
+	 * boundaries, packed into longs, in ascending order.
+	 */
+	static long[] gramKeys(String word, boolean includeBigrams) {
+		int length = word.length() + 2;
+		long[] keys = new long[length - 2 + (includeBigrams ? length - 1 : 0)];
+		int numKeys = 0;
+		long c0 = 0;
+		long c1 = BOUNDARY_CHAR;
+		for (int i = 1; i < length; i++) {
+			long c2 = i <= word.length() ? word.charAt(i - 1) : BOUNDARY_CHAR;
+			if (i >= 2)
+				keys[numKeys++] = c0 << 32 | c1 << 16 | c2;
+			if (includeBigrams)
+				keys[numKeys++] = BIGRAM_FLAG | c1 << 16 | c2;
+			c0 = c1;
+			c1 = c2;
+		}
+		Arrays.sort(keys);
+		int distinct = 0;
+		for (int i = 0; i < numKeys; i++)
+			if (i == 0 || keys[i] != keys[i-1])
+				keys[distinct++] = keys[i];
+		return distinct == keys.length ? keys : Arrays.copyOf(keys, distinct);
+	}
+
 	/**
 	 * Build list of length-3 (and if word is 4 for fewer chars long, length-2) substrings.
 	 */
 	static Set<String> substrings(String word, boolean includeBigrams) {
 		String boundedWord = BOUNDARY_CHAR + word + BOUNDARY_CHAR;
-		
+
 		HashSet<String> results = new HashSet<String>();
-		
+
 		for (int i = 0; i < boundedWord.length() - 2; i++)
 			results.add(boundedWord.substring(i, i + 3));
-		
+
 		if (includeBigrams) {
 			for (int i = 0; i < boundedWord.length() - 1; i++)
 				results.add(boundedWord.substring(i, i + 2));
 		}
-		
+
 		return results;
 	}
-	
+
+	/** The score topMatches() gives match when looking up word. */
+	static int score(String word, String match) {
+		Set<String> matchSubstrings = substrings(match, match.length() <= 5);
+		int score = 0;
+		for (String substring: substrings(word, word.length() <= 4))
+			if (matchSubstrings.contains(substring))
+				score += substring.length();
+		return score;
+	}
+
+	/**
+	 * Check topMatches() against HashMapInexactDictionary's on random words, and compare their
+	 * speeds. The old implementation breaks ties for the last of the n places in hash order,
+	 * so lists that differ only there, with the same scores, count as equivalent.
+	 */
+	static void compareTest(int numWords, int numQueries, int n) {
+		Random random = new Random(0);
+		List<String> wordList = new ArrayList<String>();
+		HashMapInexactDictionary reference = new HashMapInexactDictionary();
+		InexactDictionary dictionary = new InexactDictionary();
+		for (int i = 0; i < numWords; i++) {
+			String word = Benchmarks.randomWord(random);
+			wordList.add(word);
+			reference.addWord(word);
+			dictionary.addWord(word);
+		}
+		dictionary.complete();
+		System.out.printf("%d words, %d n-grams, %d postings\n", dictionary.words.size(),
+				dictionary.numGrams, dictionary.index.postings.length);
+
+		String[] queries = new String[numQueries];
+		for (int i = 0; i < numQueries; i++) {
+			String word = Benchmarks.garble(random,
+					wordList.get(random.nextInt(wordList.size())), 0.15);
+			queries[i] = word.isEmpty() ? "a" : word;
+		}
+
+		int identical = 0;
+		int equivalent = 0;
+		int mismatches = 0;
+		for (String query: queries) {
+			String[] expected = reference.topMatches(query, n);
+			String[] actual = dictionary.topMatches(query, n);
+			if (Arrays.equals(expected, actual)) {
+				identical++;
+				continue;
+			}
+			boolean same = expected.length == actual.length;
+			for (int i = 0; same && i < actual.length; i++)
+				same = score(query, expected[i]) == score(query, actual[i]);
+			if (same) {
+				equivalent++;
+			}
+			else {
+				if (mismatches < 5) {
+					System.out.printf("Mismatch for '%s':\n  %s\n  %s\n", query,
+							Arrays.toString(expected), Arrays.toString(actual));
+				}
+				mismatches++;
+			}
+		}
+		System.out.printf("%d identical, %d equivalent, %d mismatches\n",
+				identical, equivalent, mismatches);
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			int sum = 0;
+			for (String query: queries)
+				sum += reference.topMatches(query, n).length;
+			double referenceTime = (System.nanoTime() - start) / 1e9;
+			start = System.nanoTime();
+			for (String query: queries)
+				sum += dictionary.topMatches(query, n).length;
+			double time = (System.nanoTime() - start) / 1e9;
+			System.out.printf("HashMapInexactDictionary: %.0f queries/sec, "
+					+ "InexactDictionary: %.0f queries/sec (%d)\n",
+					numQueries / referenceTime, numQueries / time, sum);
+		}
+	}
+
+	/**
+	 * InexactDictionary -compare [-words i] [-queries i] [-n i]
+	 */
 	public static void main(String[] args) {
+		CommandLineParser clp = new CommandLineParser("-compare -words=i -queries=i -n=i", args);
+		if (clp.opt("-compare")) {
+			compareTest(clp.opt("-words", 200000), clp.opt("-queries", 20000), clp.opt("-n", 100));
+			return;
+		}
 		simpleTest();
 	}
 
@@ -150,22 +494,9 @@ public class InexactDictionary {
 		dict.addWord("abcde");
 		dict.addWord("abcdef");
 		dict.addWord("abcdeg");
-		
-		System.out.println(dict.invertedIndex);
+
 		System.out.println(Arrays.toString(dict.topMatches("cdef", 10)));
 		System.out.println(Arrays.toString(dict.topMatches("cdef", 1)));
 		System.out.println(Arrays.toString(dict.topMatches("cat", 4)));
 	}
 }
-
-
-
-
-
-
-
-
-
-
-
-
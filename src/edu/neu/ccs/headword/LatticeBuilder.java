@@ -1,7 +1,18 @@
 package edu.neu.ccs.headword;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import edu.neu.ccs.headword.SimpleTokenizer.Token;
 import edu.neu.ccs.headword.util.RunConfig;
@@ -18,11 +29,32 @@ public class LatticeBuilder {
 	InexactDictionary dictionary;
 	int maxDictionaryMatches;
 	
+	// With dictionary.candidates: edit-distance, candidates come from here first
+	EditDistanceDictionary editDictionary = null;
+	int maxEditMatches;
+	
 	int maxWordCandidates;
 	int maxWordMerges;
 	int maxPuncMerges;
 	boolean freeDehyph;
 	
+	int channelBeamWidth;
+	
+	// Each thread scoring spans reuses its own aligner's tables
+	ThreadLocal<FlatSegmentAligner> aligners = new ThreadLocal<FlatSegmentAligner>() {
+		@Override protected FlatSegmentAligner initialValue() {
+			return new FlatSegmentAligner(segmentModel, channelBeamWidth);
+		}
+	};
+	
+	// Best alignment probabilities, shared by all builders with the same channel model
+	ChannelScoreCache cache;
+	File cacheFile = null;
+	
+	// Scores spans in parallel if lattice.threads > 1
+	ThreadPoolExecutor executor = null;
+	static final int SENTENCES_PER_BATCH = 64; // see iterateChannelLattices()
+	
 	public LatticeBuilder(
 			RunConfig config, SegmentModel segmentModel, InexactDictionary dictionary
 	) throws IOException {
@@ -35,6 +67,35 @@ public class LatticeBuilder {
 		maxWordMerges = config.getInt("lattice.max-word-merges");
 		maxPuncMerges = config.getInt("lattice.max-punctuation-merges");
 		freeDehyph = config.getBoolean("lattice.allow-free-dehyphenation");
+		channelBeamWidth = config.getInt("channel.beam-width", 3);
+		
+		String candidates = config.getString("dictionary.candidates", "ngram");
+		if (candidates.equals("edit-distance")) {
+			editDictionary = new EditDistanceDictionary(
+					dictionary, segmentModel, config.getInt("dictionary.max-edits", 2));
+			maxEditMatches = config.getInt("dictionary.edit-matches", 2 * maxWordCandidates);
+		}
+		else if (!candidates.equals("ngram")) {
+			throw new IOException("Invalid dictionary.candidates: " + candidates);
+		}
+		
+		cache = ChannelScoreCache.fromConfig(config);
+		if (cache != null && config.getString("channel.cache-file", null) != null)
+			cacheFile = config.getDataFile("channel.cache-file");
+		
+		int threads = config.getInt("lattice.threads", 1);
+		if (threads > 1) {
+			// Idle threads time out, so builders don't need to be shut down
+			executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "lattice-builder");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
 		
 		if (freeDehyph && maxPuncMerges < 3) {
 			config.getLog().log("WARNING: lattice.allow-free-dehyphenation is switched on, "
@@ -43,9 +104,97 @@ public class LatticeBuilder {
 		}
 	}
 
+	/** A span of OCR tokens and its best candidates. */
+	static class Span {
+		final int start;
+		final int end;
+		final String text;
+		Iterable<ScoredItem<String>> candidates;
+		
+		Span(int start, int end, String text) {
+			this.start = start;
+			this.end = end;
+			this.text = text;
+		}
+	}
+	
 	public StringLattice channelLattice(List<Token> tokens) {
-
-		StringLattice lattice = new StringLattice(tokens.size() + 1);
+		List<Span> spans = spans(tokens);
+		scoreSpans(spans);
+		return lattice(tokens.size(), spans);
+	}
+	
+	/**
+	 * The channel lattices of all the sentences. With lattice.threads > 1, the spans of all the
+	 * sentences are scored in parallel.
+	 */
+	public List<StringLattice> channelLattices(List<List<Token>> sentences) {
+		List<List<Span>> sentenceSpans = new ArrayList<List<Span>>(sentences.size());
+		List<Span> allSpans = new ArrayList<Span>();
+		for (List<Token> tokens: sentences) {
+			List<Span> spans = spans(tokens);
+			sentenceSpans.add(spans);
+			allSpans.addAll(spans);
+		}
+		
+		scoreSpans(allSpans);
+		
+		List<StringLattice> lattices = new ArrayList<StringLattice>(sentences.size());
+		for (int i = 0; i < sentences.size(); i++)
+			lattices.add(lattice(sentences.get(i).size(), sentenceSpans.get(i)));
+		return lattices;
+	}
+	
+	/**
+	 * The channel lattices of the sentences, built as they are iterated over, so that only a
+	 * bounded number of sentences' spans and lattices are in memory at once. Without an
+	 * executor each lattice is built on its own; with one, the spans of SENTENCES_PER_BATCH
+	 * sentences at a time are scored together.
+	 */
+	public Iterable<StringLattice> iterateChannelLattices(final List<List<Token>> sentences) {
+		return new Iterable<StringLattice>() {
+			@Override public Iterator<StringLattice> iterator() {
+				return new Iterator<StringLattice>() {
+					int next = 0; // index of the next sentence to build
+					Iterator<StringLattice> batch = null;
+					
+					@Override public boolean hasNext() {
+						return (batch != null && batch.hasNext()) || next < sentences.size();
+					}
+					
+					@Override public StringLattice next() {
+						if (batch != null && batch.hasNext())
+							return batch.next();
+						if (next >= sentences.size())
+							throw new NoSuchElementException();
+						if (executor == null)
+							return channelLattice(sentences.get(next++));
+						int end = Math.min(next + SENTENCES_PER_BATCH, sentences.size());
+						batch = channelLattices(sentences.subList(next, end)).iterator();
+						next = end;
+						return batch.next();
+					}
+					
+					@Override public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	
+	StringLattice lattice(int numTokens, List<Span> spans) {
+		StringLattice lattice = new StringLattice(numTokens + 1);
+		for (Span span: spans) {
+			for (ScoredItem<String> candidate: span.candidates)
+				lattice.addEdge(span.start, span.end, candidate.item, candidate.score);
+		}
+		return lattice;
+	}
+	
+	/** All the spans of tokens that get lattice edges, in the order the edges are added. */
+	List<Span> spans(List<Token> tokens) {
+		List<Span> spans = new ArrayList<Span>();
 		
 		for (int start = 0; start < tokens.size(); start++) {
 			int end = start + 1;
@@ -61,34 +210,8 @@ public class LatticeBuilder {
 					// Dehyphenation special case
 					span = tokens.get(start).toString() + tokens.get(start+2).toString();
 				}
-
-				// Should the OCR token always be a candidate?
-				// (The dictionary contains tokens from the OCR document, but not necessarily
-				// the multi-token spans we create.)
-				String[] candidates = dictionary.topMatches(span, maxDictionaryMatches);
-				if (candidates.length == 0)
-					candidates = new String[] {span.toString()};
-
-				TopNList<String> topCandidates = new TopNList<String>(maxWordCandidates);
-				for (String candidate: candidates) {
-					if (candidate.contains("\u00e0")) {
-						// The utf-8 of 'a' with a grave accent (unicode 0xe0) contains 0xa0, 
-						// which is interpreted as space by SRILM. I'm excluding
-						// words with that character as a quick and dirty way to avoid this problem.
-						continue;
-					}
-					SegmentAligner aligner =
-							new SegmentAligner(segmentModel, candidate, span, config);
-					aligner.populate();
-					double prob = aligner.probOfBestAlignment();
-					if (prob == Double.NEGATIVE_INFINITY)
-						continue;
-					prob *= channelModelWeight;
-					topCandidates.add(candidate, prob);
-				}
 				
-				for (ScoredItem<String> candidate: topCandidates.scoredItemSet())
-					lattice.addEdge(start, end, candidate.item, candidate.score);
+				spans.add(new Span(start, end, span));
 
 				// If we haven't hit the token-merging limit yet, then add another input token 
 				// and loop again to add candidates for the multi-token span.
@@ -121,7 +244,98 @@ public class LatticeBuilder {
 			}
 		}
 		
-		return lattice;
+		return spans;
+	}
+	
+	/**
+	 * Find the candidates of each span, on the executor if there is one. Each span is scored
+	 * independently, so the results don't depend on the number of threads.
+	 */
+	void scoreSpans(List<Span> spans) {
+		if (executor == null) {
+			for (Span span: spans)
+				span.candidates = topCandidates(span.text);
+			return;
+		}
+		
+		List<Future<Iterable<ScoredItem<String>>>> futures =
+				new ArrayList<Future<Iterable<ScoredItem<String>>>>(spans.size());
+		for (final Span span: spans) {
+			futures.add(executor.submit(new Callable<Iterable<ScoredItem<String>>>() {
+				@Override public Iterable<ScoredItem<String>> call() {
+					return topCandidates(span.text);
+				}
+			}));
+		}
+		try {
+			for (int i = 0; i < spans.size(); i++)
+				spans.get(i).candidates = futures.get(i).get();
+		}
+		catch (InterruptedException e) {
+			for (Future<Iterable<ScoredItem<String>>> future: futures)
+				future.cancel(true);
+			throw new Error(e);
+		}
+		catch (ExecutionException e) {
+			throw new Error(e.getCause());
+		}
+	}
+	
+	/** The maxWordCandidates most likely corrections of span, with their channel scores. */
+	Iterable<ScoredItem<String>> topCandidates(String span) {
+		// Should the OCR token always be a candidate?
+		// (The dictionary contains tokens from the OCR document, but not necessarily
+		// the multi-token spans we create.)
+		String[] candidates = null;
+		if (editDictionary != null && span.length() > 1)
+			candidates = editDictionary.topMatches(span, maxEditMatches);
+		if (candidates == null || candidates.length == 0)
+			candidates = dictionary.topMatches(span, maxDictionaryMatches);
+		if (candidates.length == 0)
+			candidates = new String[] {span.toString()};
+
+		TopNList<String> topCandidates = new TopNList<String>(maxWordCandidates);
+		for (String candidate: candidates) {
+			if (candidate.contains("\u00e0")) {
+				// The utf-8 of 'a' with a grave accent (unicode 0xe0) contains 0xa0, 
+				// which is interpreted as space by SRILM. I'm excluding
+				// words with that character as a quick and dirty way to avoid this problem.
+				continue;
+			}
+			double prob = alignmentProb(candidate, span);
+			if (prob == Double.NEGATIVE_INFINITY)
+				continue;
+			prob *= channelModelWeight;
+			topCandidates.add(candidate, prob);
+		}
+		
+		return topCandidates.scoredItemSet();
+	}
+	
+	double alignmentProb(String candidate, String span) {
+		if (cache != null) {
+			Double cached = cache.get(candidate, span);
+			if (cached != null)
+				return cached;
+		}
+		
+		double prob = aligners.get().probOfBestAlignment(candidate, span);
+		
+		if (cache != null)
+			cache.put(candidate, span, prob);
+		return prob;
+	}
+	
+	/**
+	 * Log the channel score cache's statistics, and save it if channel.cache-file is set.
+	 * Correctors call this when they finish a document.
+	 */
+	public void saveCache() throws IOException {
+		if (cache == null)
+			return;
+		config.getLog().log(cache.summary());
+		if (cacheFile != null)
+			cache.save(cacheFile);
 	}
 	
 	static boolean isHyphen(String s) {
@@ -13,6 +13,8 @@ import java.util.List;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.math.util.FastMath;
 
@@ -31,6 +33,13 @@ public class LatticeParser {
 	
 	protected static final TaggedToken ROOT_TOKEN = new TaggedToken(DMVGrammar.ROOT);
 	
+	/** How much of the chart parse() computes. */
+	public static enum Mode {
+		VITERBI, // viterbi scores and parse only; sentProb() is unavailable
+		INSIDE,  // viterbi and inside probabilities
+		FULL     // also outside probabilities, as needed by reestimate() and addSoftCounts()
+	}
+	
 	public static boolean debug = false;
 	
 	public static interface Scorer {
@@ -39,6 +48,15 @@ public class LatticeParser {
 		public void saveModel(String fileName);
 	}
 	
+	/**
+	 * A Scorer that precomputes lattice-specific state (such as tag IDs) once per lattice.
+	 * The parser calls forLattice() after setting up its edges and uses the returned scorer
+	 * for that lattice only, so the returned object need not be thread-safe.
+	 */
+	public static interface LatticeScorer extends Scorer {
+		public Scorer forLattice(Edge[] edges);
+	}
+	
 	/* For debugging & testing only.
 	 * LetterScorer assumes every word is a letter (a sentence might be "c b a d"), and assigns
 	 * log prob proportional to ord(head) - ord(arg). */
@@ -227,6 +245,185 @@ public class LatticeParser {
 	}
 
 
+	/**
+	 * DMV scorer that resolves every edge's tag to an integer ID once per lattice, and then
+	 * scores with array lookups into a dense table laid out like {@link DMVVector}. It gives
+	 * the same scores as DMVVectorScorer, DMVGrammarScorer or (for a TagDMV) DMVScorer over
+	 * the same model. Arcs involving tags that are not in the table's vocabulary are passed to
+	 * the fallback scorer.
+	 */
+	static class CompiledDMVScorer implements LatticeScorer {
+		final Vocabulary vocab;
+		final int V;
+		final double[] table;
+		final Scorer fallback;
+		
+		// Binding used by the plain Scorer methods, rebuilt when they're given another lattice
+		volatile LatticeTags lastBinding = null;
+		
+		CompiledDMVScorer(DMVVector model) {
+			this(model, new DMVVectorScorer(model));
+		}
+		CompiledDMVScorer(DMVGrammar grammar) {
+			this(tabulate(grammar, grammar.buildVocabulary()), new DMVGrammarScorer(grammar));
+		}
+		CompiledDMVScorer(TagDMV model) {
+			this(tabulate(model, model.buildVocabulary()), new DMVScorer(model));
+		}
+		CompiledDMVScorer(DMVVector model, Scorer fallback) {
+			this.vocab = model.getVocabulary();
+			this.V = vocab.size();
+			this.table = model.vector;
+			this.fallback = fallback;
+		}
+		
+		/** Evaluate every event of a tag-only DMV over the given tags. */
+		static DMVVector tabulate(DMV model, Vocabulary tags) {
+			DMVVector vector = new DMVVector(tags);
+			for (String tag: tags) {
+				edu.neu.ccs.headword.TaggedLattice.Token token = new StringToken(tag);
+				for (int d = 0; d < 2; d++) {
+					for (boolean hasChild: new boolean[] {false, true}) {
+						for (boolean stop: new boolean[] {false, true}) {
+							vector.set(stop, tag, d, hasChild,
+									model.logProb(token, d == LEFT, stop, hasChild));
+						}
+					}
+					for (String arg: tags) {
+						vector.set(arg, tag, d,
+								model.logProb(token, new StringToken(arg), d == LEFT));
+					}
+				}
+			}
+			return vector;
+		}
+		
+		/**
+		 * Evaluate every event of a grammar over the given tags. Unlike
+		 * DMVGrammar.asVector(), events missing from the grammar stay at -inf.
+		 */
+		static DMVVector tabulate(DMVGrammar grammar, Vocabulary tags) {
+			DMVVector vector = new DMVVector(tags);
+			for (String tag: tags) {
+				for (int d = 0; d < 2; d++) {
+					for (boolean hasChild: new boolean[] {false, true}) {
+						for (boolean stop: new boolean[] {false, true}) {
+							vector.set(stop, tag, d, hasChild,
+									grammar.prob(tag, d == LEFT, stop, hasChild));
+						}
+					}
+					for (String arg: tags) {
+						vector.set(arg, tag, d, grammar.prob(tag, arg, d == LEFT));
+					}
+				}
+			}
+			return vector;
+		}
+		
+		@Override
+		public LatticeTags forLattice(Edge[] edges) {
+			int[] tags = new int[edges.length];
+			for (int e = 0; e < edges.length; e++) {
+				Integer id = vocab.wordID(edges[e].token.getTag());
+				tags[e] = id == null ? -1 : id;
+			}
+			return new LatticeTags(edges, tags);
+		}
+		
+		/**
+		 * The binding for edges, reusing the last one if it was made for the same array, so
+		 * that callers of the plain Scorer methods don't resolve every tag on every arc. (The
+		 * array must not be modified in place between lattices.)
+		 */
+		LatticeTags binding(Edge[] edges) {
+			LatticeTags binding = lastBinding;
+			if (binding == null || binding.edges != edges) {
+				binding = forLattice(edges);
+				lastBinding = binding;
+			}
+			return binding;
+		}
+		
+		class LatticeTags implements Scorer {
+			final Edge[] edges;
+			final int[] tags;
+			
+			LatticeTags(Edge[] edges, int[] tags) {
+				this.edges = edges;
+				this.tags = tags;
+			}
+			
+			@Override
+			public double scoreTrapezoid(Edge[] edges, int h, int a, int q, int d) {
+				int head = tags[h];
+				int arg = tags[a];
+				if (head < 0 || arg < 0)
+					return fallback.scoreTrapezoid(edges, h, a, q, d);
+				
+				boolean left = d == LEFT;
+				boolean hasChild = left ? edges[h].start != q : edges[h].end != q;
+				double pCont = 0.0;
+				if (h != 0)
+					pCont = table[DMVVector.eventIndex(false, head, d, hasChild)];
+				
+				double pArg = table[DMVVector.eventIndex(arg, head, d, V)];
+				
+				// stop the argument's opposite-direction triangle
+				boolean argHasChild = left ? edges[a].end != q : edges[a].start != q;
+				double pStop = table[DMVVector.eventIndex(true, arg, 1 - d, argHasChild)];
+				
+				double p = pCont + pArg + pStop;
+				
+				if (debug) {
+					System.out.printf(
+							"Trap(%d (%s) -> %d (%s) %d): %f = %f + %f + %f\n",
+							h, edges[h].token, a, edges[a].token, q, p, pCont, pArg, pStop);
+				}
+				
+				return p;
+			}
+			
+			@Override
+			public double scoreTriangle(Edge[] edges, int e, int s, int g, int d) {
+				int tag = tags[g];
+				if (tag < 0)
+					return fallback.scoreTriangle(edges, e, s, g, d);
+				
+				// stop the sub-triangle
+				boolean hasChild = d == LEFT ? edges[g].start != s : edges[g].end != s;
+				double p = table[DMVVector.eventIndex(true, tag, d, hasChild)];
+				
+				if (debug) {
+					System.out.printf(
+							"Tri(%d %d %d %s) = stop(%d (%s), %s, %s) = %f\n", 
+							e, s, g, dirStr(d), g, edges[g].token, dirStr(d), hasChild, p);
+				}
+				
+				return p;
+			}
+			
+			@Override
+			public void saveModel(String fileName) {
+				CompiledDMVScorer.this.saveModel(fileName);
+			}
+		}
+		
+		@Override
+		public double scoreTrapezoid(Edge[] edges, int h, int a, int q, int d) {
+			return binding(edges).scoreTrapezoid(edges, h, a, q, d);
+		}
+		
+		@Override
+		public double scoreTriangle(Edge[] edges, int e, int s, int g, int d) {
+			return binding(edges).scoreTriangle(edges, e, s, g, d);
+		}
+		
+		@Override
+		public void saveModel(String fileName) {
+			new DMVGrammar(new DMVVector(vocab, table)).save(fileName);
+		}
+	}
+
 	private static class Cell {
 		int top;
 		int bottom;
@@ -265,7 +462,22 @@ public class LatticeParser {
 	boolean zeroBased;
 	boolean rightBranching;
 	Scorer scorer;
+	Scorer latticeScorer; // scorer for the current lattice
 	Random tieBreaker = new Random(0); // initialize deterministically for reproducible results
+	Mode mode = Mode.FULL;
+	
+	// Pool on which the spans of each width are filled in parallel, for lattices with at least
+	// parallelMinPositions positions; see setForkJoinPool()
+	ForkJoinPool forkJoinPool = null;
+	int parallelMinPositions = 0;
+	static final int SPANS_PER_TASK = 4;
+	static final int DEFAULT_PARALLEL_MIN_POSITIONS = 40;
+	
+	// Expected counts requested for the next parse; see countNextParse()
+	DMVCounter pendingCounter = null;
+	DMVCounter pendingLexCounter = null;
+	DMVVector pendingVector = null;
+	double pendingWeight = 0.0;
 	Cell[][][] trapezoids;
 	Cell[][][] triangles;
 	int states; // total states including added root state (positions in original lattice + 1)
@@ -285,14 +497,74 @@ public class LatticeParser {
 		this.rightBranching = rightBranching;
 	}
 	
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+	public Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Fill the charts of lattices with at least minPositions positions on the given pool (or
+	 * always sequentially, if pool is null). Once all the spans of a given width are done,
+	 * those of the next width are independent, and each span's cells are only written by that
+	 * span, so the spans of each width are filled in parallel without locking, and the chart
+	 * is exactly the same as a sequential parse's. The outside pass and the backtrace are
+	 * still sequential. Only this class's chart supports this; FlatLatticeParser ignores it.
+	 */
+	public void setForkJoinPool(ForkJoinPool pool, int minPositions) {
+		this.forkJoinPool = pool;
+		this.parallelMinPositions = minPositions;
+	}
+	
+	/**
+	 * Add the expected counts of the next parse to counter (and lexCounter, if not null)
+	 * while its outside probabilities are computed, rather than in a separate pass over the
+	 * chart as reestimate() does. The outside pass is run even if the mode is INSIDE, but
+	 * counts can't be requested in VITERBI mode, which skips the inside probabilities. The
+	 * request is dropped after the next parse, even if it fails.
+	 */
+	public void countNextParse(DMVCounter counter, DMVCounter lexCounter) {
+		if (mode == Mode.VITERBI)
+			throw new Error("Expected counts can't be computed in VITERBI mode");
+		pendingCounter = counter;
+		pendingLexCounter = lexCounter;
+	}
+	/** Like countNextParse(), but adds weighted soft counts as addSoftCounts() does. */
+	public void softCountNextParse(DMVVector vector, double weight) {
+		if (mode == Mode.VITERBI)
+			throw new Error("Expected counts can't be computed in VITERBI mode");
+		pendingVector = vector;
+		pendingWeight = weight;
+	}
+	protected boolean countsPending() {
+		return pendingCounter != null || pendingVector != null;
+	}
+	/** Fail if counts were requested before the mode was changed to VITERBI. */
+	protected void checkPendingCounts() {
+		if (mode == Mode.VITERBI && countsPending()) {
+			clearPendingCounts();
+			throw new Error("Expected counts can't be computed in VITERBI mode");
+		}
+	}
+	protected void clearPendingCounts() {
+		pendingCounter = null;
+		pendingLexCounter = null;
+		pendingVector = null;
+	}
+	
 	protected void initialize(TaggedLattice lattice) {
 		states = lattice.numPositions + 1;
 		edges = new Edge[lattice.edges.size()+1];
 		edges[0] = new Edge(0, 1, ROOT_TOKEN, 0.0);
 		for (int i = 0; i < lattice.edges.size(); i++) {
 			Edge edge = lattice.edges.get(i);
-			edges[i+1] = new Edge(edge.start + 1, edge.end + 1, edge.token, edge.logProb);
+			edges[i+1] = new Edge(edge.start + 1, edge.end + 1, edge.token,
+					edge.logProb, edge.viterbiLogProb);
 		}
+		latticeScorer = scorer instanceof LatticeScorer
+				? ((LatticeScorer) scorer).forLattice(edges)
+				: scorer;
 		
 		edgesByStart = new ArrayList<ArrayList<Integer>>(states);
 		edgesByEnd = new ArrayList<ArrayList<Integer>>(states);
@@ -322,8 +594,9 @@ public class LatticeParser {
 		
 		triangles[0][1][RIGHT] = new Cell(0, 1, RIGHT, TRI, 0.0);
 		for (int e = 1; e < edges.length; e++) {
-			triangles[e][edges[e].start][LEFT] = 
-					new Cell(e, edges[e].start, LEFT, TRI, edges[e].logProb);
+			Cell leaf = new Cell(e, edges[e].start, LEFT, TRI, edges[e].logProb);
+			leaf.viterbiProb = edges[e].viterbiLogProb;
+			triangles[e][edges[e].start][LEFT] = leaf;
 			triangles[e][edges[e].end][RIGHT] = 
 					new Cell(e, edges[e].end, RIGHT, TRI, 0.0);
 		}
@@ -403,70 +676,27 @@ public class LatticeParser {
 	}
 	
 	public int[] parse(TaggedLattice lattice) {
+		checkPendingCounts();
+		try {
+			return parseChart(lattice);
+		}
+		finally {
+			clearPendingCounts();
+		}
+	}
+	
+	private int[] parseChart(TaggedLattice lattice) {
 		initialize(lattice);
 		
 		// Populate arcs, calculate viterbi and inside probabilities
+		boolean parallel = forkJoinPool != null && states - 1 >= parallelMinPositions;
 		for (int m = 1; m < states; m++) {
-			for (int s = 0; s < states; s++) {
-				int t = s + m;
-				if (t >= states)
-					break;
-				
-				// Add arcs to trapezoids
-				for (int e: edgesByStart.get(s)) {
-					for (int f: edgesByEnd.get(t)) {
-						if (rightBranching && edges[e].end != edges[f].start)
-							continue;
-						for (int q = edges[e].end; q <= edges[f].start; q++) {
-							Cell lhs = triangles[e][q][RIGHT];
-							Cell rhs = triangles[f][q][LEFT];
-							
-							if (lhs != null && rhs != null) {
-								addArc(e, f, RIGHT, TRAP, q, lhs, rhs,
-									scorer.scoreTrapezoid(edges, e, f, q, RIGHT));
-								
-								if (!rightBranching && e != 0) { // Don't attach the root to anything
-									addArc(f, e, LEFT, TRAP, q, lhs, rhs,
-										scorer.scoreTrapezoid(edges, f, e, q, LEFT));
-								}
-							}
-						}
-					}
-				}
-				
-				if (s > 0) {
-					// Add arcs to right-directed triangles
-					for (int e: edgesByStart.get(s)) {
-						for (int q = edges[e].end; q < t; q++) {
-							for (int g: edgesByStart.get(q)) {
-								if (edges[g].end <= t) {
-									Cell lhs = trapezoids[e][g][RIGHT];
-									Cell rhs = triangles[g][t][RIGHT];
-									if (lhs != null && rhs != null) {
-										addArc(e, t, RIGHT, TRI, g, lhs, rhs,
-											scorer.scoreTriangle(edges, e, t, g, RIGHT));
-									}
-								}
-							}
-						}
-					}
-					
-					// Add arcs to left-directed triangles
-					for (int e: edgesByEnd.get(t)) {
-						for (int q = s + 1; q <= edges[e].start; q++) {
-							for (int g: edgesByEnd.get(q)) {
-								if (edges[e].start >= s) {
-									Cell lhs = triangles[g][s][LEFT];
-									Cell rhs = trapezoids[e][g][LEFT];
-									if (lhs != null && rhs != null) {
-										addArc(e, s, LEFT, TRI, g, lhs, rhs,
-											scorer.scoreTriangle(edges, e, s, g, LEFT));
-									}
-								}
-							}
-						}
-					}
-				}
+			if (parallel) {
+				forkJoinPool.invoke(new SpanTask(m, 0, states - m));
+			}
+			else {
+				for (int s = 0; s + m < states; s++)
+					fillSpan(s, s + m);
 			}
 		}
 		
@@ -477,28 +707,39 @@ public class LatticeParser {
 				Cell rhs = triangles[g][states-1][RIGHT];
 				if (lhs != null && rhs != null) {
 					addArc(0, states-1, RIGHT, TRI, g, lhs, rhs,
-						scorer.scoreTriangle(edges, 0, states-1, g, RIGHT));
+						latticeScorer.scoreTriangle(edges, 0, states-1, g, RIGHT));
 				}
 			}
 		}
 
-		if (triangles[0][states-1][RIGHT] == null)
+		if (triangles[0][states-1][RIGHT] == null) {
 			throw new Error("Can't handle unparseable lattices yet");
+		}
 		
 		breakViterbiTiesRandomly(0, states-1, RIGHT, TRI);
 
-		// populate outside probabilities
-		triangles[0][states-1][RIGHT].outProb = 0.0;
-		traverseBranches(new CellFunction() {
-			@Override public void apply(Cell cell) {
-				for (Arc arc: cell.arcs.values()) {
-					arc.lhs.outProb = Util.logSum(arc.lhs.outProb, 
-						cell.outProb + arc.rhs.inProb + arc.prob);
-					arc.rhs.outProb = Util.logSum(arc.rhs.outProb,
-						cell.outProb + arc.lhs.inProb + arc.prob);
+		// populate outside probabilities, and any requested expected counts
+		if (mode == Mode.FULL || countsPending()) {
+			final double Z = sentProb();
+			final boolean counting = countsPending();
+			triangles[0][states-1][RIGHT].outProb = 0.0;
+			traverseBranches(new CellFunction() {
+				@Override public void apply(Cell cell) {
+					for (Map.Entry<Integer, Arc> entry: cell.arcs.entrySet()) {
+						Arc arc = entry.getValue();
+						arc.lhs.outProb = Util.logSum(arc.lhs.outProb, 
+							cell.outProb + arc.rhs.inProb + arc.prob);
+						arc.rhs.outProb = Util.logSum(arc.rhs.outProb,
+							cell.outProb + arc.lhs.inProb + arc.prob);
+						if (counting) {
+							countPendingEvents(cell.type, cell.dir, cell.top, cell.bottom,
+								entry.getKey(),
+								cell.outProb + arc.lhs.inProb + arc.rhs.inProb + arc.prob - Z);
+						}
+					}
 				}
-			}
-		});
+			});
+		}
 		
 		// populate expectations (inside prob * outside prob)
 //		traverseBranches(new CellFunction() {
@@ -519,6 +760,96 @@ public class LatticeParser {
 		return realParse;
 	}
 	
+	/**
+	 * Add all the arcs to the cells spanning states s to t: the trapezoids between edges
+	 * starting at s and edges ending at t, and (unless s is the root state) the right triangles
+	 * of edges starting at s and the left triangles of edges ending at t. These cells are only
+	 * written here, and they only depend on narrower spans and on this span's trapezoids.
+	 */
+	private void fillSpan(int s, int t) {
+		// Add arcs to trapezoids
+		for (int e: edgesByStart.get(s)) {
+			for (int f: edgesByEnd.get(t)) {
+				if (rightBranching && edges[e].end != edges[f].start)
+					continue;
+				for (int q = edges[e].end; q <= edges[f].start; q++) {
+					Cell lhs = triangles[e][q][RIGHT];
+					Cell rhs = triangles[f][q][LEFT];
+					
+					if (lhs != null && rhs != null) {
+						addArc(e, f, RIGHT, TRAP, q, lhs, rhs,
+							latticeScorer.scoreTrapezoid(edges, e, f, q, RIGHT));
+						
+						if (!rightBranching && e != 0) { // Don't attach the root to anything
+							addArc(f, e, LEFT, TRAP, q, lhs, rhs,
+								latticeScorer.scoreTrapezoid(edges, f, e, q, LEFT));
+						}
+					}
+				}
+			}
+		}
+		
+		if (s > 0) {
+			// Add arcs to right-directed triangles
+			for (int e: edgesByStart.get(s)) {
+				for (int q = edges[e].end; q < t; q++) {
+					for (int g: edgesByStart.get(q)) {
+						if (edges[g].end <= t) {
+							Cell lhs = trapezoids[e][g][RIGHT];
+							Cell rhs = triangles[g][t][RIGHT];
+							if (lhs != null && rhs != null) {
+								addArc(e, t, RIGHT, TRI, g, lhs, rhs,
+									latticeScorer.scoreTriangle(edges, e, t, g, RIGHT));
+							}
+						}
+					}
+				}
+			}
+			
+			// Add arcs to left-directed triangles
+			for (int e: edgesByEnd.get(t)) {
+				for (int q = s + 1; q <= edges[e].start; q++) {
+					for (int g: edgesByEnd.get(q)) {
+						if (edges[e].start >= s) {
+							Cell lhs = triangles[g][s][LEFT];
+							Cell rhs = trapezoids[e][g][LEFT];
+							if (lhs != null && rhs != null) {
+								addArc(e, s, LEFT, TRI, g, lhs, rhs,
+									latticeScorer.scoreTriangle(edges, e, s, g, LEFT));
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/** Fills the spans of the given width starting at states begin ... end-1. */
+	class SpanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final int width;
+		final int begin;
+		final int end;
+		
+		SpanTask(int width, int begin, int end) {
+			this.width = width;
+			this.begin = begin;
+			this.end = end;
+		}
+		
+		@Override protected void compute() {
+			if (end - begin <= SPANS_PER_TASK) {
+				for (int s = begin; s < end; s++)
+					fillSpan(s, s + width);
+			}
+			else {
+				int middle = (begin + end) >>> 1;
+				invokeAll(new SpanTask(width, begin, middle), new SpanTask(width, middle, end));
+			}
+		}
+	}
+	
 	private void addArc(
 			int top, int bottom, int dir, int type, int split, Cell lhs, Cell rhs, double prob)
 	{
@@ -557,8 +888,10 @@ public class LatticeParser {
 			cell.viterbiSplitCandidates.add(split);
 		}
 		
-		double inProb = lhs.inProb + rhs.inProb + prob;
-		cell.inProb = Util.logSum(cell.inProb, inProb);
+		if (mode != Mode.VITERBI) {
+			double inProb = lhs.inProb + rhs.inProb + prob;
+			cell.inProb = Util.logSum(cell.inProb, inProb);
+		}
 	}
 	
 	public static interface CellFunction {
@@ -602,50 +935,61 @@ public class LatticeParser {
 		}
 	}
 	
-	protected void breakViterbiTiesRandomly(int top, int bottom, int d, int type) {
-		Cell cell = (type == TRAP) 
+	private Cell cell(int top, int bottom, int d, int type) {
+		return (type == TRAP) 
 				? trapezoids[top][bottom][d]
 				: triangles[top][bottom][d];
-				
-		if (cell.viterbiSplitCandidates.size() == 0)
-			return;
-		
-		if (cell.viterbiSplitCandidates.size() == 1) {
-			cell.viterbiSplit = cell.viterbiSplitCandidates.get(0);
-		}
-		else {
-			cell.viterbiSplit = cell.viterbiSplitCandidates.get(
-					tieBreaker.nextInt(cell.viterbiSplitCandidates.size()));
+	}
+	
+	/*
+	 * The backtrace methods below walk the viterbi tree with an explicit stack rather than
+	 * by recursion, since lattices can be deep. Children are pushed right-first, so cells are
+	 * still visited in preorder (cell, left subtree, right subtree), and the sequence of
+	 * tieBreaker draws is the same as with the recursive traversal.
+	 */
+	
+	protected void breakViterbiTiesRandomly(int top, int bottom, int d, int type) {
+		LinkedList<Cell> stack = new LinkedList<Cell>();
+		stack.push(cell(top, bottom, d, type));
+		while (!stack.isEmpty()) {
+			Cell cell = stack.pop();
+			
+			if (cell.viterbiSplitCandidates.size() == 0)
+				continue;
+			
+			if (cell.viterbiSplitCandidates.size() == 1) {
+				cell.viterbiSplit = cell.viterbiSplitCandidates.get(0);
+			}
+			else {
+				cell.viterbiSplit = cell.viterbiSplitCandidates.get(
+						tieBreaker.nextInt(cell.viterbiSplitCandidates.size()));
+			}
+			cell.viterbiArc = cell.arcs.get(cell.viterbiSplit);
+			
+			stack.push(cell.viterbiArc.rhs);
+			stack.push(cell.viterbiArc.lhs);
 		}
-		cell.viterbiArc = cell.arcs.get(cell.viterbiSplit);
-		
-		Cell lhs = cell.viterbiArc.lhs;
-		Cell rhs = cell.viterbiArc.rhs;
-		breakViterbiTiesRandomly(lhs.top, lhs.bottom, lhs.dir, lhs.type);
-		breakViterbiTiesRandomly(rhs.top, rhs.bottom, rhs.dir, rhs.type);
 	}
 	
 	protected void populateParse(int[] parse, int top, int bottom, int d, int type) {
-		Cell cell;
-		if (type == TRAP) {
-			parse[bottom] = top;
-			cell = trapezoids[top][bottom][d];
-		}
-		else {
-			cell = triangles[top][bottom][d];
-			if (cell.arcs.size() == 0)
-				return;
-		}
-		if (cell.viterbiArc == null) {
-			System.err.println("Warning! No viterbi parse found.");
-			System.err.println(Arrays.toString(edges));
-//			scorer.saveModel("debug-dump.dmv");
-			return;
+		LinkedList<Cell> stack = new LinkedList<Cell>();
+		stack.push(cell(top, bottom, d, type));
+		while (!stack.isEmpty()) {
+			Cell cell = stack.pop();
+			if (cell.type == TRAP)
+				parse[cell.bottom] = cell.top;
+			else if (cell.arcs.size() == 0)
+				continue;
+			
+			if (cell.viterbiArc == null) {
+				System.err.println("Warning! No viterbi parse found.");
+				System.err.println(Arrays.toString(edges));
+//				scorer.saveModel("debug-dump.dmv");
+				continue;
+			}
+			stack.push(cell.viterbiArc.rhs);
+			stack.push(cell.viterbiArc.lhs);
 		}
-		Cell lhs = cell.viterbiArc.lhs;
-		Cell rhs = cell.viterbiArc.rhs;
-		populateParse(parse, lhs.top, lhs.bottom, lhs.dir, lhs.type);
-		populateParse(parse, rhs.top, rhs.bottom, rhs.dir, rhs.type);
 	}
 	
 	protected void reestimateViterbi(DMVCounter tagCounter, DMVCounter lexCounter) {
@@ -654,63 +998,46 @@ public class LatticeParser {
 	protected void reestimateViterbi(int top, int bottom, int d, int type,
 		DMVCounter tagCounter, DMVCounter lexCounter)
 	{
-		boolean left = d==LEFT;
-		Cell cell;
-		if (type == TRI) {
-			cell = triangles[top][bottom][d];
+		LinkedList<Cell> stack = new LinkedList<Cell>();
+		stack.push(cell(top, bottom, d, type));
+		while (!stack.isEmpty()) {
+			Cell cell = stack.pop();
 			
-			if (cell.arcs.size() == 0)
-				return;
-			
-			int split = cell.viterbiSplit;
+			if (cell.type == TRI && cell.arcs.size() == 0)
+				continue;
 			
-			// Record stop event for child triangle
-			boolean hasChild = left
-					? edges[split].start != cell.bottom
-					: edges[split].end != cell.bottom;
-			tagCounter.add(edges[split].token.getTag(), left, true, hasChild, 0.0);
-		}
-		else {
-			cell = trapezoids[top][bottom][d];
-			int split = cell.viterbiSplit;
-
-			if (split == -1) {
+			if (cell.viterbiSplit == -1) {
 				System.err.println("Warning! No viterbi parse found.");
 				System.err.println(Arrays.toString(edges));
 //				scorer.saveModel("debug-dump.dmv");
-				return;
-			}
-
-			// Record continue event for this trapezoid
-			if (cell.top != 0) {
-				boolean hasChild = left
-						? edges[cell.top].start != split
-						: edges[cell.top].end != split;
-				tagCounter.add(edges[cell.top].token.getTag(), left, false, hasChild, 0.0);
+				continue;
 			}
 			
-			// Record attachment event for trapezoid's head & argument
-			tagCounter.add(edges[cell.top].token.getTag(), 
-					edges[cell.bottom].token.getTag(), left, 0.0);
-			
-			// If there is also a lexical counter, add the token string attachment event
-			if (lexCounter != null) {
-				lexCounter.add(edges[cell.top].token.getString(), 
-						edges[cell.bottom].token.getString(), left, 0.0);
-			}
+			countEvents(cell.type, cell.dir, cell.top, cell.bottom, cell.viterbiSplit, 0.0,
+					tagCounter, lexCounter);
 			
-			// Record stop event for argument triangle
-			boolean argLeft = !left;
-			boolean argHasChild = argLeft
-					? edges[cell.bottom].start != split
-					: edges[cell.bottom].end != split;
-			tagCounter.add(edges[cell.bottom].token.getTag(),
-					argLeft, true, argHasChild, 0.0);
+			stack.push(cell.viterbiArc.rhs);
+			stack.push(cell.viterbiArc.lhs);
 		}
-		Cell lhs = cell.viterbiArc.lhs;
-		Cell rhs = cell.viterbiArc.rhs;
-		reestimateViterbi(lhs.top, lhs.bottom, lhs.dir, lhs.type, tagCounter, lexCounter);
-		reestimateViterbi(rhs.top, rhs.bottom, rhs.dir, rhs.type, tagCounter, lexCounter);
+	}
+	
+	/** A parse (in the format returned by parse()) and its score. */
+	public static class ScoredParse {
+		public final int[] parse;
+		public final double score;
+		
+		public ScoredParse(int[] parse, double score) {
+			this.parse = parse;
+			this.score = score;
+		}
+	}
+	
+	/**
+	 * The k highest-scoring parses of the most recently parsed lattice, best first; the first
+	 * is the one returned by parse().
+	 */
+	public List<ScoredParse> kBestParses(int k) {
+		throw new Error("k-best parsing is only supported by FlatLatticeParser");
 	}
 	
 	void reestimate(DMVCounter dmvCounter) {
@@ -724,52 +1051,114 @@ public class LatticeParser {
 		
 		traverseBranches(new CellFunction() {
 			@Override public void apply(Cell cell) {
-				boolean left = cell.dir == LEFT;
 				for (Map.Entry<Integer, Arc> entry: cell.arcs.entrySet()) {
-					int split = entry.getKey();
 					Arc arc = entry.getValue();
-					
 					double count = cell.outProb + arc.lhs.inProb + arc.rhs.inProb + arc.prob - Z;
-
-					if (cell.type == TRI) {
-						// Record stop event for child triangle
-						boolean hasChild = left
-								? edges[split].start != cell.bottom
-								: edges[split].end != cell.bottom;
-						counter.add(edges[split].token.getTag(), left, true, hasChild, count);
-					}
-					else {
-						// Record continue event for this trapezoid
-						if (cell.top != 0) {
-							boolean hasChild = left
-									? edges[cell.top].start != split
-									: edges[cell.top].end != split;
-							counter.add(edges[cell.top].token.getTag(), left, false, hasChild, count);
-						}
-						
-						// Record attachment event for trapezoid's head & argument
-						counter.add(edges[cell.top].token.getTag(), 
-								edges[cell.bottom].token.getTag(), left, count);
-						
-						// If there is also a lexical counter, add the token string attachment event
-						if (lCounter != null) {
-							lCounter.add(edges[cell.top].token.getString(), 
-									edges[cell.bottom].token.getString(), left, count);
-						}
-						
-						// Record stop event for argument triangle
-						boolean argLeft = !left;
-						boolean argHasChild = argLeft
-								? edges[cell.bottom].start != split
-								: edges[cell.bottom].end != split;
-						counter.add(edges[cell.bottom].token.getTag(),
-								argLeft, true, argHasChild, count);
-					}
+					countEvents(cell.type, cell.dir, cell.top, cell.bottom, entry.getKey(),
+						count, counter, lCounter);
 				}
 			}
 		});
 	}
 	
+	/**
+	 * Record the DMV events of the arc with the given split point into the cell
+	 * (top, bottom, dir) of the given type, with log count logCount.
+	 */
+	protected void countEvents(int type, int dir, int top, int bottom, int split,
+		double logCount, DMVCounter counter, DMVCounter lexCounter)
+	{
+		boolean left = dir == LEFT;
+		if (type == TRI) {
+			// Record stop event for child triangle
+			boolean hasChild = left
+					? edges[split].start != bottom
+					: edges[split].end != bottom;
+			counter.add(edges[split].token.getTag(), left, true, hasChild, logCount);
+		}
+		else {
+			// Record continue event for this trapezoid
+			if (top != 0) {
+				boolean hasChild = left
+						? edges[top].start != split
+						: edges[top].end != split;
+				counter.add(edges[top].token.getTag(), left, false, hasChild, logCount);
+			}
+			
+			// Record attachment event for trapezoid's head & argument
+			counter.add(edges[top].token.getTag(), edges[bottom].token.getTag(), left, logCount);
+			
+			// If there is also a lexical counter, add the token string attachment event
+			if (lexCounter != null) {
+				lexCounter.add(edges[top].token.getString(), 
+						edges[bottom].token.getString(), left, logCount);
+			}
+			
+			// Record stop event for argument triangle
+			boolean argLeft = !left;
+			boolean argHasChild = argLeft
+					? edges[bottom].start != split
+					: edges[bottom].end != split;
+			counter.add(edges[bottom].token.getTag(), argLeft, true, argHasChild, logCount);
+		}
+	}
+	
+	/** Like countEvents(), but adds count (not in log space) to the events in v. */
+	protected void softCountEvents(int type, int dir, int top, int bottom, int split,
+		double count, DMVVector v)
+	{
+		boolean left = dir == LEFT;
+		if (type == TRI) {
+			// Record stop event for child triangle
+			boolean hasChild = left
+					? edges[split].start != bottom
+					: edges[split].end != bottom;
+			v.add(true, edges[split].token.getTag(), dir, hasChild, count);
+		}
+		else {
+			// Record continue event for this trapezoid
+			if (top != 0) {
+				boolean hasChild = left
+						? edges[top].start != split
+						: edges[top].end != split;
+				v.add(false, edges[top].token.getTag(), dir, hasChild, count);
+			}
+			
+			// Record attachment event for trapezoid's head & argument
+			v.add(edges[bottom].token.getTag(), edges[top].token.getTag(), dir, count);
+			
+			// Record stop event for argument triangle
+			boolean argLeft = !left;
+			boolean argHasChild = argLeft
+					? edges[bottom].start != split
+					: edges[bottom].end != split;
+			v.add(true, edges[bottom].token.getTag(), argLeft ? 0 : 1, argHasChild, count);
+		}
+	}
+	
+	/** Add an arc's expected count (log space, normalized) to the pending counters. */
+	protected void countPendingEvents(int type, int dir, int top, int bottom, int split,
+		double logCount)
+	{
+		if (pendingCounter != null)
+			countEvents(type, dir, top, bottom, split, logCount,
+					pendingCounter, pendingLexCounter);
+		if (pendingVector != null)
+			softCountEvents(type, dir, top, bottom, split,
+					pendingWeight * FastMath.exp(logCount), pendingVector);
+	}
+	
+	/** Like countPendingEvents(), but count is the expected count itself, not its log. */
+	protected void countPendingEventsLinear(int type, int dir, int top, int bottom, int split,
+		double count)
+	{
+		if (pendingCounter != null)
+			countEvents(type, dir, top, bottom, split, Math.log(count),
+					pendingCounter, pendingLexCounter);
+		if (pendingVector != null)
+			softCountEvents(type, dir, top, bottom, split, pendingWeight * count, pendingVector);
+	}
+	
 	/** 
 	 * Unlike reestimate(), this adds in non-log space (vector stores actual probabilities).
 	 * This also subtly differs from reestimate() in that it only counts events; reestimate()
@@ -784,48 +1173,20 @@ public class LatticeParser {
 		
 		traverseBranches(new CellFunction() {
 			@Override public void apply(Cell cell) {
-				boolean left = cell.dir == LEFT;
 				for (Map.Entry<Integer, Arc> entry: cell.arcs.entrySet()) {
-					int split = entry.getKey();
 					Arc arc = entry.getValue();
-					
 					double count = w * FastMath.exp(
 							cell.outProb + arc.lhs.inProb + arc.rhs.inProb + arc.prob - Z);
-
-					if (cell.type == TRI) {
-						// Record stop event for child triangle
-						boolean hasChild = left
-								? edges[split].start != cell.bottom
-								: edges[split].end != cell.bottom;
-						v.add(true, edges[split].token.getTag(), cell.dir, hasChild, count);
-					}
-					else {
-						// Record continue event for this trapezoid
-						if (cell.top != 0) {
-							boolean hasChild = left
-									? edges[cell.top].start != split
-									: edges[cell.top].end != split;
-							v.add(false, edges[cell.top].token.getTag(), cell.dir, hasChild, count);
-						}
-						
-						// Record attachment event for trapezoid's head & argument
-						v.add(edges[cell.bottom].token.getTag(),
-								edges[cell.top].token.getTag(), cell.dir, count);
-						
-						// Record stop event for argument triangle
-						boolean argLeft = !left;
-						boolean argHasChild = argLeft
-								? edges[cell.bottom].start != split
-								: edges[cell.bottom].end != split;
-						v.add(true, edges[cell.bottom].token.getTag(),
-								argLeft ? 0 : 1, argHasChild, count);
-					}
+					softCountEvents(cell.type, cell.dir, cell.top, cell.bottom, entry.getKey(),
+						count, v);
 				}
 			}
 		});
 	}
 	
 	public double sentProb() {
+		if (mode == Mode.VITERBI)
+			throw new Error("sentProb() is not computed in VITERBI mode");
 		return triangles[0][states-1][RIGHT].inProb;
 	}
 	
@@ -951,10 +1312,13 @@ public class LatticeParser {
 	}
 	
 	static Map<String, Scorer> scorers = new HashMap<String, Scorer>();
+	static Map<Integer, ForkJoinPool> forkJoinPools = new HashMap<Integer, ForkJoinPool>();
 	
 	public synchronized static LatticeParser fromConfig(RunConfig config) throws IOException {
 		Scorer scorer;
 		if (config.getBoolean("parser.combined-model")) {
+			if (config.getBoolean("parser.compiled-scorer", false))
+				throw new IOException("parser.compiled-scorer requires parser.combined-model: F");
 			String tagModelFile = config.getDataFile("parser.tag-model-file").getPath();
 			double tagModelAlpha = config.getDouble("parser.tag-model-alpha");
 			String lexModelFile = config.getDataFile("parser.lex-model-file").getPath();
@@ -976,18 +1340,66 @@ public class LatticeParser {
 		}
 		else {
 			String tagModelFile = config.getDataFile("parser.tag-model-file").getPath();
+			boolean compiled = config.getBoolean("parser.compiled-scorer", false);
 			if (tagModelFile.endsWith(".dmv")) {
 				DMVGrammar tagDmv = new DMVGrammar(tagModelFile);
-				scorer = new DMVGrammarScorer(tagDmv);
+				if (compiled)
+					scorer = new CompiledDMVScorer(tagDmv);
+				else
+					scorer = new DMVGrammarScorer(tagDmv);
 			}
 			else {
-				DMV tagDmv = new TagDMV(tagModelFile, false,
+				TagDMV tagDmv = new TagDMV(tagModelFile, false,
 						config.getDouble("parser.tag-model-alpha"));
-				scorer = new DMVScorer(tagDmv);
+				if (compiled)
+					scorer = new CompiledDMVScorer(tagDmv);
+				else
+					scorer = new DMVScorer(tagDmv);
 			}
 		}
 		
-		return new LatticeParser(scorer, true, config.getBoolean("parser.right-branching"));
+		boolean rightBranching = config.getBoolean("parser.right-branching");
+		double beam = config.getDouble("parser.beam", Double.POSITIVE_INFINITY);
+		double threshold = config.getDouble("parser.threshold", Double.POSITIVE_INFINITY);
+		double coarseThreshold =
+				config.getDouble("parser.coarse-threshold", Double.POSITIVE_INFINITY);
+		boolean pruning = beam != Double.POSITIVE_INFINITY
+				|| threshold != Double.POSITIVE_INFINITY
+				|| coarseThreshold != Double.POSITIVE_INFINITY;
+		boolean scaled = config.getBoolean("parser.scaled", false);
+		int threads = config.getInt("parser.threads", 1);
+		String chart = config.getString("parser.chart", "cells");
+		if (chart.equals("flat")) {
+			if (threads > 1)
+				throw new IOException("parser.threads requires parser.chart: cells");
+			FlatLatticeParser parser = new FlatLatticeParser(scorer, true, rightBranching);
+			parser.setReuseChart(config.getBoolean("parser.reuse-chart", true));
+			parser.setScaled(scaled);
+			parser.setBeam(beam);
+			parser.setThreshold(threshold);
+			parser.setCoarseThreshold(coarseThreshold);
+			return parser;
+		}
+		else if (pruning)
+			throw new IOException("Pruning requires parser.chart: flat");
+		else if (scaled)
+			throw new IOException("parser.scaled requires parser.chart: flat");
+		else if (chart.equals("cells")) {
+			LatticeParser parser = new LatticeParser(scorer, true, rightBranching);
+			if (threads > 1) {
+				// Pools are shared by all the parsers, and their idle threads time out
+				ForkJoinPool pool = forkJoinPools.get(threads);
+				if (pool == null) {
+					pool = new ForkJoinPool(threads);
+					forkJoinPools.put(threads, pool);
+				}
+				parser.setForkJoinPool(pool, config.getInt(
+						"parser.parallel-min-positions", DEFAULT_PARALLEL_MIN_POSITIONS));
+			}
+			return parser;
+		}
+		else
+			throw new IOException("Invalid parser.chart: " + chart);
 	}
 	
 	static void supervisedTraining(String trainingFile, Clustering clustering, 
@@ -1036,13 +1448,67 @@ public class LatticeParser {
 			lexCounter.saveCounts(outputLexModel);
 	}
 
+	/**
+	 * Parse the same random lattices with a sequential LatticeParser and one that fills its
+	 * chart on a ForkJoinPool with the given number of threads, and report the number of
+	 * results that are not exactly the same, and the speed of each.
+	 */
+	static void parallelTest(int trials, int length, int width, int numTags, int threads) {
+		Random random = new Random(0);
+		DMVVector model = FlatLatticeParser.randomModel(random, numTags);
+		Scorer scorer = new CompiledDMVScorer(model);
+		TaggedLattice[] lattices = new TaggedLattice[trials];
+		for (int i = 0; i < trials; i++)
+			lattices[i] = FlatLatticeParser.randomLattice(random, length, width, true, numTags);
+		
+		LatticeParser sequential = new LatticeParser(scorer);
+		LatticeParser parallel = new LatticeParser(scorer);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		parallel.setForkJoinPool(pool, 0);
+		int parseMismatches = 0;
+		int probMismatches = 0;
+		int countMismatches = 0;
+		for (TaggedLattice lattice: lattices) {
+			DMVVector counts = new DMVVector(model.getVocabulary());
+			sequential.softCountNextParse(counts, 1.0);
+			int[] parse = sequential.parse(lattice);
+			DMVVector parallelCounts = new DMVVector(model.getVocabulary());
+			parallel.softCountNextParse(parallelCounts, 1.0);
+			int[] parallelParse = parallel.parse(lattice);
+		
+			if (!Arrays.equals(parse, parallelParse))
+				parseMismatches++;
+			if (sequential.viterbiProb() != parallel.viterbiProb()
+					|| sequential.sentProb() != parallel.sentProb())
+				probMismatches++;
+			if (!Arrays.equals(counts.vector, parallelCounts.vector))
+				countMismatches++;
+		}
+		System.out.printf("%d lattices: %d parse mismatches; %d probability mismatches; "
+				+ "%d expected count mismatches\n",
+				trials, parseMismatches, probMismatches, countMismatches);
+		
+		for (LatticeParser parser: new LatticeParser[] {
+				sequential, parallel, sequential, parallel})
+		{
+			long startTime = System.nanoTime();
+			for (TaggedLattice lattice: lattices)
+				parser.parse(lattice);
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+			System.out.printf("%s: %.2f lattices/sec\n",
+					parser == parallel ? threads + " threads" : "Sequential", trials / seconds);
+		}
+		pool.shutdown();
+	}
+	
 	public static void main(String[] args) throws IOException {
 		CommandLineParser clp = new CommandLineParser(
 			"-string -sent=s -model=s -counts=s -tag-smoothing=f"
 			+ " -lex-counts=s -lex-smoothing=f -lambda=f -right-branching "
 			+ " -clustering=s -normalize -reestimate=s -estimate-lex=s -viterbi"
 			+ " -min-length=i -max-length=i -quiet -debug -pretty"
-			+ " -supervised-training=s",
+			+ " -supervised-training=s"
+			+ " -parallel -trials=i -length=i -width=i -tags=i -threads=i",
 			args);
 
 		String sentFile = clp.args().length > 0 ? clp.arg(0) : null;
@@ -1064,6 +1530,12 @@ public class LatticeParser {
 		debug = clp.opt("-debug");
 		boolean pretty = clp.opt("-pretty");
 		String supervisedTrainingFile = clp.opt("-supervised-training", null);
+		
+		if (clp.opt("-parallel")) {
+			parallelTest(clp.opt("-trials", 50), clp.opt("-length", 40), clp.opt("-width", 3),
+					clp.opt("-tags", 50), clp.opt("-threads", 4));
+			return;
+		}
 
 		Clustering clustering = null;
 		if (clusterFile != null) clustering = new Clustering(new File(clusterFile), true, true);
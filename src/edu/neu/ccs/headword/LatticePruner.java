@@ -0,0 +1,294 @@
+package edu.neu.ccs.headword;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.neu.ccs.headword.StringLattice.Edge;
+import edu.neu.ccs.headword.util.RunConfig;
+import edu.neu.ccs.headword.util.Util;
+
+/**
+ * A cheap coarse pass over a channel lattice before it is parsed. The posterior probability of
+ * each edge under its channel score plus a (weighted) unigram or bigram language model is
+ * computed by forward-backward, and edges whose posterior is below a threshold, or which are
+ * not among the top k edges from their start position, are dropped. The edges of the coarse
+ * model's best path are always kept, and edges left on no complete path are dropped too, so
+ * the pruned lattice still has a path through it.
+ *
+ * Words the language model gives zero probability are scored as <unk> in the same context, as
+ * in NGramLatticeDecoder. Pruners don't modify the model and count their statistics with
+ * atomic counters, so one instance can be used by several threads.
+ */
+public class LatticePruner {
+
+	final NGramLanguageModel lm;
+	final int order; // 1 or 2
+	final double lmWeight;
+	final double minLogPosterior;
+	final int topK; // 0 for no limit
+
+	final AtomicLong lattices = new AtomicLong();
+	final AtomicLong edgesBefore = new AtomicLong();
+	final AtomicLong edgesAfter = new AtomicLong();
+	final AtomicLong oracleLattices = new AtomicLong();
+	final AtomicLong oracleSurvivals = new AtomicLong();
+	final AtomicLong oracleErrorsBefore = new AtomicLong();
+	final AtomicLong oracleErrorsAfter = new AtomicLong();
+	final AtomicLong oracleWords = new AtomicLong();
+
+	public LatticePruner(NGramLanguageModel lm, int order, double lmWeight,
+			double minPosterior, int topK)
+	{
+		this.lm = lm;
+		this.order = order;
+		this.lmWeight = lmWeight;
+		this.minLogPosterior = Math.log(minPosterior);
+		this.topK = topK;
+	}
+
+	/**
+	 * The pruner configured by lattice-pruning.min-posterior and lattice-pruning.top-k, or null
+	 * if neither is set. The language model is srilm.model, truncated to
+	 * lattice-pruning.lm-order (1 or 2, by default 2) and weighted by lattice-pruning.lm-weight
+	 * (by default 1) relative to the channel scores.
+	 */
+	public static LatticePruner fromConfig(RunConfig config) throws IOException {
+		double minPosterior = config.getDouble("lattice-pruning.min-posterior", 0.0);
+		int topK = config.getInt("lattice-pruning.top-k", 0);
+		if (minPosterior <= 0 && topK <= 0)
+			return null;
+		int order = config.getInt("lattice-pruning.lm-order", 2);
+		if (order != 1 && order != 2)
+			throw new IOException("Invalid lattice-pruning.lm-order: " + order);
+		return new LatticePruner(
+				NGramLanguageModel.getInstance(config.getDataFile("srilm.model"), order),
+				order, config.getDouble("lattice-pruning.lm-weight", 1.0), minPosterior, topK);
+	}
+
+	/**
+	 * Weighted log probability of word given the previous word (ignored by a unigram model),
+	 * with word scored as <unk> if the model gives it zero probability. context is scratch
+	 * space for two ids.
+	 */
+	double wordProb(int previous, int word, int[] context) {
+		context[0] = previous;
+		context[1] = word;
+		double p = lm.probOfWord(context, 1, order);
+		if (p == Double.NEGATIVE_INFINITY) {
+			context[1] = lm.unkId;
+			p = lm.probOfWord(context, 1, order);
+		}
+		return lmWeight * p;
+	}
+
+	/**
+	 * Indexes of the edges grouped by start state (or, if byEnd, by end state), in their
+	 * original order within each group. The group of state s is
+	 * [offsets[s], offsets[s+1]).
+	 */
+	static int[] groupEdges(List<Edge> edges, int numPositions, boolean byEnd, int[] offsets) {
+		Arrays.fill(offsets, 0);
+		for (Edge edge: edges)
+			offsets[(byEnd ? edge.end : edge.start) + 1]++;
+		for (int s = 0; s < numPositions; s++)
+			offsets[s + 1] += offsets[s];
+		int[] next = Arrays.copyOf(offsets, numPositions);
+		int[] grouped = new int[edges.size()];
+		for (int e = 0; e < edges.size(); e++) {
+			Edge edge = edges.get(e);
+			grouped[next[byEnd ? edge.end : edge.start]++] = e;
+		}
+		return grouped;
+	}
+
+	/**
+	 * Log posterior probabilities of the lattice's edges, in the order of lattice.edges, and,
+	 * in onBestPath, which edges are on the coarse model's best path; or null if the lattice
+	 * has no complete path.
+	 */
+	double[] edgePosteriors(StringLattice lattice, boolean[] onBestPath) {
+		List<Edge> edges = lattice.edges;
+		int numEdges = edges.size();
+		int finalState = lattice.numPositions - 1;
+
+		int[] inOffsets = new int[lattice.numPositions + 1];
+		int[] startOffsets = new int[lattice.numPositions + 1];
+		int[] inEdges = groupEdges(edges, lattice.numPositions, true, inOffsets);
+		int[] byStart = groupEdges(edges, lattice.numPositions, false, startOffsets);
+		int[] ids = new int[numEdges];
+		for (int e = 0; e < numEdges; e++)
+			ids[e] = lm.wordId(edges.get(e).token);
+
+		int[] context = new int[2];
+		double[] terms = new double[16];
+		double[] forward = new double[numEdges];
+		double[] viterbi = new double[numEdges];
+		int[] viterbiPrev = new int[numEdges];
+		for (int i = 0; i < numEdges; i++) {
+			int e = byStart[i];
+			int start = edges.get(e).start;
+			double channelProb = edges.get(e).logProb;
+			viterbiPrev[e] = -1;
+			if (start == 0) {
+				forward[e] = viterbi[e] = channelProb + wordProb(lm.startId, ids[e], context);
+				continue;
+			}
+			int numIn = inOffsets[start + 1] - inOffsets[start];
+			if (terms.length < numIn)
+				terms = new double[numIn];
+			double best = Double.NEGATIVE_INFINITY;
+			for (int j = 0; j < numIn; j++) {
+				int p = inEdges[inOffsets[start] + j];
+				double lmProb = wordProb(ids[p], ids[e], context);
+				terms[j] = forward[p] + lmProb;
+				if (viterbi[p] + lmProb > best) {
+					best = viterbi[p] + lmProb;
+					viterbiPrev[e] = p;
+				}
+			}
+			forward[e] = channelProb + Util.logSumExp(terms, 0, numIn);
+			viterbi[e] = channelProb + best;
+		}
+
+		double[] backward = new double[numEdges];
+		for (int i = numEdges - 1; i >= 0; i--) {
+			int e = byStart[i];
+			int end = edges.get(e).end;
+			if (end == finalState) {
+				backward[e] = wordProb(ids[e], lm.endId, context);
+				continue;
+			}
+			int numOut = startOffsets[end + 1] - startOffsets[end];
+			if (terms.length < numOut)
+				terms = new double[numOut];
+			for (int j = 0; j < numOut; j++) {
+				int f = byStart[startOffsets[end] + j];
+				terms[j] = wordProb(ids[e], ids[f], context) + edges.get(f).logProb + backward[f];
+			}
+			backward[e] = Util.logSumExp(terms, 0, numOut);
+		}
+
+		int numFinal = inOffsets[finalState + 1] - inOffsets[finalState];
+		if (terms.length < numFinal)
+			terms = new double[numFinal];
+		double best = Double.NEGATIVE_INFINITY;
+		int bestLast = -1;
+		for (int j = 0; j < numFinal; j++) {
+			int e = inEdges[inOffsets[finalState] + j];
+			terms[j] = forward[e] + backward[e];
+			if (viterbi[e] + backward[e] > best) {
+				best = viterbi[e] + backward[e];
+				bestLast = e;
+			}
+		}
+		double totalProb = Util.logSumExp(terms, 0, numFinal);
+		if (totalProb == Double.NEGATIVE_INFINITY)
+			return null;
+
+		for (int e = bestLast; e >= 0; e = viterbiPrev[e])
+			onBestPath[e] = true;
+		double[] posteriors = new double[numEdges];
+		for (int e = 0; e < numEdges; e++)
+			posteriors[e] = forward[e] + backward[e] - totalProb;
+		return posteriors;
+	}
+
+	/**
+	 * The lattice without the edges whose posteriors are below the threshold or outside the
+	 * top k of their start position (ties with the k-th edge are kept), except for the edges of
+	 * the best path, and without the edges that are then on no complete path. A lattice with no
+	 * complete path is returned unchanged.
+	 */
+	public StringLattice prune(StringLattice lattice) {
+		List<Edge> edges = lattice.edges;
+		int numEdges = edges.size();
+		int numPositions = lattice.numPositions;
+		boolean[] keep = new boolean[numEdges];
+		double[] posteriors = edgePosteriors(lattice, keep);
+		lattices.incrementAndGet();
+		edgesBefore.addAndGet(numEdges);
+		if (posteriors == null) {
+			edgesAfter.addAndGet(numEdges);
+			return lattice;
+		}
+
+		int[] offsets = new int[numPositions + 1];
+		int[] byStart = groupEdges(edges, numPositions, false, offsets);
+		double[] sorted = new double[numEdges];
+		for (int s = 0; s < numPositions; s++) {
+			int size = offsets[s + 1] - offsets[s];
+			double kthBest = Double.NEGATIVE_INFINITY;
+			if (topK > 0 && size > topK) {
+				for (int i = 0; i < size; i++)
+					sorted[i] = posteriors[byStart[offsets[s] + i]];
+				Arrays.sort(sorted, 0, size);
+				kthBest = sorted[size - topK];
+			}
+			for (int i = offsets[s]; i < offsets[s + 1]; i++) {
+				int e = byStart[i];
+				if (posteriors[e] >= minLogPosterior && posteriors[e] >= kthBest)
+					keep[e] = true;
+			}
+		}
+
+		// Drop the kept edges that can't be reached from the start or can't reach the end
+		boolean[] reachable = new boolean[numPositions];
+		boolean[] coreachable = new boolean[numPositions];
+		reachable[0] = true;
+		coreachable[numPositions - 1] = true;
+		for (int i = 0; i < numEdges; i++) {
+			int e = byStart[i];
+			if (keep[e] && reachable[edges.get(e).start])
+				reachable[edges.get(e).end] = true;
+		}
+		for (int i = numEdges - 1; i >= 0; i--) {
+			int e = byStart[i];
+			if (keep[e] && coreachable[edges.get(e).end])
+				coreachable[edges.get(e).start] = true;
+		}
+
+		StringLattice pruned = new StringLattice(numPositions);
+		for (int e = 0; e < numEdges; e++) {
+			Edge edge = edges.get(e);
+			if (keep[e] && reachable[edge.start] && coreachable[edge.end])
+				pruned.addEdge(edge.start, edge.end, edge.token, edge.logProb);
+		}
+		edgesAfter.addAndGet(pruned.edges.size());
+		return pruned;
+	}
+
+	/**
+	 * Record whether pruning kept the lattice's closest path to the reference transcription,
+	 * i.e. whether the oracle word error count is the same before and after.
+	 */
+	public void recordOracle(StringLattice lattice, StringLattice pruned, String[] reference) {
+		int before = NGramLatticeDecoder.oracleErrors(lattice, reference);
+		int after = NGramLatticeDecoder.oracleErrors(pruned, reference);
+		oracleLattices.incrementAndGet();
+		if (after == before)
+			oracleSurvivals.incrementAndGet();
+		oracleErrorsBefore.addAndGet(before < 0 ? reference.length : before);
+		oracleErrorsAfter.addAndGet(after < 0 ? reference.length : after);
+		oracleWords.addAndGet(reference.length);
+	}
+
+	public String summary() {
+		long before = edgesBefore.get();
+		String summary = String.format(
+				"Lattice pruning: %d lattices, %d edges -> %d (%.1f%% kept)",
+				lattices.get(), before, edgesAfter.get(),
+				before == 0 ? 100.0 : 100.0 * edgesAfter.get() / before);
+		if (oracleLattices.get() > 0) {
+			long words = Math.max(1, oracleWords.get());
+			summary += String.format(
+					"; oracle path kept in %d of %d lattices (%.1f%%), oracle WER %.4f -> %.4f",
+					oracleSurvivals.get(), oracleLattices.get(),
+					100.0 * oracleSurvivals.get() / oracleLattices.get(),
+					(double) oracleErrorsBefore.get() / words,
+					(double) oracleErrorsAfter.get() / words);
+		}
+		return summary;
+	}
+}
@@ -3,13 +3,31 @@ package edu.neu.ccs.headword;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
 
+import edu.neu.ccs.headword.util.CommandLineParser;
 import edu.neu.ccs.headword.util.Util;
 
+/**
+ * A backoff n-gram model, read from an ARPA file or memory-mapped from a binary file written
+ * by save() (convert with "NGramLanguageModel -convert model.arpa order model.bin"). A mapped
+ * model loads in constant time, and processes mapping the same file share its pages.
+ */
 public class NGramLanguageModel {
 	
 	private static final boolean DEBUG = false;
@@ -66,22 +84,184 @@ public class NGramLanguageModel {
 		}
 	}
 	
-	public static class NGramStats {
-		public final double prob;
-		public final Double backoff;
-		
-		public NGramStats(double prob, Double backoff) {
-			this.prob = prob;
-			this.backoff = backoff;
+	/**
+	 * The n-grams of one order n > 1, in an open-addressing hash table. An n-gram is keyed by
+	 * the slot of its (n-1)-word prefix in the table of order n-1 (for bigrams, the first
+	 * word's id) and the id of its last word, and its slot is its index. Prefixes absent from
+	 * the model but needed as keys are stored with a NaN prob.
+	 *
+	 * The table is built in arrays, which complete() wraps in buffers for lookups; a table
+	 * loaded from a binary model file is a set of buffers mapped from the file.
+	 */
+	static class NGramTable {
+		static final long EMPTY = -1L;
+
+		long[] keyArray;
+		float[] probArray;
+		float[] backoffArray;
+
+		LongBuffer keys;
+		FloatBuffer probs; // log10
+		FloatBuffer backoffs; // log10; 0 if none
+		int size = 0;
+		int mask;
+
+		NGramTable(int expectedSize) {
+			int capacity = 16;
+			while (capacity < 2 * expectedSize)
+				capacity *= 2;
+			allocate(capacity);
+		}
+
+		NGramTable(LongBuffer keys, FloatBuffer probs, FloatBuffer backoffs, int size) {
+			this.keys = keys;
+			this.probs = probs;
+			this.backoffs = backoffs;
+			this.size = size;
+			mask = keys.capacity() - 1;
+		}
+
+		void allocate(int capacity) {
+			keyArray = new long[capacity];
+			Arrays.fill(keyArray, EMPTY);
+			probArray = new float[capacity];
+			backoffArray = new float[capacity];
+			mask = capacity - 1;
+		}
+
+		void complete() {
+			keys = LongBuffer.wrap(keyArray);
+			probs = FloatBuffer.wrap(probArray);
+			backoffs = FloatBuffer.wrap(backoffArray);
+			keyArray = null;
+			probArray = null;
+			backoffArray = null;
+		}
+
+		static long key(int prefix, int word) {
+			return ((long) prefix << 32) | (word & 0xffffffffL);
+		}
+
+		static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		/** Index of the n-gram, or -1 if it isn't in the table. */
+		int find(int prefix, int word) {
+			if (prefix < 0 || word < 0)
+				return -1;
+			long key = key(prefix, word);
+			int i = hash(key) & mask;
+			for (;;) {
+				long k = keys.get(i);
+				if (k == key)
+					return i;
+				if (k == EMPTY)
+					return -1;
+				i = (i + 1) & mask;
+			}
+		}
+
+		int slot(long key) {
+			int i = hash(key) & mask;
+			while (keyArray[i] != EMPTY && keyArray[i] != key)
+				i = (i + 1) & mask;
+			return i;
+		}
+
+		/**
+		 * Index of the n-gram, adding it if necessary. This may move the other n-grams, so the
+		 * table of the next order must still be empty.
+		 */
+		int add(int prefix, int word) {
+			long key = key(prefix, word);
+			int i = slot(key);
+			if (keyArray[i] == EMPTY) {
+				if (4 * (size + 1) > 3 * keyArray.length) {
+					rehash(2 * keyArray.length);
+					i = slot(key);
+				}
+				keyArray[i] = key;
+				probArray[i] = Float.NaN;
+				size++;
+			}
+			return i;
+		}
+
+		void rehash(int capacity) {
+			long[] oldKeys = keyArray;
+			float[] oldProbs = probArray;
+			float[] oldBackoffs = backoffArray;
+			allocate(capacity);
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldKeys[j] != EMPTY) {
+					int i = slot(oldKeys[j]);
+					keyArray[i] = oldKeys[j];
+					probArray[i] = oldProbs[j];
+					backoffArray[i] = oldBackoffs[j];
+				}
+			}
 		}
 	}
 	
 	int maxOrder;
-	HashMap<NGram, NGramStats> nGrams;
 	
+	// Words are numbered in order of first appearance. While reading an ARPA file, they are
+	// in wordIds; afterwards, word id's characters are wordChars[wordOffsets[id]] ...
+	// wordChars[wordOffsets[id+1]-1], and wordSlots is an open-addressing table of ids.
+	HashMap<String, Integer> wordIds = null;
+	ArrayList<String> words = null;
+	int numWords = 0;
+	IntBuffer wordOffsets;
+	CharBuffer wordChars;
+	IntBuffer wordSlots;
+	int wordMask;
+	
+	// Unigram stats, indexed by word id. NaN prob for words only seen in longer n-grams.
+	float[] unigramProbArray;
+	float[] unigramBackoffArray;
+	FloatBuffer unigramProbs; // log10
+	FloatBuffer unigramBackoffs; // log10
+	
+	NGramTable[] tables; // tables[n] holds the n-grams of order n > 1
+	
+	int startId;
+	int endId;
+	int unkId;
+	
+	/**
+	 * Load the model from an ARPA file, or map it from a binary file written by save().
+	 * N-grams longer than order are ignored.
+	 */
 	public NGramLanguageModel(File file, int order) throws IOException {
 		this.maxOrder = order;
-		nGrams = new HashMap<NGram, NGramStats>();
+		tables = new NGramTable[order + 1];
+		
+		if (isBinaryFile(file))
+			map(file);
+		else
+			readArpa(file);
+		
+		startId = wordId(START_SYM);
+		endId = wordId(END_SYM);
+		unkId = wordId(UNK_SYM);
+	}
+	
+	void readArpa(File file) throws IOException {
+		wordIds = new HashMap<String, Integer>();
+		words = new ArrayList<String>();
+		unigramProbArray = new float[1024];
+		unigramBackoffArray = new float[1024];
+		int[] counts = new int[maxOrder + 1];
+		int[] ids = new int[maxOrder];
+		
+		// The n-grams of each order n > 1 as they are read: their word ids (n per n-gram),
+		// probs and backoffs. The tables are built from these once the whole file is read.
+		int[] numNGrams = new int[maxOrder + 1];
+		int[][] ngramIds = new int[maxOrder + 1][];
+		float[][] ngramProbs = new float[maxOrder + 1][];
+		float[][] ngramBackoffs = new float[maxOrder + 1][];
 
 		BufferedReader reader = new BufferedReader(
 				new InputStreamReader(new FileInputStream(file), "UTF-8"));
@@ -92,24 +272,52 @@ public class NGramLanguageModel {
 				if (line.startsWith("\\")) {
 					if (line.contains("gram")) {
 						state = Integer.parseInt(line.substring(1, line.indexOf('-')));
-						if (state > order)
+						if (state > maxOrder)
 							break;
+						if (state > 1) {
+							int capacity = Math.max(counts[state], 16);
+							ngramIds[state] = new int[state * capacity];
+							ngramProbs[state] = new float[capacity];
+							ngramBackoffs[state] = new float[capacity];
+						}
 					}
 				}
+				else if (state == 0 && line.startsWith("ngram ")) {
+					// header, e.g. "ngram 2=1000"
+					int n = Integer.parseInt(line.substring(6, line.indexOf('=')).trim());
+					if (n <= maxOrder)
+						counts[n] = Integer.parseInt(line.substring(line.indexOf('=') + 1).trim());
+				}
 				else if (state > 0 && !line.isEmpty()) {
 					String[] terms = line.split("\t");
 					
-					NGram nGram = new NGram(terms[1].split(" "));
+					String[] ngramWords = terms[1].split(" ");
+					if (ngramWords.length != state)
+						throw new IOException("Expected " + state + "-gram");
+					for (int i = 0; i < state; i++)
+						ids[i] = addWord(ngramWords[i]);
 					
-					double probLog10 = Double.parseDouble(terms[0]);
-					if (probLog10 == -99) probLog10 = Double.NEGATIVE_INFINITY;
-					double probLn = probLog10 * LN_10;
-					Double backoffLn = null;
+					float probLog10 = Float.parseFloat(terms[0]);
+					if (probLog10 == -99) probLog10 = Float.NEGATIVE_INFINITY;
+					float backoffLog10 = 0.0f;
 					if (terms.length == 3)
-						backoffLn = Double.parseDouble(terms[2]) * LN_10;
-					NGramStats stats = new NGramStats(probLn, backoffLn);
+						backoffLog10 = Float.parseFloat(terms[2]);
 					
-					nGrams.put(nGram, stats);
+					if (state == 1) {
+						unigramProbArray[ids[0]] = probLog10;
+						unigramBackoffArray[ids[0]] = backoffLog10;
+					}
+					else {
+						int k = numNGrams[state]++;
+						if (k == ngramProbs[state].length) {
+							ngramIds[state] = Arrays.copyOf(ngramIds[state], 2 * state * k);
+							ngramProbs[state] = Arrays.copyOf(ngramProbs[state], 2 * k);
+							ngramBackoffs[state] = Arrays.copyOf(ngramBackoffs[state], 2 * k);
+						}
+						System.arraycopy(ids, 0, ngramIds[state], state * k, state);
+						ngramProbs[state][k] = probLog10;
+						ngramBackoffs[state][k] = backoffLog10;
+					}
 				}
 			}
 		}
@@ -122,6 +330,341 @@ public class NGramLanguageModel {
 		finally {
 			reader.close();
 		}
+		
+		// Build the tables in increasing order, each one complete before the next is keyed on
+		// its slots. Besides its own n-grams, the table of order n gets the n-word prefixes of
+		// all longer n-grams, with a NaN prob if they aren't in the model themselves (pruned
+		// models may have such n-grams).
+		for (int n = 2; n <= maxOrder; n++) {
+			NGramTable table = new NGramTable(numNGrams[n]);
+			tables[n] = table;
+			for (int k = 0; k < numNGrams[n]; k++) {
+				int i = table.add(
+						findWhileReading(ngramIds[n], n * k, n - 1), ngramIds[n][n * k + n - 1]);
+				table.probArray[i] = ngramProbs[n][k];
+				table.backoffArray[i] = ngramBackoffs[n][k];
+			}
+			for (int m = n + 1; m <= maxOrder; m++) {
+				for (int k = 0; k < numNGrams[m]; k++) {
+					table.add(findWhileReading(ngramIds[m], m * k, n - 1),
+							ngramIds[m][m * k + n - 1]);
+				}
+			}
+			ngramIds[n] = null;
+			ngramProbs[n] = null;
+			ngramBackoffs[n] = null;
+		}
+		for (int n = 2; n <= maxOrder; n++)
+			tables[n].complete();
+		
+		unigramProbs = FloatBuffer.wrap(Arrays.copyOf(unigramProbArray, numWords));
+		unigramBackoffs = FloatBuffer.wrap(Arrays.copyOf(unigramBackoffArray, numWords));
+		unigramProbArray = null;
+		unigramBackoffArray = null;
+		indexWords();
+	}
+	
+	int addWord(String word) {
+		Integer id = wordIds.get(word);
+		if (id != null)
+			return id;
+		
+		if (numWords == unigramProbArray.length) {
+			unigramProbArray = Arrays.copyOf(unigramProbArray, 2 * numWords);
+			unigramBackoffArray = Arrays.copyOf(unigramBackoffArray, 2 * numWords);
+		}
+		unigramProbArray[numWords] = Float.NaN;
+		unigramBackoffArray[numWords] = 0.0f;
+		wordIds.put(word, numWords);
+		words.add(word);
+		return numWords++;
+	}
+	
+	/**
+	 * Like find(ids, start, start + length), for use while tables are still being built; the
+	 * tables of orders 2 ... length must already hold the n-gram and its prefixes.
+	 */
+	int findWhileReading(int[] ids, int start, int length) {
+		int index = ids[start];
+		for (int n = 2; n <= length; n++) {
+			NGramTable table = tables[n];
+			index = table.slot(NGramTable.key(index, ids[start + n - 1]));
+			if (table.keyArray[index] == NGramTable.EMPTY)
+				throw new Error("N-gram prefix missing while building the tables");
+		}
+		return index;
+	}
+	
+	/** Replace wordIds and words with the packed word table. */
+	void indexWords() {
+		int totalChars = 0;
+		for (String word: words)
+			totalChars += word.length();
+		
+		int[] offsets = new int[numWords + 1];
+		char[] chars = new char[totalChars];
+		for (int id = 0; id < numWords; id++) {
+			String word = words.get(id);
+			word.getChars(0, word.length(), chars, offsets[id]);
+			offsets[id + 1] = offsets[id] + word.length();
+		}
+		
+		int capacity = 16;
+		while (capacity < 2 * numWords)
+			capacity *= 2;
+		int[] slots = new int[capacity];
+		Arrays.fill(slots, -1);
+		for (int id = 0; id < numWords; id++) {
+			int i = wordHash(words.get(id)) & (capacity - 1);
+			while (slots[i] != -1)
+				i = (i + 1) & (capacity - 1);
+			slots[i] = id;
+		}
+		
+		wordOffsets = IntBuffer.wrap(offsets);
+		wordChars = CharBuffer.wrap(chars);
+		wordSlots = IntBuffer.wrap(slots);
+		wordMask = capacity - 1;
+		wordIds = null;
+		words = null;
+	}
+	
+	static int wordHash(String word) {
+		int h = word.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/** The id of word, or -1 if the model has no n-grams with it. */
+	public int wordId(String word) {
+		int i = wordHash(word) & wordMask;
+		for (;;) {
+			int id = wordSlots.get(i);
+			if (id == -1 || wordEquals(id, word))
+				return id;
+			i = (i + 1) & wordMask;
+		}
+	}
+	
+	boolean wordEquals(int id, String word) {
+		int offset = wordOffsets.get(id);
+		if (wordOffsets.get(id + 1) - offset != word.length())
+			return false;
+		for (int i = 0; i < word.length(); i++)
+			if (wordChars.get(offset + i) != word.charAt(i))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Index of the n-gram ids[start] ... ids[end-1] in its table (its word id for unigrams),
+	 * or -1 if it isn't stored. Stored n-grams may still be absent from the model (NaN prob).
+	 */
+	int find(int[] ids, int start, int end) {
+		int index = ids[start];
+		if (index < 0)
+			return -1;
+		for (int n = 2; n <= end - start && index >= 0; n++)
+			index = tables[n].find(index, ids[start + n - 1]);
+		return index;
+	}
+	
+	float prob(int n, int index) {
+		return n == 1 ? unigramProbs.get(index) : tables[n].probs.get(index);
+	}
+	
+	float backoff(int n, int index) {
+		return n == 1 ? unigramBackoffs.get(index) : tables[n].backoffs.get(index);
+	}
+	
+	// Binary format, little-endian: the header (MAGIC, the order, numWords, the length of
+	// wordChars, the capacity of wordSlots, then the capacity and size of each n-gram table),
+	// then wordOffsets, wordSlots, wordChars, unigramProbs, unigramBackoffs, and each table's
+	// keys, probs and backoffs. Each section starts on an 8-byte boundary.
+	static final long MAGIC = 0x314e49424d4c474eL; // "NGLMBIN1"
+	
+	static boolean isBinaryFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			int n = in.getChannel().read(buffer);
+			return n == 8 && buffer.getLong(0) == MAGIC;
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+	
+	/**
+	 * Write the model in the binary format, which the constructor memory-maps instead of
+	 * parsing. The binary file has the n-grams up to this model's order.
+	 */
+	public void save(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		FileChannel channel = out.getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(32 + 8 * maxOrder)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			header.putLong(MAGIC);
+			header.putInt(maxOrder);
+			header.putInt(numWords);
+			header.putInt(wordChars.capacity());
+			header.putInt(wordSlots.capacity());
+			for (int n = 2; n <= maxOrder; n++) {
+				header.putInt(tables[n].keys.capacity());
+				header.putInt(tables[n].size);
+			}
+			writeSection(channel, header);
+			
+			writeSection(channel, wordOffsets);
+			writeSection(channel, wordSlots);
+			writeSection(channel, wordChars);
+			writeSection(channel, unigramProbs);
+			writeSection(channel, unigramBackoffs);
+			for (int n = 2; n <= maxOrder; n++) {
+				writeSection(channel, tables[n].keys);
+				writeSection(channel, tables[n].probs);
+				writeSection(channel, tables[n].backoffs);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	// Each writeSection() writes a buffer's contents and pads to an 8-byte boundary.
+	
+	static void writeSection(FileChannel channel, ByteBuffer section) throws IOException {
+		ByteBuffer source = section.duplicate();
+		source.flip();
+		while (source.hasRemaining())
+			channel.write(source);
+		pad(channel);
+	}
+	static void writeSection(FileChannel channel, IntBuffer section) throws IOException {
+		IntBuffer source = section.duplicate();
+		source.rewind();
+		ByteBuffer chunk = newChunk();
+		while (source.hasRemaining()) {
+			while (source.hasRemaining() && chunk.remaining() >= 4)
+				chunk.putInt(source.get());
+			writeChunk(channel, chunk);
+		}
+		pad(channel);
+	}
+	static void writeSection(FileChannel channel, LongBuffer section) throws IOException {
+		LongBuffer source = section.duplicate();
+		source.rewind();
+		ByteBuffer chunk = newChunk();
+		while (source.hasRemaining()) {
+			while (source.hasRemaining() && chunk.remaining() >= 8)
+				chunk.putLong(source.get());
+			writeChunk(channel, chunk);
+		}
+		pad(channel);
+	}
+	static void writeSection(FileChannel channel, FloatBuffer section) throws IOException {
+		FloatBuffer source = section.duplicate();
+		source.rewind();
+		ByteBuffer chunk = newChunk();
+		while (source.hasRemaining()) {
+			while (source.hasRemaining() && chunk.remaining() >= 4)
+				chunk.putFloat(source.get());
+			writeChunk(channel, chunk);
+		}
+		pad(channel);
+	}
+	static void writeSection(FileChannel channel, CharBuffer section) throws IOException {
+		CharBuffer source = section.duplicate();
+		source.rewind();
+		ByteBuffer chunk = newChunk();
+		while (source.hasRemaining()) {
+			while (source.hasRemaining() && chunk.remaining() >= 2)
+				chunk.putChar(source.get());
+			writeChunk(channel, chunk);
+		}
+		pad(channel);
+	}
+	
+	static ByteBuffer newChunk() {
+		return ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	static void writeChunk(FileChannel channel, ByteBuffer chunk) throws IOException {
+		chunk.flip();
+		while (chunk.hasRemaining())
+			channel.write(chunk);
+		chunk.clear();
+	}
+	
+	static void pad(FileChannel channel) throws IOException {
+		long padding = align(channel.position()) - channel.position();
+		if (padding > 0)
+			channel.write(ByteBuffer.allocate((int) padding));
+	}
+	
+	/** Map a binary model file; the n-gram tables are read from the file as they are used. */
+	void map(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		FileChannel channel = in.getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			int fileOrder = header.getInt(8);
+			numWords = header.getInt(12);
+			int numChars = header.getInt(16);
+			int numWordSlots = header.getInt(20);
+			
+			ByteBuffer tableHeader = ByteBuffer.allocate(8 * fileOrder)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(tableHeader, 24);
+			long position = align(24 + 8 * (fileOrder - 1));
+			
+			wordOffsets = mapSection(channel, position, 4L * (numWords + 1)).asIntBuffer();
+			position = align(position + 4L * (numWords + 1));
+			wordSlots = mapSection(channel, position, 4L * numWordSlots).asIntBuffer();
+			position = align(position + 4L * numWordSlots);
+			wordChars = mapSection(channel, position, 2L * numChars).asCharBuffer();
+			position = align(position + 2L * numChars);
+			wordMask = numWordSlots - 1;
+			unigramProbs = mapSection(channel, position, 4L * numWords).asFloatBuffer();
+			position = align(position + 4L * numWords);
+			unigramBackoffs = mapSection(channel, position, 4L * numWords).asFloatBuffer();
+			position = align(position + 4L * numWords);
+			
+			for (int n = 2; n <= Math.min(maxOrder, fileOrder); n++) {
+				int capacity = tableHeader.getInt(8 * (n - 2));
+				int size = tableHeader.getInt(8 * (n - 2) + 4);
+				LongBuffer keys = mapSection(channel, position, 8L * capacity).asLongBuffer();
+				position = align(position + 8L * capacity);
+				FloatBuffer probs = mapSection(channel, position, 4L * capacity).asFloatBuffer();
+				position = align(position + 4L * capacity);
+				FloatBuffer backoffs =
+						mapSection(channel, position, 4L * capacity).asFloatBuffer();
+				position = align(position + 4L * capacity);
+				tables[n] = new NGramTable(keys, probs, backoffs, size);
+			}
+			for (int n = fileOrder + 1; n <= maxOrder; n++) {
+				tables[n] = new NGramTable(0);
+				tables[n].complete();
+			}
+		}
+		finally {
+			// the mappings stay valid after the channel is closed
+			in.close();
+		}
+	}
+	
+	static ByteBuffer mapSection(FileChannel channel, long position, long size)
+			throws IOException
+	{
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Language model section too large to map");
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size)
+				.order(ByteOrder.LITTLE_ENDIAN);
 	}
 	
 	public double probOfSentence(String[] sequence) {
@@ -129,18 +672,28 @@ public class NGramLanguageModel {
 	}
 	
 	public double probOfSentence(String[] sequence, boolean mapOovToUnk) {
-		String[] delimitedSequence = new String[sequence.length+2];
-		delimitedSequence[0] = START_SYM;
-		for (int i = 1; i < delimitedSequence.length - 1; i++) {
-			if (mapOovToUnk && !nGrams.containsKey(new NGram(sequence, i-1, i))) {
-				delimitedSequence[i] = UNK_SYM;
-			} else {
-				delimitedSequence[i] = sequence[i-1];
-			}
+		int[] ids = new int[sequence.length+2];
+		ids[0] = startId;
+		for (int i = 1; i < ids.length - 1; i++) {
+			ids[i] = wordId(sequence[i-1]);
+			if (mapOovToUnk && !isInVocab(ids[i]))
+				ids[i] = unkId;
 		}
-		delimitedSequence[delimitedSequence.length-1] = END_SYM;
+		ids[ids.length-1] = endId;
 		
-		return probOfSequence(delimitedSequence);
+		if (DEBUG) {
+			String[] delimitedSequence = new String[ids.length];
+			delimitedSequence[0] = START_SYM;
+			for (int i = 1; i < ids.length - 1; i++)
+				delimitedSequence[i] = ids[i] == unkId ? UNK_SYM : sequence[i-1];
+			delimitedSequence[ids.length-1] = END_SYM;
+			return probOfSequence(delimitedSequence);
+		}
+		
+		double p = 0.0;
+		for (int i = 1; i < ids.length; i++)
+			p += probOfWord(ids, i, maxOrder);
+		return p;
 	}
 	
 	protected double probOfSequence(String[] sequence) {
@@ -163,54 +716,89 @@ public class NGramLanguageModel {
 			order = end;
 		int start = end - order;
 		
-		NGram nGram = new NGram(sequence, start, end);
-		NGramStats stats = nGrams.get(nGram);
-		if (stats != null) {
-			if (DEBUG)
-				System.out.printf("  p(%s) = %f\n", nGram.toString(), stats.prob);
-			return stats.prob;
+		int[] ids = new int[order];
+		for (int i = 0; i < order; i++)
+			ids[i] = wordId(sequence[start + i]);
+		double p = probOfWord(ids, order - 1, order);
+		
+		if (DEBUG)
+			System.out.printf("  p(%s) = %f\n", new NGram(sequence, start, end).toString(), p);
+		
+		return p;
+	}
+	
+	/**
+	 * Natural log probability of the word ids[pos] given the up to (order - 1) words before it,
+	 * backing off as necessary. Ids of words not in the model are -1. Doesn't allocate.
+	 */
+	public double probOfWord(int[] ids, int pos, int order) {
+		int end = pos + 1;
+		if (order > end)
+			order = end;
+		
+		double backoffLog10 = 0.0;
+		for (int n = order; n >= 1; n--) {
+			int start = end - n;
+			int index = find(ids, start, end);
+			if (index >= 0) {
+				float prob = prob(n, index);
+				if (!Float.isNaN(prob))
+					return (backoffLog10 + prob) * LN_10;
+			}
+			if (n == 1)
+				return Double.NEGATIVE_INFINITY;
+			
+			int prefix = find(ids, start, pos);
+			if (prefix >= 0)
+				backoffLog10 += backoff(n - 1, prefix);
 		}
+		return Double.NEGATIVE_INFINITY;
+	}
+	
+	/**
+	 * Incremental scoring of a sentence, one word at a time: start(), then score() for each
+	 * word, then finish(). Keeps only the last (order - 1) word ids, and doesn't allocate.
+	 * Not thread-safe; use one per thread.
+	 */
+	public class SentenceScorer {
+		final int[] history = new int[maxOrder];
+		int length;
 		
-		if (order == 1) {
-			if (DEBUG)
-				System.out.printf("  p(%s) = -inf\n", nGram.toString());
-			return Double.NEGATIVE_INFINITY;
+		public SentenceScorer() {
+			start();
 		}
 		
-		NGram prefix = new NGram(sequence, start, pos);
-		double backoff = getBackoffWeight(prefix);
-		double pBackedOff = probOfWord(sequence, pos, order - 1);
-		double p = backoff + pBackedOff;
+		public void start() {
+			history[0] = startId;
+			length = 1;
+		}
 		
-		if (DEBUG) {
-			System.out.printf("  p(%s) = %f = %f + p(%s)\n",
-					nGram.toString(), p, backoff, new NGram(sequence, start+1, end));
+		/** Log probability of the word with this id given the words so far. */
+		public double score(int id) {
+			if (length == maxOrder) {
+				System.arraycopy(history, 1, history, 0, maxOrder - 1);
+				length--;
+			}
+			history[length++] = id;
+			return probOfWord(history, length - 1, maxOrder);
 		}
 		
-		return p;
+		public double score(String word) {
+			return score(wordId(word));
+		}
 		
-//		for (; start < end; start++) {
-//			NGram nGram = new NGram(sequence, start, end);
-//			NGramStats stats = nGrams.get(nGram);
-//			if (stats != null) {
-//				if (DEBUG)
-//					System.out.printf("  p(%s) = %f\n", nGram.toString(), stats.prob);
-//				return stats.prob;
-//			}
-//		}
-//		return Double.NEGATIVE_INFINITY;
-	}
-	
-	protected double getBackoffWeight(NGram nGram) {
-		NGramStats stats = nGrams.get(nGram);
-		if (stats == null || stats.backoff == null)
-			return 0.0;
-		else
-			return stats.backoff;
+		/** Log probability of the end of the sentence given the words so far. */
+		public double finish() {
+			return score(endId);
+		}
 	}
 	
 	public boolean isInVocab(String word) {
-		return nGrams.containsKey(new NGram(new String[] {word}));
+		return isInVocab(wordId(word));
+	}
+	
+	boolean isInVocab(int id) {
+		return id >= 0 && !Float.isNaN(unigramProbs.get(id));
 	}
 	
 	
@@ -229,7 +817,137 @@ public class NGramLanguageModel {
 		return instance;
 	}
 
+	static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	/**
+	 * Load the model with the original HashMap-based implementation, with this class, and
+	 * mapped from a binary file written by save(). Report load time, heap used and
+	 * probOfSentence() throughput of each, and the largest difference between the original's
+	 * sentence probabilities and this class's.
+	 */
+	static void compareTest(File file, int order, List<String[]> sentences) throws IOException {
+		long baseMemory = usedMemory();
+		long startTime = System.nanoTime();
+		HashMapNGramLanguageModel reference = new HashMapNGramLanguageModel(file, order);
+		double referenceLoadTime = (System.nanoTime() - startTime) / 1e9;
+		long referenceMemory = usedMemory() - baseMemory;
+		
+		baseMemory = usedMemory();
+		startTime = System.nanoTime();
+		NGramLanguageModel lm = new NGramLanguageModel(file, order);
+		double loadTime = (System.nanoTime() - startTime) / 1e9;
+		long memory = usedMemory() - baseMemory;
+		
+		File binaryFile = File.createTempFile("compare", ".bin");
+		binaryFile.deleteOnExit();
+		lm.save(binaryFile);
+		baseMemory = usedMemory();
+		startTime = System.nanoTime();
+		NGramLanguageModel mapped = new NGramLanguageModel(binaryFile, order);
+		double mappedLoadTime = (System.nanoTime() - startTime) / 1e9;
+		long mappedMemory = usedMemory() - baseMemory;
+		
+		double maxDiff = 0.0;
+		int mappedMismatches = 0;
+		for (String[] sentence: sentences) {
+			double p = lm.probOfSentence(sentence);
+			double referenceP = reference.probOfSentence(sentence);
+			if (p != referenceP) { // (not if both are -Infinity, which would give NaN)
+				double diff = Math.abs(p - referenceP);
+				if (!(diff <= maxDiff))
+					maxDiff = diff;
+			}
+			if (Double.compare(p, mapped.probOfSentence(sentence)) != 0)
+				mappedMismatches++;
+		}
+		
+		double[] sentencesPerSec = new double[3];
+		for (int pass = 0; pass < 2; pass++) { // the first pass is warm-up
+			startTime = System.nanoTime();
+			double p = 0.0;
+			for (String[] sentence: sentences)
+				p += reference.probOfSentence(sentence);
+			sentencesPerSec[0] = sentences.size() / ((System.nanoTime() - startTime) / 1e9);
+			
+			startTime = System.nanoTime();
+			for (String[] sentence: sentences)
+				p -= lm.probOfSentence(sentence);
+			sentencesPerSec[1] = sentences.size() / ((System.nanoTime() - startTime) / 1e9);
+			
+			startTime = System.nanoTime();
+			for (String[] sentence: sentences)
+				p += mapped.probOfSentence(sentence);
+			sentencesPerSec[2] = sentences.size() / ((System.nanoTime() - startTime) / 1e9);
+			if (p == 1.0) System.out.print(""); // keep the work from being optimized away
+		}
+		
+		System.out.printf("%-20s %10s %12s %16s\n", "", "load (s)", "heap (MB)", "sentences/sec");
+		System.out.printf("%-20s %10.2f %12.1f %16.0f\n", "HashMap (original)",
+				referenceLoadTime, referenceMemory / 1e6, sentencesPerSec[0]);
+		System.out.printf("%-20s %10.2f %12.1f %16.0f\n", "NGramLanguageModel",
+				loadTime, memory / 1e6, sentencesPerSec[1]);
+		System.out.printf("%-20s %10.3f %12.1f %16.0f\n", "mapped binary file",
+				mappedLoadTime, mappedMemory / 1e6, sentencesPerSec[2]);
+		System.out.printf("max difference in sentence log prob: %g\n", maxDiff);
+		System.out.printf("%d sentences scored differently by the mapped model\n",
+				mappedMismatches);
+	}
+	
 	public static void main(String[] args) throws IOException {
+		CommandLineParser clp = new CommandLineParser("-compare -convert", args);
+		args = clp.args();
+		
+		if (clp.opt("-convert")) {
+			// -convert model.arpa order model.bin
+			new NGramLanguageModel(new File(args[0]), Integer.parseInt(args[1]))
+				.save(new File(args[2]));
+			return;
+		}
+		
+		if (clp.opt("-compare")) {
+			// With no model given, compare on a generated trigram model and sentences
+			File file;
+			int order;
+			List<String[]> sentences = new ArrayList<String[]>();
+			if (args.length > 0) {
+				file = new File(args[0]);
+				order = Integer.parseInt(args[1]);
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(new FileInputStream(args[2]), "UTF-8"));
+				String line;
+				while ((line = reader.readLine()) != null)
+					sentences.add(line.split(" "));
+				reader.close();
+			}
+			else {
+				Random random = new Random(0);
+				String[] vocab = new String[50000];
+				for (int i = 0; i < vocab.length; i++)
+					vocab[i] = Benchmarks.randomWord(random) + i;
+				file = File.createTempFile("compare", ".arpa");
+				file.deleteOnExit();
+				List<String[]> orphans =
+						Benchmarks.writeRandomTrigramModel(random, vocab, 1000000, 1000, file);
+				order = 3;
+				for (int i = 0; i < 20000; i++) {
+					String[] sentence = new String[20];
+					for (int j = 0; j < sentence.length; j++)
+						sentence[j] = vocab[Benchmarks.zipf(random, vocab.length)];
+					// Some sentences use the trigrams without bigram prefixes
+					if (i % 10 == 0)
+						System.arraycopy(orphans.get(i / 10 % orphans.size()), 0, sentence, 8, 3);
+					sentences.add(sentence);
+				}
+			}
+			compareTest(file, order, sentences);
+			return;
+		}
+		
 		NGramLanguageModel lm = new NGramLanguageModel(
 				new File(args[0]), Integer.parseInt(args[1]));
 		
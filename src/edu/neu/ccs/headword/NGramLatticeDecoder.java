@@ -0,0 +1,314 @@
+package edu.neu.ccs.headword;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.neu.ccs.headword.NGramLanguageModel.NGram;
+import edu.neu.ccs.headword.StringLattice.Edge;
+import edu.neu.ccs.headword.util.RunConfig;
+
+/**
+ * Viterbi and n-best decoding of a StringLattice under an n-gram backoff model, in process.
+ * This replaces SRILM's lattice-tool -viterbi-decode / -nbest-decode with
+ * -zeroprob-word <unk>: a word the model gives zero probability is scored as <unk> in the
+ * same context. A path's score is the sum of its edges' (channel) log probabilities and its
+ * language model log probability, including the end-of-sentence token.
+ *
+ * The search is a Viterbi search over (lattice position, n-gram history) states that keeps
+ * the n best hypotheses with distinct word strings at each state, which gives the exact
+ * n best distinct word strings (like lattice-tool's default of no n-best duplicates).
+ *
+ * Decoders don't modify the model, so one instance can be used by several threads.
+ */
+public class NGramLatticeDecoder {
+
+	static final String UNK = NGramLanguageModel.UNK_SYM;
+
+	NGramLanguageModel lm;
+	int order;
+
+	public NGramLatticeDecoder(NGramLanguageModel lm, int order) {
+		this.lm = lm;
+		this.order = order;
+	}
+
+	/**
+	 * The decoder for srilm.model if lm.decoder is in-process, or null if it is lattice-tool
+	 * (the default).
+	 */
+	public static NGramLatticeDecoder fromConfig(RunConfig config) throws IOException {
+		String decoderType = config.getString("lm.decoder", "lattice-tool");
+		if (decoderType.equals("lattice-tool"))
+			return null;
+		else if (!decoderType.equals("in-process"))
+			throw new IOException("Invalid lm.decoder: " + decoderType);
+
+		int order = config.getInt("lm.order");
+		return new NGramLatticeDecoder(
+				NGramLanguageModel.getInstance(config.getDataFile("srilm.model"), order), order);
+	}
+
+	static class Hypothesis {
+		final Hypothesis prev;
+		final String word; // null for the start-of-sentence hypothesis
+		final int length;
+		final int hash; // of the word string, to cheaply rule out duplicates
+		final double channelProb;
+		final double languageProb;
+
+		Hypothesis(Hypothesis prev, String word, double channelProb, double languageProb) {
+			this.prev = prev;
+			this.word = word;
+			if (prev == null) {
+				length = 0;
+				hash = 0;
+			}
+			else {
+				length = prev.length + 1;
+				hash = 31 * prev.hash + word.hashCode();
+			}
+			this.channelProb = channelProb;
+			this.languageProb = languageProb;
+		}
+
+		double score() {
+			return channelProb + languageProb;
+		}
+
+		boolean sameWords(Hypothesis other) {
+			if (length != other.length || hash != other.hash)
+				return false;
+			for (Hypothesis a = this, b = other; a != b; a = a.prev, b = b.prev)
+				if (!a.word.equals(b.word))
+					return false;
+			return true;
+		}
+
+		String[] tokens() {
+			String[] tokens = new String[length];
+			Hypothesis h = this;
+			for (int i = length - 1; i >= 0; i--, h = h.prev)
+				tokens[i] = h.word;
+			return tokens;
+		}
+
+		SentenceCandidate toCandidate() {
+			return new SentenceCandidate(tokens(), channelProb, languageProb);
+		}
+	}
+
+	static final Comparator<Hypothesis> BEST_FIRST = new Comparator<Hypothesis>() {
+		@Override public int compare(Hypothesis a, Hypothesis b) {
+			return Double.compare(b.score(), a.score());
+		}
+	};
+
+	/**
+	 * Add h to the list of best hypotheses of a state (sorted best first, at most n long),
+	 * unless the list already has a hypothesis with the same words that scores at least as well.
+	 */
+	static void addHypothesis(List<Hypothesis> best, Hypothesis h, int n) {
+		double score = h.score();
+		if (best.size() == n && !(score > best.get(n-1).score()))
+			return;
+
+		for (int i = 0; i < best.size(); i++) {
+			if (best.get(i).sameWords(h)) {
+				if (!(score > best.get(i).score()))
+					return;
+				best.remove(i);
+				break;
+			}
+		}
+
+		int i = best.size();
+		while (i > 0 && score > best.get(i-1).score())
+			i--;
+		best.add(i, h);
+		if (best.size() > n)
+			best.remove(best.size() - 1);
+	}
+
+	/**
+	 * Log probability of the last word of context, given the words before it, with
+	 * -zeroprob-word semantics. The last element of context may be overwritten.
+	 */
+	double wordProb(String[] context) {
+		int pos = context.length - 1;
+		double p = lm.probOfWord(context, pos, order);
+		if (p == Double.NEGATIVE_INFINITY) {
+			context[pos] = UNK;
+			p = lm.probOfWord(context, pos, order);
+		}
+		return p;
+	}
+
+	/** The last (order - 1) words of history followed by word. */
+	String[] extend(String[] history, String word) {
+		int keep = Math.min(history.length, order - 1);
+		String[] context = new String[keep + 1];
+		System.arraycopy(history, history.length - keep, context, 0, keep);
+		context[keep] = word;
+		return context;
+	}
+
+	/**
+	 * The n best distinct word strings through the lattice, best first. The list is empty if
+	 * no path reaches the final position.
+	 */
+	public List<SentenceCandidate> nBest(StringLattice lattice, int n) {
+		int finalState = lattice.numPositions - 1;
+
+		List<Map<NGram, List<Hypothesis>>> states =
+				new ArrayList<Map<NGram, List<Hypothesis>>>(lattice.numPositions);
+		for (int i = 0; i < lattice.numPositions; i++)
+			states.add(new HashMap<NGram, List<Hypothesis>>());
+
+		List<Hypothesis> start = new ArrayList<Hypothesis>(1);
+		start.add(new Hypothesis(null, null, 0.0, 0.0));
+		states.get(0).put(new NGram(NGramLanguageModel.START_SYM), start);
+
+		List<Hypothesis> finalHypotheses = new ArrayList<Hypothesis>(n);
+		for (int position = 0; position < lattice.numPositions; position++) {
+			Map<NGram, List<Hypothesis>> positionStates = states.get(position);
+			for (Map.Entry<NGram, List<Hypothesis>> state: positionStates.entrySet()) {
+				String[] history = state.getKey().words;
+
+				if (position == finalState) {
+					double p = wordProb(extend(history, NGramLanguageModel.END_SYM));
+					for (Hypothesis h: state.getValue()) {
+						addHypothesis(finalHypotheses,
+								new Hypothesis(h.prev, h.word, h.channelProb, h.languageProb + p),
+								n);
+					}
+					continue;
+				}
+
+				for (Edge edge: lattice.outEdges(position)) {
+					String[] context = extend(history, edge.token);
+					double p = wordProb(context);
+					context[context.length - 1] = edge.token;
+					NGram nextKey = new NGram(context,
+							Math.max(0, context.length - (order - 1)), context.length);
+
+					Map<NGram, List<Hypothesis>> nextStates = states.get(edge.end);
+					List<Hypothesis> next = nextStates.get(nextKey);
+					if (next == null) {
+						next = new ArrayList<Hypothesis>(n);
+						nextStates.put(nextKey, next);
+					}
+					for (Hypothesis h: state.getValue()) {
+						addHypothesis(next, new Hypothesis(h, edge.token,
+								h.channelProb + edge.logProb, h.languageProb + p), n);
+					}
+				}
+			}
+			positionStates.clear();
+		}
+
+		Collections.sort(finalHypotheses, BEST_FIRST);
+		List<SentenceCandidate> results = new ArrayList<SentenceCandidate>(finalHypotheses.size());
+		for (Hypothesis h: finalHypotheses)
+			results.add(h.toCandidate());
+		return results;
+	}
+
+	/**
+	 * The n best lists of all the lattices, decoded on the given number of threads.
+	 */
+	public List<List<SentenceCandidate>> nBest(
+			List<StringLattice> lattices, final int n, int threads)
+	{
+		List<List<SentenceCandidate>> results =
+				new ArrayList<List<SentenceCandidate>>(lattices.size());
+		if (threads <= 1) {
+			for (StringLattice lattice: lattices)
+				results.add(nBest(lattice, n));
+			return results;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<SentenceCandidate>>> futures =
+					new ArrayList<Future<List<SentenceCandidate>>>(lattices.size());
+			for (final StringLattice lattice: lattices) {
+				futures.add(executor.submit(new Callable<List<SentenceCandidate>>() {
+					@Override public List<SentenceCandidate> call() {
+						return nBest(lattice, n);
+					}
+				}));
+			}
+			for (Future<List<SentenceCandidate>> future: futures)
+				results.add(future.get());
+		}
+		catch (InterruptedException e) {
+			throw new Error(e);
+		}
+		catch (ExecutionException e) {
+			throw new Error(e.getCause());
+		}
+		finally {
+			executor.shutdown();
+		}
+		return results;
+	}
+
+	/** The best word string through the lattice, or null if there is no complete path. */
+	public SentenceCandidate viterbi(StringLattice lattice) {
+		List<SentenceCandidate> best = nBest(lattice, 1);
+		return best.isEmpty() ? null : best.get(0);
+	}
+
+	/**
+	 * Number of word errors (substitutions, insertions and deletions) of the path through the
+	 * lattice closest to the reference, or -1 if no path reaches the final position.
+	 */
+	public static int oracleErrors(StringLattice lattice, String[] reference) {
+		int m = reference.length;
+		int[][] errors = new int[lattice.numPositions][m + 1];
+		for (int[] row: errors)
+			Arrays.fill(row, Integer.MAX_VALUE);
+		for (int j = 0; j <= m; j++)
+			errors[0][j] = j;
+
+		List<List<Edge>> inEdges = new ArrayList<List<Edge>>(lattice.numPositions);
+		for (int i = 0; i < lattice.numPositions; i++)
+			inEdges.add(new ArrayList<Edge>());
+		for (Edge edge: lattice.getEdges())
+			inEdges.get(edge.end).add(edge);
+
+		for (int position = 1; position < lattice.numPositions; position++) {
+			int[] row = errors[position];
+			for (Edge edge: inEdges.get(position)) {
+				int[] from = errors[edge.start];
+				if (from[0] == Integer.MAX_VALUE)
+					continue;
+				for (int j = 0; j <= m; j++) {
+					row[j] = Math.min(row[j], from[j] + 1);
+					if (j > 0) {
+						int cost = edge.token.equals(reference[j-1]) ? 0 : 1;
+						row[j] = Math.min(row[j], from[j-1] + cost);
+					}
+				}
+			}
+			if (row[0] == Integer.MAX_VALUE)
+				continue;
+			for (int j = 1; j <= m; j++)
+				row[j] = Math.min(row[j], row[j-1] + 1);
+		}
+
+		int result = errors[lattice.numPositions - 1][m];
+		return result == Integer.MAX_VALUE ? -1 : result;
+	}
+}
@@ -11,7 +11,7 @@ import static edu.neu.ccs.headword.util.GUtil.loadUtf8Lines;
 import static java.lang.System.arraycopy;
 
 import edu.neu.ccs.headword.DMVCE.NeighborhoodFunction;
-import edu.neu.ccs.headword.LatticeParser.DMVVectorScorer;
+import edu.neu.ccs.headword.LatticeParser.CompiledDMVScorer;
 import edu.neu.ccs.headword.util.CommandLineParser;
 import edu.neu.ccs.headword.util.Counter;
 import edu.neu.ccs.headword.util.Util;
@@ -153,6 +153,10 @@ class OCRCE {
 		double[] negGradient = null;
 		long startTime;
 		
+		// reused across evaluations
+		DMVVector negDmvGradient = null;
+		long parseTime = 0;
+		
 		public DMVFunction(
 				NeighborhoodFunction neighborhoodFunc, Vocabulary vocab, String[][] data, 
 				String outputPrefix, int startIteration, int maxIterations)
@@ -206,7 +210,7 @@ class OCRCE {
 			if (!Arrays.equals(x, currentModel))
 				compute(x);
 			
-			return negGradient;
+			return Arrays.copyOf(negGradient, negGradient.length);
 		}
 		
 		void compute(double[] x) {
@@ -231,20 +235,27 @@ class OCRCE {
 			}
 
 			
-			DMVVectorScorer scorer = new DMVVectorScorer(model);
+			CompiledDMVScorer scorer = new CompiledDMVScorer(model);
 			LatticeParser parser = new LatticeParser(scorer);
+			// soft counts are collected during the outside pass
+			parser.setMode(LatticeParser.Mode.INSIDE);
 
+			long parseStartTime = System.currentTimeMillis();
+			
 			negLikelihood = 0.0;
-			DMVVector negDmvGradient = new DMVVector(vocab);
+			if (negDmvGradient == null)
+				negDmvGradient = new DMVVector(vocab);
+			else
+				Arrays.fill(negDmvGradient.vector, 0.0);
 			
 			Counter<Integer> lengthCounter = new Counter<Integer>();
 			
 			for (int i = 0; i < data.length; i++) {
 				String[] sent = data[i];
 				
+				parser.softCountNextParse(negDmvGradient, -1.0);
 				parser.parse(sent);
 				negLikelihood -= parser.sentProb();
-				parser.addSoftCounts(negDmvGradient, -1.0);
 //System.out.printf("sent prob: %f\n", parser.sentProb());
 //new DMVGrammar(negDmvGradient).save(outputPrefix + iteration + ".numGradient");
 
@@ -252,10 +263,10 @@ class OCRCE {
 					lengthCounter.increment(sent.length);
 				}
 				else {
+					parser.softCountNextParse(negDmvGradient, 1.0);
 					parser.parse(neighborhoods[i]);
 //System.out.printf("neighborhood prob: %f\n", parser.sentProb());
 					negLikelihood += parser.sentProb();
-					parser.addSoftCounts(negDmvGradient, 1.0);
 				}
 //new DMVGrammar(negDmvGradient).save(outputPrefix + iteration + ".denGradient");
 //break;
@@ -267,13 +278,19 @@ class OCRCE {
 					double count = lengthCount.getValue().value;
 					
 					StringLattice lattice = ((LengthNeighborhood) N).lattice(length);
+					parser.softCountNextParse(negDmvGradient, count);
 					parser.parse(lattice);
 					negLikelihood += count * parser.sentProb();
-					parser.addSoftCounts(negDmvGradient, count);
 				}
 			}
 			
 			negGradient = negDmvGradient.vector;
+			
+			long now = System.currentTimeMillis();
+			parseTime += now - parseStartTime;
+			System.out.printf("Iteration %d: parse time %.2f sec (total %.2f min)\n",
+					iteration, (now - parseStartTime) / 1000.0, parseTime / 60000.0);
+			
 			if (debug)
 				new DMVGrammar(negDmvGradient).save(outputPrefix + iteration + ".gradient");
 			
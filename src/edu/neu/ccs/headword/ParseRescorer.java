@@ -35,6 +35,7 @@ public class ParseRescorer implements Rescorer {
 		}
 		
 		parser = LatticeParser.fromConfig(config);
+		parser.setMode(combine && marginalize ? LatticeParser.Mode.INSIDE : LatticeParser.Mode.VITERBI);
 	}
 
 	@Override
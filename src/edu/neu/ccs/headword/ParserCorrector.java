@@ -2,6 +2,7 @@ package edu.neu.ccs.headword;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import edu.neu.ccs.headword.SimpleTokenizer.Token;
@@ -10,7 +11,7 @@ import edu.neu.ccs.headword.util.PhaseTimer;
 import edu.neu.ccs.headword.util.RunConfig;
 import edu.neu.ccs.headword.util.Util;
 
-public class ParserCorrector implements Corrector {
+public class ParserCorrector implements StreamingCorrector {
 	
 	private static final boolean DEBUG = false;
 	
@@ -21,8 +22,12 @@ public class ParserCorrector implements Corrector {
 	Clustering clustering;
 	
 	LatticeBuilder latticeBuilder;
+	LatticePruner latticePruner; // null if lattices are parsed unpruned
 	
 	LatticeParser parser;
+	boolean collapseTags;
+	
+	int pipelineQueueSize;
 			
 	public ParserCorrector(
 			RunConfig config, SegmentModel segmentModel, InexactDictionary dictionary
@@ -35,8 +40,18 @@ public class ParserCorrector implements Corrector {
 		clustering = Clustering.fromConfig(config);
 		
 		latticeBuilder = new LatticeBuilder(config, segmentModel, dictionary);
+		latticePruner = LatticePruner.fromConfig(config);
 		
 		parser = LatticeParser.fromConfig(config);
+		parser.setMode(LatticeParser.Mode.VITERBI); // only the parse itself is used
+		
+		// The words of a lattice only matter to the parser through their tags (unless it has a
+		// lexicalized model), so same-tag alternatives for a span can be parsed as one edge.
+		collapseTags = config.getBoolean("parser.collapse-tags", false);
+		if (collapseTags && config.getBoolean("parser.combined-model"))
+			throw new IOException("parser.collapse-tags requires parser.combined-model: F");
+		
+		pipelineQueueSize = config.getInt("pipeline.queue-size", 16);
 	}
 	
 
@@ -54,22 +69,18 @@ public class ParserCorrector implements Corrector {
 		
 		for (List<Token> tokens: ocrTokens) {
 			StringLattice lattice = latticeBuilder.channelLattice(tokens);
-			
-			TaggedLattice taggedLattice = new TaggedLattice(lattice, clustering);
-			
-			int[] parse = parser.parse(taggedLattice);
-			
-			List<String> usedWords = new ArrayList<String>();
-			for (int i = 0; i < parse.length; i++) {
-				if (DEBUG) {
-					System.out.printf("%s %d\n",
-							taggedLattice.edges.get(i).token.getString(), parse[i]);
+			if (latticePruner != null) {
+				StringLattice pruned = latticePruner.prune(lattice);
+				if (transLines != null) {
+					latticePruner.recordOracle(lattice, pruned,
+							SimpleTokenizer.tokenize(transLines.get(sentNum), false));
 				}
-				if (parse[i] != -1)
-					usedWords.add(taggedLattice.edges.get(i).token.getString());
+				lattice = pruned;
 			}
 			
-			results.add(Util.join(" ",  usedWords));
+			TaggedLattice taggedLattice = new TaggedLattice(lattice, clustering);
+			
+			results.add(parseWords(taggedLattice));
 			
 			sentNum++;
 			
@@ -79,11 +90,70 @@ public class ParserCorrector implements Corrector {
 			}
 		}
 		
+		latticeBuilder.saveCache();
+		if (latticePruner != null)
+			log.log(latticePruner.summary());
 		timer.completePhase("Corrected OCR using LatticeParser");
 
 		return results;
 	}
 	
+	/**
+	 * Correct lines as they are read, with lattice building and parsing pipelined. The parser
+	 * is only used by the pipeline's decoding thread.
+	 */
+	@Override
+	public void correctLines(Iterator<String> ocrLines, CorrectionPipeline.Output output)
+			throws IOException
+	{
+		new CorrectionPipeline<TaggedLattice, String>(pipelineQueueSize) {
+			@Override protected TaggedLattice buildLattice(int lineNum, List<Token> tokens) {
+				StringLattice lattice = latticeBuilder.channelLattice(tokens);
+				if (latticePruner != null)
+					lattice = latticePruner.prune(lattice);
+				return new TaggedLattice(lattice, clustering);
+			}
+			@Override protected String decode(
+					int lineNum, List<Token> tokens, TaggedLattice taggedLattice)
+			{
+				return parseWords(taggedLattice);
+			}
+			@Override protected String correctedLine(
+					int lineNum, String ocrLine, List<Token> tokens, String words)
+			{
+				return words;
+			}
+		}.run(ocrLines, output);
+		
+		latticeBuilder.saveCache();
+		if (latticePruner != null)
+			log.log(latticePruner.summary());
+		timer.completePhase("Corrected OCR using LatticeParser in a pipeline");
+	}
+	
+	/** The words of the lattice's best parse. */
+	String parseWords(TaggedLattice taggedLattice) {
+		int[] parse;
+		if (collapseTags) {
+			TaggedLattice.CollapsedLattice collapsed = taggedLattice.collapseToTags();
+			parse = collapsed.expandParse(parser.parse(collapsed));
+		}
+		else
+			parse = parser.parse(taggedLattice);
+		
+		List<String> usedWords = new ArrayList<String>();
+		for (int i = 0; i < parse.length; i++) {
+			if (DEBUG) {
+				System.out.printf("%s %d\n",
+						taggedLattice.edges.get(i).token.getString(), parse[i]);
+			}
+			if (parse[i] != -1)
+				usedWords.add(taggedLattice.edges.get(i).token.getString());
+		}
+		
+		return Util.join(" ",  usedWords);
+	}
+	
 
 	public static void main(String[] args) {
 		for (int i = 0; i < 10; i++) {
@@ -8,6 +8,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
 import edu.neu.ccs.headword.SimpleTokenizer.Token;
@@ -16,7 +17,7 @@ import edu.neu.ccs.headword.util.PhaseTimer;
 import edu.neu.ccs.headword.util.RunConfig;
 import edu.neu.ccs.headword.util.Util;
 
-public class SRILMCorrector implements Corrector {
+public class SRILMCorrector implements StreamingCorrector {
 	
 	RunConfig config;
 	Log log;
@@ -30,6 +31,11 @@ public class SRILMCorrector implements Corrector {
 	File tempDir;
 	File latticeListFile;
 	File refsFile;
+	
+	// Set if lm.decoder is in-process, in which case lattice-tool isn't used
+	NGramLatticeDecoder decoder = null;
+	int decoderThreads;
+	int pipelineQueueSize;
 			
 	public SRILMCorrector(
 			RunConfig config, SegmentModel segmentModel, InexactDictionary dictionary)
@@ -43,7 +49,11 @@ public class SRILMCorrector implements Corrector {
 		
 		lmOrder = config.getInt("lm.order");
 		lmFile = config.getDataFile("srilm.model").getAbsolutePath();
-		latticeToolPath = config.getString("srilm.bin") + "/lattice-tool";
+		decoder = NGramLatticeDecoder.fromConfig(config);
+		if (decoder == null)
+			latticeToolPath = config.getString("srilm.bin") + "/lattice-tool";
+		decoderThreads = config.getInt("lm.decoder-threads", 1);
+		pipelineQueueSize = config.getInt("pipeline.queue-size", 16);
 		tempDir = config.getTempDir();
 		latticeListFile = new File(tempDir, "lattice-list.txt");
 		refsFile = new File(tempDir, "refs.txt");
@@ -57,22 +67,23 @@ public class SRILMCorrector implements Corrector {
 		for (String ocr: ocrLines)
 			ocrTokens.add(SimpleTokenizer.tokenizePreservingWhitespace(ocr));
 		
-		ArrayList<File> psfgFiles = new ArrayList<File>(ocrLines.size());
-		for (List<Token> tokens: ocrTokens) {
-			StringLattice lattice = latticeBuilder.channelLattice(tokens);
+		String[][] correctedLines;
+		if (decoder != null) {
+			List<StringLattice> lattices = latticeBuilder.channelLattices(ocrTokens);
+			latticeBuilder.saveCache();
+			timer.completePhase("Generated lattices");
 			
-			int sentenceNumber = psfgFiles.size();
-			File psfgFile = new File(tempDir, "s"+sentenceNumber);
+			correctedLines = decodeInProcess(lattices, ocrTokens);
+			timer.completePhase("Decoded lattices in process.");
+		}
+		else {
+			writeLattices(ocrTokens);
+			latticeBuilder.saveCache();
+			timer.completePhase("Generated PFSG files");
 			
-			lattice.savePFSG(psfgFile, sentenceNumber);
-			psfgFiles.add(psfgFile);
+			correctedLines = decode(ocrLines.size());
+			timer.completePhase("Ran SRILM lattice-tool.");
 		}
-		timer.completePhase("Generated PFSG files");
-		
-		PrintWriter writer = new PrintWriter(latticeListFile);
-		for (File psfgFile: psfgFiles)
-			writer.println(psfgFile.getPath());
-		writer.close();
 		
 		// Print transcription tokens to a file, to be used to calculate oracle accuracy
 // This is commented out because it is no longer accurate. For one thing, it needs to be
@@ -87,28 +98,101 @@ public class SRILMCorrector implements Corrector {
 //		log.emptyLine();
 		
 		ArrayList<String> results = new ArrayList<String>(ocrLines.size());
-		String[][] correctedLines = decode(ocrLines.size());
-		for (int i = 0; i < correctedLines.length; i++) {
-			String[] correctedTokenStrs = correctedLines[i];
-			for (int j = 0; j < correctedTokenStrs.length; j++) {
-				if (correctedTokenStrs[j].equals("<unk>")) {
+		for (int i = 0; i < correctedLines.length; i++)
+			results.add(replaceUnknowns(correctedLines[i], ocrTokens.get(i)));
+
+		return results;
+	}
+	
+	/**
+	 * Correct lines as they are read, with lattice building, decoding and output pipelined.
+	 * Only possible with the in-process decoder.
+	 */
+	@Override
+	public void correctLines(Iterator<String> ocrLines, CorrectionPipeline.Output output)
+			throws IOException
+	{
+		if (decoder == null)
+			throw new IOException("Streaming correction requires lm.decoder: in-process");
+		
+		new CorrectionPipeline<StringLattice, SentenceCandidate>(pipelineQueueSize) {
+			@Override protected StringLattice buildLattice(int lineNum, List<Token> tokens) {
+				return latticeBuilder.channelLattice(tokens);
+			}
+			@Override protected SentenceCandidate decode(
+					int lineNum, List<Token> tokens, StringLattice lattice)
+			{
+				return decoder.viterbi(lattice);
+			}
+			@Override protected String correctedLine(
+					int lineNum, String ocrLine, List<Token> tokens, SentenceCandidate best)
+			{
+				if (best == null) {
+					log.log("Warning! No path through lattice for sentence " + lineNum);
+					return replaceUnknowns(ocrTokenStrings(tokens), tokens);
+				}
+				return replaceUnknowns(best.tokens, tokens);
+			}
+		}.run(ocrLines, output);
+		
+		latticeBuilder.saveCache();
+		timer.completePhase("Corrected OCR in a pipeline.");
+	}
+	
+	/** The corrected tokens, with each <unk> replaced by the OCR token in its place. */
+	String replaceUnknowns(String[] correctedTokenStrs, List<Token> ocrTokens) {
+		for (int j = 0; j < correctedTokenStrs.length; j++) {
+			if (correctedTokenStrs[j].equals("<unk>")) {
 //if (j > 0 && j < correctedTokenStrs.length - 1)
 //	log.log("<unk>\n in: "
 //		+ correctedTokenStrs[j-1]
 //		+ " " + correctedTokenStrs[j]
 //		+ " " + correctedTokenStrs[j+1]
 //		+ "\n  -> "
-//		+ ocrTokens.get(i).get(j-1).toString()
-//		+ " " + ocrTokens.get(i).get(j).toString()
-//		+ " " + ocrTokens.get(i).get(j+1).toString());
-					correctedTokenStrs[j] = ocrTokens.get(i).get(j).toString();
-				}
+//		+ ocrTokens.get(j-1).toString()
+//		+ " " + ocrTokens.get(j).toString()
+//		+ " " + ocrTokens.get(j+1).toString());
+				correctedTokenStrs[j] = ocrTokens.get(j).toString();
 			}
-			results.add(Util.join(" ",  correctedTokenStrs));
+		}
+		return Util.join(" ",  correctedTokenStrs);
+	}
+	
+	static String[] ocrTokenStrings(List<Token> tokens) {
+		String[] strs = new String[tokens.size()];
+		for (int j = 0; j < tokens.size(); j++)
+			strs[j] = tokens.get(j).toString();
+		return strs;
+	}
+	
+	void writeLattices(List<List<Token>> ocrTokens) throws IOException {
+		ArrayList<File> psfgFiles = new ArrayList<File>(ocrTokens.size());
+		for (StringLattice lattice: latticeBuilder.iterateChannelLattices(ocrTokens)) {
+			int sentenceNumber = psfgFiles.size();
+			File psfgFile = new File(tempDir, "s"+sentenceNumber);
+			
+			lattice.savePFSG(psfgFile, sentenceNumber);
+			psfgFiles.add(psfgFile);
 		}
 		
-		timer.completePhase("Ran SRILM lattice-tool.");
-
+		PrintWriter writer = new PrintWriter(latticeListFile);
+		for (File psfgFile: psfgFiles)
+			writer.println(psfgFile.getPath());
+		writer.close();
+	}
+	
+	String[][] decodeInProcess(List<StringLattice> lattices, List<List<Token>> ocrTokens) {
+		List<List<SentenceCandidate>> decoded = decoder.nBest(lattices, 1, decoderThreads);
+		String[][] results = new String[lattices.size()][];
+		for (int i = 0; i < results.length; i++) {
+			if (decoded.get(i).isEmpty()) {
+				log.log("Warning! No path through lattice for sentence " + i);
+				results[i] = ocrTokenStrings(ocrTokens.get(i));
+			}
+			else {
+				results[i] = decoded.get(i).get(0).tokens;
+			}
+		}
 		return results;
 	}
 	
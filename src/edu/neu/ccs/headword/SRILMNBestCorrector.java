@@ -9,6 +9,7 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 
@@ -18,7 +19,7 @@ import edu.neu.ccs.headword.util.PhaseTimer;
 import edu.neu.ccs.headword.util.RunConfig;
 import edu.neu.ccs.headword.util.Util;
 
-public class SRILMNBestCorrector implements Corrector {
+public class SRILMNBestCorrector implements StreamingCorrector {
 	
 	private static final boolean DEBUG = false;
 	
@@ -36,6 +37,11 @@ public class SRILMNBestCorrector implements Corrector {
 	File latticeListFile;
 	File refsFile;
 	
+	// Set if lm.decoder is in-process, in which case lattice-tool isn't used
+	NGramLatticeDecoder decoder = null;
+	int decoderThreads;
+	int pipelineQueueSize;
+	
 	Rescorer rescorer;
 	double rescorerWeight;
 	boolean rescorerLogLinearMix;
@@ -55,7 +61,11 @@ public class SRILMNBestCorrector implements Corrector {
 		maxSentenceCandidates = config.getInt("lm.sentence-candidates");
 		lmOrder = config.getInt("lm.order");
 		lmFile = config.getDataFile("srilm.model").getAbsolutePath();
-		latticeToolPath = config.getString("srilm.bin") + "/lattice-tool";
+		decoder = NGramLatticeDecoder.fromConfig(config);
+		if (decoder == null)
+			latticeToolPath = config.getString("srilm.bin") + "/lattice-tool";
+		decoderThreads = config.getInt("lm.decoder-threads", 1);
+		pipelineQueueSize = config.getInt("pipeline.queue-size", 16);
 		tempDir = config.getTempDir();
 		latticeListFile = new File(tempDir, "lattice-list.txt");
 		refsFile = new File(tempDir, "refs.txt");
@@ -85,113 +95,58 @@ public class SRILMNBestCorrector implements Corrector {
 		for (String ocr: ocrLines)
 			ocrTokens.add(SimpleTokenizer.tokenizePreservingWhitespace(ocr));
 		
-		ArrayList<File> psfgFiles = new ArrayList<File>(ocrLines.size());
-		for (List<Token> tokens: ocrTokens) {
-			StringLattice lattice = latticeBuilder.channelLattice(tokens);
+		List<List<SentenceCandidate>> nBestLists = null;
+		if (decoder != null) {
+			List<StringLattice> lattices = latticeBuilder.channelLattices(ocrTokens);
+			latticeBuilder.saveCache();
+			timer.completePhase("Generated lattices");
 			
-			int sentenceNumber = psfgFiles.size();
-			File psfgFile = new File(tempDir, "s"+sentenceNumber);
+			log.log("Oracle WER: " + oracleAccuracy(lattices, transLines));
+			log.emptyLine();
 			
-			lattice.savePFSG(psfgFile, sentenceNumber);
-			psfgFiles.add(psfgFile);
+			nBestLists = decoder.nBest(lattices, maxSentenceCandidates, decoderThreads);
+			timer.completePhase("Decoded n-best lists in process.");
 		}
-		timer.completePhase("Generated PFSG files");
-		
-		PrintWriter writer = new PrintWriter(latticeListFile);
-		for (File psfgFile: psfgFiles)
-			writer.println(psfgFile.getPath());
-		writer.close();
-		
-		// Print transcription tokens to a file, to be used to calculate oracle accuracy
-		PrintStream refsOut = new PrintStream(refsFile, "UTF-8");
-		for (String line: transLines) {
-			refsOut.println(Util.join(" ", SimpleTokenizer.tokenize(line, false)));
+		else {
+			ArrayList<File> psfgFiles = new ArrayList<File>(ocrLines.size());
+			for (StringLattice lattice: latticeBuilder.iterateChannelLattices(ocrTokens)) {
+				int sentenceNumber = psfgFiles.size();
+				File psfgFile = new File(tempDir, "s"+sentenceNumber);
+				
+				lattice.savePFSG(psfgFile, sentenceNumber);
+				psfgFiles.add(psfgFile);
+			}
+			latticeBuilder.saveCache();
+			timer.completePhase("Generated PFSG files");
+			
+			PrintWriter writer = new PrintWriter(latticeListFile);
+			for (File psfgFile: psfgFiles)
+				writer.println(psfgFile.getPath());
+			writer.close();
+			
+			// Print transcription tokens to a file, to be used to calculate oracle accuracy
+			PrintStream refsOut = new PrintStream(refsFile, "UTF-8");
+			for (String line: transLines) {
+				refsOut.println(Util.join(" ", SimpleTokenizer.tokenize(line, false)));
+			}
+			refsOut.close();
+			
+			log.log("Oracle WER: " + oracleAccuracy(ocrLines.size()));
+			log.emptyLine();
+			
+			generateNBest(ocrTokens);
+			timer.completePhase("Ran SRILM lattice-tool.");
 		}
-		refsOut.close();
-		
-		log.log("Oracle WER: " + oracleAccuracy(ocrLines.size()));
-		log.emptyLine();
 		
 		ArrayList<String> results = new ArrayList<String>(ocrLines.size());
-		generateNBest(ocrTokens);
-
-		timer.completePhase("Ran SRILM lattice-tool.");
 
 		double[] rescorerProbs = new double[maxSentenceCandidates];
 		
 		for (int i = 0; i < ocrLines.size(); i++) {
 			
-			FileInputStream is = new FileInputStream(new File(tempDir, "s" + i + ".gz"));
-			GZIPInputStream gis = new GZIPInputStream(is);
-			BufferedReader sentReader = new BufferedReader(new InputStreamReader(gis, "UTF-8"));
-			
-			ArrayList<SentenceCandidate> candidates = 
-					new ArrayList<SentenceCandidate>(maxSentenceCandidates);
-			String line;
-			while ((line = sentReader.readLine()) != null) {
-				candidates.add(new SentenceCandidate(line));
-			}
-			
-			sentReader.close();
-			
-			double ngramTotal = Double.NEGATIVE_INFINITY;
-			double rescorerTotal = Double.NEGATIVE_INFINITY;
-			for (int k = 0; k < candidates.size(); k++) {
-				SentenceCandidate candidate = candidates.get(k);
-				ngramTotal = Util.logSum(ngramTotal, candidate.languageProb);
-				rescorerProbs[k] = rescorer.score(i, candidate);
-				rescorerTotal = Util.logSum(rescorerTotal, rescorerProbs[k]);
-			}
-			
-			double bestScore = Double.NEGATIVE_INFINITY;
-			SentenceCandidate bestCandidate = null;
-			for (int k = 0; k < candidates.size(); k++) {
-				SentenceCandidate candidate = candidates.get(k);
-				double score;
-				if (rescorerLogLinearMix) {
-					score = 
-						candidate.prob +
-						rescorerWeight * rescorerProbs[k];
-					if (DEBUG) { if (i % 100 == 0) {
-						log.log(String.format("%d %d: %f = %f + %f * %f",
-								i, k,
-								score,
-								candidate.prob,
-								rescorerWeight,
-								rescorer.score(i, candidate)));
-					}}
-				}
-				else {
-					double channelProb = candidate.channelProb;
-					double ngramProb = candidate.languageProb;
-					if (rescorerNormalize)
-						ngramProb -= ngramTotal;
-					double rescorerProb = rescorerProbs[k];
-					if (rescorerNormalize)
-						rescorerProb -= rescorerTotal;
-					score = channelProb + Util.mixInLogSpace(
-							ngramProb, rescorerProb, rescorerWeight);
-					if (DEBUG) { if (i % 100 == 0) {
-						log.log(String.format("%d %d: %f = %f + mix(%f, %f, %f)",
-								i, k,
-								score,
-								channelProb,
-								ngramProb,
-								rescorerProb,
-								rescorerWeight));
-					}}
-				}
-				if (score > bestScore) {
-					bestCandidate = candidate;
-					bestScore = score;
-				}
-			}
-			
-			if (bestCandidate == null) {
-				log.logf("Warning! No non-zero-score candidate found for: %s\n", ocrLines.get(i));
-				bestCandidate = candidates.get(0);
-			}
-			results.add(Util.join(" ",  bestCandidate.tokens));
+			List<SentenceCandidate> candidates =
+					nBestLists != null ? nBestLists.get(i) : readNBest(i);
+			results.add(rescore(i, ocrLines.get(i), ocrTokens.get(i), candidates, rescorerProbs));
 			
 			if ((i+1) % 10 == 0)
 				System.out.printf("Re-scored %d / %d sentences\r", (i+1), ocrLines.size());
@@ -202,6 +157,130 @@ public class SRILMNBestCorrector implements Corrector {
 		return results;
 	}
 	
+	/**
+	 * Correct the ith sentence by choosing the best of its n-best candidates under the mix of
+	 * the n-gram and rescorer probabilities. rescorerProbs is scratch space.
+	 */
+	String rescore(int i, String ocrLine, List<Token> ocrTokens,
+			List<SentenceCandidate> candidates, double[] rescorerProbs) throws IOException
+	{
+		if (candidates.isEmpty()) {
+			log.logf("Warning! No path through lattice for: %s\n", ocrLine);
+			List<String> tokenStrs = new ArrayList<String>();
+			for (Token token: ocrTokens)
+				tokenStrs.add(token.toString());
+			return Util.join(" ", tokenStrs);
+		}
+		
+		double ngramTotal = Double.NEGATIVE_INFINITY;
+		double rescorerTotal = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < candidates.size(); k++) {
+			SentenceCandidate candidate = candidates.get(k);
+			ngramTotal = Util.logSum(ngramTotal, candidate.languageProb);
+			rescorerProbs[k] = rescorer.score(i, candidate);
+			rescorerTotal = Util.logSum(rescorerTotal, rescorerProbs[k]);
+		}
+		
+		double bestScore = Double.NEGATIVE_INFINITY;
+		SentenceCandidate bestCandidate = null;
+		for (int k = 0; k < candidates.size(); k++) {
+			SentenceCandidate candidate = candidates.get(k);
+			double score;
+			if (rescorerLogLinearMix) {
+				score = 
+					candidate.prob +
+					rescorerWeight * rescorerProbs[k];
+				if (DEBUG) { if (i % 100 == 0) {
+					log.log(String.format("%d %d: %f = %f + %f * %f",
+							i, k,
+							score,
+							candidate.prob,
+							rescorerWeight,
+							rescorer.score(i, candidate)));
+				}}
+			}
+			else {
+				double channelProb = candidate.channelProb;
+				double ngramProb = candidate.languageProb;
+				if (rescorerNormalize)
+					ngramProb -= ngramTotal;
+				double rescorerProb = rescorerProbs[k];
+				if (rescorerNormalize)
+					rescorerProb -= rescorerTotal;
+				score = channelProb + Util.mixInLogSpace(
+						ngramProb, rescorerProb, rescorerWeight);
+				if (DEBUG) { if (i % 100 == 0) {
+					log.log(String.format("%d %d: %f = %f + mix(%f, %f, %f)",
+							i, k,
+							score,
+							channelProb,
+							ngramProb,
+							rescorerProb,
+							rescorerWeight));
+				}}
+			}
+			if (score > bestScore) {
+				bestCandidate = candidate;
+				bestScore = score;
+			}
+		}
+		
+		if (bestCandidate == null) {
+			log.logf("Warning! No non-zero-score candidate found for: %s\n", ocrLine);
+			bestCandidate = candidates.get(0);
+		}
+		return Util.join(" ",  bestCandidate.tokens);
+	}
+	
+	/**
+	 * Correct lines as they are read, with lattice building, n-best decoding and rescoring
+	 * pipelined. Only possible with the in-process decoder.
+	 */
+	@Override
+	public void correctLines(Iterator<String> ocrLines, CorrectionPipeline.Output output)
+			throws IOException
+	{
+		if (decoder == null)
+			throw new IOException("Streaming correction requires lm.decoder: in-process");
+		
+		final double[] rescorerProbs = new double[maxSentenceCandidates];
+		
+		new CorrectionPipeline<StringLattice, List<SentenceCandidate>>(pipelineQueueSize) {
+			@Override protected StringLattice buildLattice(int lineNum, List<Token> tokens) {
+				return latticeBuilder.channelLattice(tokens);
+			}
+			@Override protected List<SentenceCandidate> decode(
+					int lineNum, List<Token> tokens, StringLattice lattice)
+			{
+				return decoder.nBest(lattice, maxSentenceCandidates);
+			}
+			@Override protected String correctedLine(int lineNum, String ocrLine,
+					List<Token> tokens, List<SentenceCandidate> candidates) throws IOException
+			{
+				return rescore(lineNum, ocrLine, tokens, candidates, rescorerProbs);
+			}
+		}.run(ocrLines, output);
+		
+		latticeBuilder.saveCache();
+		timer.completePhase("Corrected and re-scored OCR in a pipeline.");
+	}
+	
+	List<SentenceCandidate> readNBest(int i) throws IOException {
+		FileInputStream is = new FileInputStream(new File(tempDir, "s" + i + ".gz"));
+		GZIPInputStream gis = new GZIPInputStream(is);
+		BufferedReader sentReader = new BufferedReader(new InputStreamReader(gis, "UTF-8"));
+		
+		ArrayList<SentenceCandidate> candidates = 
+				new ArrayList<SentenceCandidate>(maxSentenceCandidates);
+		String line;
+		while ((line = sentReader.readLine()) != null) {
+			candidates.add(new SentenceCandidate(line));
+		}
+		
+		sentReader.close();
+		return candidates;
+	}
+	
 	void generateNBest(List<List<Token>> ocrTokens) throws IOException {
 		String command = latticeToolPath 
 				+ " -in-lattice-list " + latticeListFile
@@ -272,6 +351,18 @@ public class SRILMNBestCorrector implements Corrector {
 		return (double) totalErrors / totalWords;
 	}
 
+	double oracleAccuracy(List<StringLattice> lattices, List<String> transLines) {
+		int totalWords = 0;
+		int totalErrors = 0;
+		for (int i = 0; i < lattices.size(); i++) {
+			String[] ref = SimpleTokenizer.tokenize(transLines.get(i), false);
+			int errors = NGramLatticeDecoder.oracleErrors(lattices.get(i), ref);
+			totalWords += ref.length;
+			totalErrors += errors < 0 ? ref.length : errors;
+		}
+		return (double) totalErrors / totalWords;
+	}
+
 	public static void main(String[] args) {
 		
 	}
@@ -1,6 +1,7 @@
 package edu.neu.ccs.headword;
 
 import static edu.neu.ccs.headword.util.Util.logSum;
+import static edu.neu.ccs.headword.util.Util.logSumExp;
 
 import java.io.IOException;
 import java.io.PrintStream;
@@ -153,21 +154,26 @@ public class SegmentAligner {
 		double likelihood = 0.0;
 		double chars = 0.0;
 		
+		// The log needs SegmentAligner's tables, but otherwise the flat aligner is faster
+		FlatSegmentAligner flatAligner = new FlatSegmentAligner(model, searchBeamWidth);
+		
 		int numLines = 0;
 		for (AlignedLine line: lines) {
 			numLines ++;
 			chars += line.input.length();
 			
-			SegmentAligner aligner =
-				new SegmentAligner(model, line.input, line.output, searchBeamWidth);
-			aligner.populate();
-			likelihood += aligner.forwardBackward();
-			aligner.addSoftCounts(softCounts);
-			
-			if (numLines % 1000 == 0)
-				System.out.println("Trained on " + numLines + " lines.");
-
-			if (log != null) {
+			if (log == null) {
+				flatAligner.populate(line.input, line.output);
+				likelihood += flatAligner.forwardBackward();
+				flatAligner.addSoftCounts(softCounts);
+			}
+			else {
+				SegmentAligner aligner =
+					new SegmentAligner(model, line.input, line.output, searchBeamWidth);
+				aligner.populate();
+				likelihood += aligner.forwardBackward();
+				aligner.addSoftCounts(softCounts);
+				
 				line.print(log);
 				log.println();
 				log.println("alignment table:");
@@ -176,6 +182,9 @@ public class SegmentAligner {
 				softCounts.print(log);
 				log.println();
 			}
+			
+			if (numLines % 1000 == 0)
+				System.out.println("Trained on " + numLines + " lines.");
 		}
 		
 		printSoftCountDebugInfo(softCounts);
@@ -264,20 +273,23 @@ public class SegmentAligner {
 		}
 		
 		forwProb[0][0] = 0;
+		double[] terms = new double[8];
 		for (int i = 0; i < input.length() + 1; i++) {
 			CellRow row = table[i];
 			for (int j = row.startIndex; j < row.endIndex; j++) {
 				if (i == 0 && j == 0)
 					continue;
 				
-				double p = Double.NEGATIVE_INFINITY;
 				Cell cell = row.get(j);
+				if (terms.length < cell.candidates.size())
+					terms = new double[cell.candidates.size()];
+				int numTerms = 0;
 				for (Candidate candidate: cell.candidates) {
 					int iStart = i - candidate.segment.input.length();
 					int jStart = j - candidate.segment.output.length();
-					p = logSum(p, candidate.segmentProb + forwProb[iStart][jStart]); 
+					terms[numTerms++] = candidate.segmentProb + forwProb[iStart][jStart];
 				}
-				forwProb[i][j] = p;
+				forwProb[i][j] = logSumExp(terms, 0, numTerms);
 			}
 		}
 
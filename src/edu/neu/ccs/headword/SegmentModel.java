@@ -9,6 +9,10 @@ import edu.neu.ccs.headword.Alignment.Segment;
 
 public interface SegmentModel {
 
+	/**
+	 * Implementations shouldn't modify the model here: LatticeBuilder calls this from several
+	 * threads at once.
+	 */
 	public double prob(Segment segment, String input, int i);
 	
 	public void print(PrintStream out);
@@ -17,7 +21,9 @@ public interface SegmentModel {
 	
 	public void save(String filename) throws IOException;
 	
-	public static class UniformSegmentModel implements SegmentModel {
+	public static class UniformSegmentModel
+		implements SegmentModel, FlatSegmentAligner.CharSegmentModel
+	{
 		
 		double[][] segmentProbs = new double[][] {
 			new double[3], new double[3], new double[3]
@@ -47,6 +53,15 @@ public interface SegmentModel {
 			return segmentProbs[segment.input.length()][segment.output.length()];
 		}
 		
+		@Override
+		public double prob(
+				String input, int i, int inputLength, String output, int j, int outputLength)
+		{
+			if (inputLength == outputLength && input.regionMatches(i, output, j, inputLength))
+				return reproduceProb;
+			return segmentProbs[inputLength][outputLength];
+		}
+		
 		@Override
 		public void print(PrintStream out) {
 			out.println("p(rep) = " + Math.exp(reproduceProb));
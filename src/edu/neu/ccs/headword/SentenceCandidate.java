@@ -28,6 +28,13 @@ public class SentenceCandidate {
 //		for (int i = 0; i < tokens.length; i++)
 //			tokens[i] = tokens[i].intern();
 	}
+
+	public SentenceCandidate(String[] tokens, double channelProb, double languageProb) {
+		this.tokens = tokens;
+		this.channelProb = channelProb;
+		this.languageProb = languageProb;
+		prob = channelProb + languageProb;
+	}
 	
 	public String toString() {
 		return String.format("%4f (%4f + %4f): %s",
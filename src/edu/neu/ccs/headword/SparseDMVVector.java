@@ -0,0 +1,162 @@
+package edu.neu.ccs.headword;
+
+import java.util.Arrays;
+
+/**
+ * A DMVVector that only stores the events that have been touched, in an
+ * open-addressing hash table keyed by event index. Intended for accumulating
+ * soft counts over a subset of the corpus, where most of the 8V + 2V^2
+ * events never occur.
+ */
+public class SparseDMVVector extends DMVVector {
+	static final int EMPTY = -1;
+
+	int[] keys;
+	double[] values;
+	int size = 0;
+
+	public SparseDMVVector(Vocabulary vocab) {
+		this(vocab, 1024);
+	}
+	public SparseDMVVector(Vocabulary vocab, int initialCapacity) {
+		super(vocab, (double[]) null);
+		int capacity = 16;
+		while (capacity < 2 * initialCapacity)
+			capacity *= 2;
+		allocate(capacity);
+	}
+
+	void allocate(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new double[capacity];
+	}
+
+	int slot(int index) {
+		int mask = keys.length - 1;
+		int h = index * 0x9E3779B9;
+		int i = (h ^ h >>> 16) & mask;
+		while (keys[i] != EMPTY && keys[i] != index)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	public double get(int index) {
+		int i = slot(index);
+		return keys[i] == EMPTY ? 0.0 : values[i];
+	}
+
+	public void add(int index, double val) {
+		int i = slot(index);
+		if (keys[i] == EMPTY) {
+			if (2 * (size + 1) > keys.length) {
+				rehash(2 * keys.length);
+				i = slot(index);
+			}
+			keys[i] = index;
+			size++;
+		}
+		values[i] += val;
+	}
+
+	public void set(int index, double val) {
+		add(index, 0.0);
+		values[slot(index)] = val;
+	}
+
+	void rehash(int capacity) {
+		int[] oldKeys = keys;
+		double[] oldValues = values;
+		allocate(capacity);
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != EMPTY) {
+				int i = slot(oldKeys[j]);
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	/** Number of events stored. */
+	public int size() {
+		return size;
+	}
+
+	/** Remove all events, keeping the table's capacity. */
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(values, 0.0);
+		size = 0;
+	}
+
+	/** Add all stored events into a dense vector of the same vocabulary. */
+	public void addTo(double[] dense) {
+		for (int j = 0; j < keys.length; j++)
+			if (keys[j] != EMPTY)
+				dense[keys[j]] += values[j];
+	}
+
+	@Override
+	public void add(DMVVector v) {
+		if (v instanceof SparseDMVVector) {
+			SparseDMVVector sv = (SparseDMVVector) v;
+			for (int j = 0; j < sv.keys.length; j++)
+				if (sv.keys[j] != EMPTY)
+					add(sv.keys[j], sv.values[j]);
+		}
+		else {
+			for (int i = 0; i < v.vector.length; i++)
+				if (v.vector[i] != 0.0)
+					add(i, v.vector[i]);
+		}
+	}
+
+	@Override
+	public double get(boolean stop, String word, int dir, boolean hasChild) {
+		return get(eventIndex(stop, word, dir, hasChild));
+	}
+	@Override
+	public double get(String arg, String head, int dir) {
+		return get(eventIndex(arg, head, dir));
+	}
+
+	@Override
+	public void set(boolean stop, String word, int dir, boolean hasChild, double val) {
+		set(eventIndex(stop, word, dir, hasChild), val);
+	}
+	@Override
+	public void set(String arg, String head, int dir, double val) {
+		set(eventIndex(arg, head, dir), val);
+	}
+
+	@Override
+	public void add(boolean stop, String word, int dir, boolean hasChild, double val) {
+		add(eventIndex(stop, word, dir, hasChild), val);
+	}
+	@Override
+	public void add(String arg, String head, int dir, double val) {
+		add(eventIndex(arg, head, dir), val);
+	}
+
+	@Override
+	public void logAdd(boolean stop, String word, int dir, boolean hasChild, double val) {
+		throw new Error("logAdd() is not supported by SparseDMVVector");
+	}
+	@Override
+	public void logAdd(String arg, String head, int dir, double val) {
+		throw new Error("logAdd() is not supported by SparseDMVVector");
+	}
+	@Override
+	public void convertToLog() {
+		throw new Error("convertToLog() is not supported by SparseDMVVector");
+	}
+	@Override
+	public void convertFromLog() {
+		throw new Error("convertFromLog() is not supported by SparseDMVVector");
+	}
+
+	@Override
+	public int vectorSize() {
+		return vectorSize(vocabSize);
+	}
+}
@@ -0,0 +1,15 @@
+package edu.neu.ccs.headword;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A Corrector that can also correct lines as they are read, without holding the whole
+ * document in memory. The lines are passed to output in order.
+ */
+public interface StreamingCorrector extends Corrector {
+
+	public abstract void correctLines(Iterator<String> ocrLines,
+			CorrectionPipeline.Output output) throws IOException;
+
+}
@@ -62,6 +62,23 @@ class TagDMV implements DMV {
 		p
 	}
 	
+	/** All tags seen as heads or arguments in the attachment counts, plus ROOT. */
+	Vocabulary buildVocabulary() {
+		Vocabulary vocab = new Vocabulary()
+		vocab.add(ROOT)
+		attachModels.each { ConditionalModel<String, ArrayList<String>> model ->
+			def additive = (AdditiveConditionalModel<String, ArrayList<String>>) model
+			additive.contextCounts.keySet().sort().each { List<String> context ->
+				vocab.add(context[0])
+			}
+			additive.obsCounts.keySet().collect { it.event }.sort().each { String tag ->
+				vocab.add(tag)
+			}
+		}
+		vocab.complete()
+		vocab
+	}
+	
 	static main(args) {
 	
 	}
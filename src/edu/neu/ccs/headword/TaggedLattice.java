@@ -4,12 +4,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import edu.neu.ccs.headword.util.Util;
+
 public class TaggedLattice {
 
 	static final String START = "<s>";
@@ -126,12 +130,17 @@ public class TaggedLattice {
 		public final int end;
 		public final Token token;
 		public final double logProb;
+		public final double viterbiLogProb; // differs from logProb only for merged edges
 		
 		public Edge(int start, int end, Token token, double logProb) {
+			this(start, end, token, logProb, logProb);
+		}
+		public Edge(int start, int end, Token token, double logProb, double viterbiLogProb) {
 			this.start = start;
 			this.end = end;
 			this.token = token;
 			this.logProb = logProb;
+			this.viterbiLogProb = viterbiLogProb;
 		}
 		
 		public String toString() {
@@ -218,37 +227,83 @@ public class TaggedLattice {
 			outEdges.get(edge.start).add(edge);
 	}
 	
-//	public Lattice collapseToTags(Clustering clustering) {
-//		Lattice tagLattice = new Lattice(numPositions);
-//		
-//		for (Edge edge: edges) {
-//			tagLattice.addEdge(
-//					edge.start, edge.end, clustering.clusterOfWord(edge.token), edge.logProb);
-//		}
-//		
-//		return tagLattice.mergeEquivalentEdges();
-//	}
-//	
-//	public Lattice mergeEquivalentEdges() {
-//		Map<String, List<Edge>> edgesByKey = new HashMap<String, List<Edge>>();
-//		for (Edge edge: edges) {
-//			String key = edge.start + ':' + edge.end + ':' + edge.token;
-//			if (!edgesByKey.containsKey(key))
-//				edgesByKey.put(key, new ArrayList<Edge>());
-//			edgesByKey.get(key).add(edge);
-//		}
-//		
-//		Lattice newLattice = new Lattice(numPositions);
-//		for (List<Edge> mergeableEdges: edgesByKey.values()) {
-//			double p = Double.NEGATIVE_INFINITY;
-//			for (Edge edge: mergeableEdges)
-//				p = logSum(p, edge.logProb);
-//			Edge edge0 = mergeableEdges.get(0);
-//			newLattice.addEdge(edge0.start, edge0.end, edge0.token, p);
-//		}
-//		
-//		return newLattice;
-//	}
+	/**
+	 * A lattice whose parallel edges with the same tag have been merged by collapseToTags().
+	 * Each merged edge's logProb is the log sum of the original edges' (for inside
+	 * probabilities), its viterbiLogProb is their maximum, and its token is that of the most
+	 * probable original edge, which the parse is expanded back to.
+	 */
+	public static class CollapsedLattice extends TaggedLattice {
+		final TaggedLattice source;
+		final int[] bestSourceEdge; // index in source.edges of each edge's most probable word
+		
+		CollapsedLattice(TaggedLattice source, int[] bestSourceEdge) {
+			super(source.numPositions);
+			this.source = source;
+			this.bestSourceEdge = bestSourceEdge;
+		}
+		
+		public TaggedLattice getSource() {
+			return source;
+		}
+		
+		/**
+		 * Translate a parse of this lattice, as returned by LatticeParser.parse(), to the
+		 * corresponding parse of the source lattice: each edge of the parse is replaced by its
+		 * most probable word, and every other source edge gets -1.
+		 */
+		public int[] expandParse(int[] parse) {
+			int[] sourceParse = new int[source.edges.size()];
+			Arrays.fill(sourceParse, -1);
+			for (int i = 0; i < parse.length; i++) {
+				int head = parse[i];
+				if (head == -1)
+					continue;
+				// heads are parser edge indexes, where 0 is the root
+				sourceParse[bestSourceEdge[i]] = head == 0 ? 0 : bestSourceEdge[head - 1] + 1;
+			}
+			return sourceParse;
+		}
+	}
+	
+	/**
+	 * Merge edges with the same start, end and tag into one, for parsing with a scorer that
+	 * only looks at tags (such as DMVGrammarScorer, DMVVectorScorer or CompiledDMVScorer).
+	 * Parsing the collapsed lattice gives the same sentence probability and expected counts as
+	 * parsing this one, and its viterbi parse, expanded with CollapsedLattice.expandParse(), is
+	 * a viterbi parse of this lattice. Merged edges keep the order of their first original edge.
+	 */
+	public CollapsedLattice collapseToTags() {
+		HashMap<String, Integer> edgeIndexes = new HashMap<String, Integer>();
+		int[] bestSourceEdge = new int[edges.size()];
+		double[] logProbs = new double[edges.size()];
+		int numCollapsed = 0;
+		for (int i = 0; i < edges.size(); i++) {
+			Edge edge = edges.get(i);
+			String key = edge.start + ":" + edge.end + ":" + edge.token.getTag();
+			Integer c = edgeIndexes.get(key);
+			if (c == null) {
+				edgeIndexes.put(key, numCollapsed);
+				bestSourceEdge[numCollapsed] = i;
+				logProbs[numCollapsed] = edge.logProb;
+				numCollapsed++;
+			}
+			else {
+				if (edge.viterbiLogProb > edges.get(bestSourceEdge[c]).viterbiLogProb)
+					bestSourceEdge[c] = i;
+				logProbs[c] = Util.logSum(logProbs[c], edge.logProb);
+			}
+		}
+		
+		CollapsedLattice collapsed =
+				new CollapsedLattice(this, Arrays.copyOf(bestSourceEdge, numCollapsed));
+		for (int c = 0; c < numCollapsed; c++) {
+			Edge best = edges.get(bestSourceEdge[c]);
+			collapsed.edges.add(
+					new Edge(best.start, best.end, best.token, logProbs[c], best.viterbiLogProb));
+		}
+		return collapsed;
+	}
 	
 	public static class Subpath {
 		public double score;
@@ -1,5 +1,6 @@
 package edu.neu.ccs.headword.util;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -33,6 +34,47 @@ public class Util {
 	    }
 	}
 
+	/**
+	 * log(exp(x[from]) + ... + exp(x[to-1])), or -Infinity if the range is empty. Rather than
+	 * a log1p per element, as a chain of logSum() calls would take, the terms are shifted by
+	 * their maximum and summed, with a single log1p. For two terms the result is exactly
+	 * logSum()'s, including the LOGSUM_THRESHOLD cutoff below which terms are dropped; for
+	 * more it agrees up to rounding.
+	 */
+	public static double logSumExp(double[] x, int from, int to) {
+		int maxIndex = -1;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			if (x[i] > max) {
+				max = x[i];
+				maxIndex = i;
+			}
+		}
+		if (maxIndex < 0 || max == Double.POSITIVE_INFINITY) {
+			for (int i = from; i < to; i++)
+				if (Double.isNaN(x[i]))
+					return Double.NaN;
+			return max;
+		}
+
+		double sum = 0.0;
+		for (int i = from; i < to; i++) {
+			double d = x[i] - max;
+			if (!(d < -LOGSUM_THRESHOLD) && i != maxIndex)
+				sum += FastMath.exp(d);
+		}
+		return max + Math.log1p(sum);
+	}
+
+	/** Elementwise logSum() of the range of log values into dest: dest[i] += src[i]. */
+	public static void logSumInto(double[] dest, double[] src, int from, int to) {
+		for (int i = from; i < to; i++)
+			dest[i] = logSum(dest[i], src[i]);
+	}
+	public static void logSumInto(double[] dest, double[] src) {
+		logSumInto(dest, src, 0, dest.length);
+	}
+
 	public static double mixInLogSpace(double loga, double logb, double lambda) {
 		return logSum(loga + Math.log(1-lambda), logb + Math.log(lambda));
 	}
@@ -127,7 +169,63 @@ public class Util {
 //		logTest();
 //		mixInLogSpaceTest();
 //		sampleMultinomialTest();
-		logSumSpeedTest(Integer.parseInt(args[0]));
+		if (args[0].equals("-logsum-test"))
+			logSumAccuracyTest();
+		else
+			logSumSpeedTest(Integer.parseInt(args[0]));
+	}
+	
+	/**
+	 * Check logSumExp() against chains of logSum() calls: exactly for pairs (including
+	 * differences at and around LOGSUM_THRESHOLD, -Infinity and NaN), and within a relative
+	 * error of 1e-12 for random arrays.
+	 */
+	static void logSumAccuracyTest() {
+		double t = LOGSUM_THRESHOLD;
+		double ninf = Double.NEGATIVE_INFINITY;
+		double[][] pairs = {
+			{ninf, ninf}, {0.0, ninf}, {ninf, -3.0}, {0.0, 0.0}, {-1.0, -2.0}, {-2.0, -1.0},
+			{0.0, -t}, {0.0, -t + 1e-9}, {0.0, -t - 1e-9}, {0.0, -t + 1}, {0.0, -t - 1},
+			{-t, 0.0}, {-t - 1e-9, 0.0}, {-t + 1e-9, 0.0}, {-700.0, -700.0 - t},
+			{1e300, 1e300}, {-1e300, -1e300}, {-1e-300, 0.0}, {Double.NaN, 0.0},
+			{Double.NaN, ninf}, {ninf, Double.NaN},
+		};
+		int failures = 0;
+		for (double[] pair: pairs) {
+			double expected = logSum(pair[0], pair[1]);
+			double actual = logSumExp(pair, 0, 2);
+			if (Double.compare(expected, actual) != 0) {
+				System.out.printf("logSumExp(%s, %s) = %s, logSum = %s\n",
+						pair[0], pair[1], actual, expected);
+				failures++;
+			}
+		}
+		
+		Random random = new Random(0);
+		double maxError = 0.0;
+		for (int trial = 0; trial < 100000; trial++) {
+			double[] x = new double[random.nextInt(64)];
+			double spread = random.nextBoolean() ? 10.0 : 2 * t;
+			for (int i = 0; i < x.length; i++) {
+				x[i] = random.nextInt(10) == 0
+						? ninf : -1000.0 * random.nextDouble() - spread * random.nextDouble();
+			}
+			double expected = ninf;
+			for (double value: x)
+				expected = logSum(expected, value);
+			double actual = logSumExp(x, 0, x.length);
+			double error = expected == actual
+					? 0.0 : Math.abs(expected - actual) / Math.max(1.0, Math.abs(expected));
+			maxError = Math.max(maxError, error);
+			if (!(error <= 1e-12)) {
+				if (failures < 10)
+					System.out.printf("%s: logSumExp = %s, logSum = %s\n",
+							Arrays.toString(x), actual, expected);
+				failures++;
+			}
+		}
+		System.out.printf("%d failures; max relative error on random arrays %g\n",
+				failures, maxError);
 	}
 	
 	static void logSumSpeedTest(int size) {